@@ -0,0 +1,69 @@
+package no.ssb.subsetsservice.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.ssb.subsetsservice.service.ConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Turns requests away with 503 and a Retry-After header when POSTGRES_MAX_PENDING_CONNECTIONS or more threads are already waiting for a database connection.
+ * A request let through at that point would only join the queue and most likely time out after POSTGRES_CONNECTION_TIMEOUT_MS,
+ * so answering at once keeps the latency of the requests already queued from growing further. 0 turns admission control off.
+ * Health and metrics endpoints are never turned away.
+ */
+@Configuration
+public class AdmissionControl implements WebMvcConfigurer, HandlerInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionControl.class);
+
+    private static final int MAX_PENDING_CONNECTIONS = ConnectionPool.getIntEnv("POSTGRES_MAX_PENDING_CONNECTIONS", 20);
+    private static final String RETRY_AFTER_SECONDS = System.getenv().getOrDefault("ADMISSION_RETRY_AFTER_SECONDS", "1").trim();
+
+    private final Counter rejectedCounter;
+
+    public AdmissionControl(MeterRegistry meterRegistry) {
+        rejectedCounter = Counter.builder("subsets.admission.rejected")
+                .description("Requests turned away because too many requests were waiting for a database connection")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (MAX_PENDING_CONNECTIONS <= 0) {
+            LOG.debug("Admission control is off");
+            return;
+        }
+        registry.addInterceptor(this).addPathPatterns("/v2/**", "/auth/v2/**");
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        int pendingConnections = ConnectionPool.getMaxPendingConnections();
+        if (pendingConnections < MAX_PENDING_CONNECTIONS)
+            return true;
+        rejectedCounter.increment();
+        ResponseEntity<JsonNode> error = ErrorHandler.newHttpError(
+                pendingConnections+" requests are waiting for a database connection. Try again in "+RETRY_AFTER_SECONDS+" seconds",
+                HttpStatus.SERVICE_UNAVAILABLE, LOG);
+        response.setStatus(error.getStatusCodeValue());
+        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        new ObjectMapper().writeValue(response.getOutputStream(), error.getBody());
+        return false;
+    }
+}
@@ -12,6 +12,7 @@ public class ErrorHandler {
 
     public static final String ILLEGAL_ID = "id contains illegal characters";
     public static final String MALFORMED_VERSION = "malformed version";
+    public static final String OVERLAPPING_VALIDITY = "The validity period overlaps with the validity period of another published version of the subset";
 
     public static ResponseEntity<JsonNode> newHttpError(String message, HttpStatus status, Logger logger){
         ObjectNode body = new ObjectMapper().createObjectNode();
@@ -39,4 +40,8 @@ public class ErrorHandler {
     public static ResponseEntity<JsonNode> malformedVersion(Logger logger){
         return newHttpError(ErrorHandler.MALFORMED_VERSION, HttpStatus.BAD_REQUEST, logger);
     }
+
+    public static ResponseEntity<JsonNode> overlappingValidity(Logger logger){
+        return newHttpError(ErrorHandler.OVERLAPPING_VALIDITY, HttpStatus.BAD_REQUEST, logger);
+    }
 }
@@ -37,7 +37,7 @@ public class HealthController {
         boolean klassReady = new KlassURNResolver().pingKLASSClassifications();
         LOG.trace("klass ready: "+klassReady);
         LOG.trace("getting database instance");
-        DatabaseInterface database = DatabaseFactory.getDatabase(DatabaseFactory.DEFAULT_DATABASE);
+        DatabaseInterface database = DatabaseFactory.getDatabase();
         LOG.trace("checking readiness of database");
         boolean databaseReady = database.healthReady();
         LOG.trace("database ready: "+databaseReady+". Now checking schema presence.");
@@ -0,0 +1,20 @@
+package no.ssb.subsetsservice.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import no.ssb.subsetsservice.service.QueryLog;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * The recent Postgres queries that took at least POSTGRES_SLOW_QUERY_MS, newest first. Parameter values are left out.
+ */
+@Component
+@Endpoint(id = "slowqueries")
+public class SlowQueriesEndpoint {
+
+    @ReadOperation
+    public JsonNode slowQueries() {
+        return QueryLog.getSlowQueries();
+    }
+}
@@ -1,10 +1,12 @@
 package no.ssb.subsetsservice.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import no.ssb.subsetsservice.entity.Field;
+import no.ssb.subsetsservice.service.ConnectionPool;
 import no.ssb.subsetsservice.service.DatabaseFactory;
 import no.ssb.subsetsservice.service.DatabaseInterface;
 import no.ssb.subsetsservice.service.MetricsService;
@@ -13,12 +15,18 @@ import no.ssb.subsetsservice.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.springframework.http.HttpStatus.*;
@@ -32,6 +40,15 @@ public class SubsetsControllerV2 {
     private static SubsetsControllerV2 instance;
     private static final Logger LOG = LoggerFactory.getLogger(SubsetsControllerV2.class);
     private static String BACKEND_TYPE; // Env BACKEND_TYPE must be passed. See BackendFactory for possible values
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_IMPORT_ITEMS = 10000;
+    private static final int IMPORT_PARALLELISM = getImportParallelism();
+    // Shared by all imports, so that concurrent imports together use at most IMPORT_PARALLELISM threads
+    private static final ExecutorService IMPORT_EXECUTOR = Executors.newFixedThreadPool(IMPORT_PARALLELISM, runnable -> {
+        Thread thread = new Thread(runnable, "subsets-import");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Autowired
     public SubsetsControllerV2(MetricsService metricsService) {
@@ -61,35 +78,72 @@ public class SubsetsControllerV2 {
         return System.getenv().getOrDefault("BACKEND_TYPE", DatabaseFactory.DEFAULT_DATABASE);
     }
 
+    public ResponseEntity<JsonNode> getSubsetSeries(boolean includeDrafts, boolean includeFuture, boolean includeExpired) {
+        return getSubsetSeries(includeDrafts, includeFuture, includeExpired, null, null);
+    }
+
+    /**
+     * Get all series, or one page of them when 'limit' is given.
+     * Pages are ordered by series id. The 'Link' header of a full page points to the next page, which starts after the last series id of this page.
+     */
     @GetMapping("/v2/subsets")
     public ResponseEntity<JsonNode> getSubsetSeries(
             @RequestParam(defaultValue = "true") boolean includeDrafts,
             @RequestParam(defaultValue = "true") boolean includeFuture,
-            @RequestParam(defaultValue = "true") boolean includeExpired) {
+            @RequestParam(defaultValue = "true") boolean includeExpired,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String after) {
         metricsService.incrementGETCounter();
 
-        LOG.info("GET all subsets includeDrafts=" + includeDrafts + " includeFuture=" + includeFuture + " includeExpired=" + includeExpired);
-        ResponseEntity<JsonNode> subsetSeriesRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getAllSubsetSeries();
+        LOG.info("GET all subsets includeDrafts=" + includeDrafts + " includeFuture=" + includeFuture + " includeExpired=" + includeExpired + " limit=" + limit + " after=" + after);
+        ResponseEntity<JsonNode> pageParametersRE = validatePageParameters(limit, after);
+        if (pageParametersRE != null)
+            return pageParametersRE;
+        ResponseEntity<JsonNode> subsetSeriesRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getSubsetSeriesPage(includeDrafts, includeFuture, includeExpired, limit, after);
+        if (!subsetSeriesRE.getStatusCode().is2xxSuccessful())
+            return resolveNonOKDatabaseResponse("get subset series page from database", subsetSeriesRE);
         ArrayNode subsetSeriesArray = subsetSeriesRE.getBody().deepCopy();
-        String nowDate = Utils.getNowDate();
+        HttpHeaders headers = new HttpHeaders();
+        if (limit != null && subsetSeriesArray.size() == limit) {
+            String lastSeriesID = subsetSeriesArray.get(subsetSeriesArray.size() - 1).get(Field.ID).asText();
+            headers.add(HttpHeaders.LINK, nextPageLink(UriComponentsBuilder.fromPath("/v2/subsets")
+                    .queryParam("includeDrafts", includeDrafts)
+                    .queryParam("includeFuture", includeFuture)
+                    .queryParam("includeExpired", includeExpired), limit, lastSeriesID));
+        }
         for (int i = 0; i < subsetSeriesArray.size(); i++) {
             subsetSeriesArray.set(i, addLinksToSeries(subsetSeriesArray.get(i))); //FIXME: performance wise it would be best not to do this
         }
-        if (!includeDrafts || !includeFuture || !includeExpired) {
-            for (int i = subsetSeriesArray.size() - 1; i >= 0; i--) {
-                JsonNode subsetSeries = subsetSeriesArray.get(i);
-                if (!includeDrafts && subsetSeries.get(Field.ADMINISTRATIVE_STATUS).equals(Field.DRAFT))
-                    subsetSeriesArray.remove(i);
-                else if (!includeFuture && subsetSeries.get(Field.VALID_FROM).asText().compareTo(nowDate) > 0)
-                    subsetSeriesArray.remove(i);
-                else if (!includeExpired
-                        && subsetSeries.has(Field.VALID_UNTIL)
-                        && !subsetSeries.get(Field.VALID_UNTIL).asText().isBlank()
-                        && subsetSeries.get(Field.VALID_UNTIL).asText().compareTo(nowDate) < 0)
-                    subsetSeriesArray.remove(i);
-            }
-        }
-        return new ResponseEntity<>(subsetSeriesArray, OK);
+        return new ResponseEntity<>(subsetSeriesArray, headers, OK);
+    }
+
+    /**
+     * @return a 400 response if the page parameters are not valid, null if they are
+     */
+    private static ResponseEntity<JsonNode> validatePageParameters(Integer limit, String after) {
+        if (limit != null && (limit < 1 || limit > MAX_PAGE_SIZE))
+            return ErrorHandler.newHttpError("'limit' must be between 1 and " + MAX_PAGE_SIZE, BAD_REQUEST, LOG);
+        if (after != null && !Utils.isClean(after))
+            return ErrorHandler.newHttpError("'after' must be a series or version id", BAD_REQUEST, LOG);
+        return null;
+    }
+
+    private static String nextPageLink(UriComponentsBuilder query, int limit, String after) {
+        return "<" + query.queryParam("limit", limit).queryParam("after", after).toUriString() + ">; rel=\"next\"";
+    }
+
+    /**
+     * Same response as getSubsetSeries without paging, but the stored series json is streamed to the client row by row.
+     */
+    @GetMapping(value = "/v2/subsets", params = "stream=true")
+    public ResponseEntity<JsonNode> streamSubsetSeries(
+            @RequestParam(defaultValue = "true") boolean includeDrafts,
+            @RequestParam(defaultValue = "true") boolean includeFuture,
+            @RequestParam(defaultValue = "true") boolean includeExpired,
+            HttpServletResponse response) {
+        metricsService.incrementGETCounter();
+        LOG.info("GET all subsets includeDrafts=" + includeDrafts + " includeFuture=" + includeFuture + " includeExpired=" + includeExpired + " streamed");
+        return streamedResponse(DatabaseFactory.getDatabase(BACKEND_TYPE).streamSubsetSeries(includeDrafts, includeFuture, includeExpired, response), response);
     }
 
     /**
@@ -103,6 +157,38 @@ public class SubsetsControllerV2 {
         metricsService.incrementPOSTCounter();
         LOG.info("POST subset series received. Checking body . . .");
 
+        ResponseEntity<JsonNode> prepareSeriesRE = prepareNewSeries(subsetSeriesJson, ignoreSuperfluousFields);
+        if (!prepareSeriesRE.getStatusCode().is2xxSuccessful())
+            return prepareSeriesRE;
+        ObjectNode editableSubsetSeries = (ObjectNode) prepareSeriesRE.getBody();
+        String id = editableSubsetSeries.get(Field.ID).textValue();
+
+        DatabaseInterface backend = DatabaseFactory.getDatabase(BACKEND_TYPE);
+        boolean subsetExists = backend.existsSubsetSeriesWithID(id);
+        if (subsetExists)
+            return ErrorHandler.newHttpError(
+                    "POST: Can not create subset. ID already in use",
+                    BAD_REQUEST,
+                    LOG);
+        LOG.info("Subset with id " + id + " does not exist from before");
+
+        LOG.debug("POSTING subset series with id " + id + " to database");
+        ResponseEntity<JsonNode> responseEntity = DatabaseFactory.getDatabase(BACKEND_TYPE).createSubsetSeries(editableSubsetSeries, id);
+        if (responseEntity.getStatusCode().equals(CREATED)) {
+            LOG.info("Series with id " + id + " was successfully created in databsse");
+            responseEntity = new ResponseEntity<>(editableSubsetSeries, CREATED);
+        } else {
+            LOG.error("Subset series with id " + id + " was NOT CREATED in database! Returning database responseEntity . . .");
+        }
+        return responseEntity;
+    }
+
+    /**
+     * Check a new series and add the fields that are set by the server. Does not check if the id is in use.
+     *
+     * @return the series ready to be stored with status OK, or an error response
+     */
+    private ResponseEntity<JsonNode> prepareNewSeries(JsonNode subsetSeriesJson, boolean ignoreSuperfluousFields) {
         if (subsetSeriesJson.isNull() || subsetSeriesJson.isEmpty())
             return ErrorHandler.newHttpError("POST subset series body was empty. Must be a subset series object.", BAD_REQUEST, LOG);
         if (subsetSeriesJson.isArray())
@@ -117,16 +203,8 @@ public class SubsetsControllerV2 {
         String id = editableSubsetSeries.get(Field.ID).textValue();
         LOG.info("POST subset series with id " + id);
 
-        if (!Utils.isClean(id))
+        if (id == null || !Utils.isClean(id))
             return ErrorHandler.illegalID(LOG);
-        DatabaseInterface backend = DatabaseFactory.getDatabase(BACKEND_TYPE);
-        boolean subsetExists = backend.existsSubsetSeriesWithID(id);
-        if (subsetExists)
-            return ErrorHandler.newHttpError(
-                    "POST: Can not create subset. ID already in use",
-                    BAD_REQUEST,
-                    LOG);
-        LOG.info("Subset with id " + id + " does not exist from before");
 
         editableSubsetSeries.put(Field.LAST_MODIFIED, Utils.getNowISO());
         editableSubsetSeries.put(Field.CREATED_DATE, Utils.getNowDate());
@@ -140,16 +218,250 @@ public class SubsetsControllerV2 {
         ResponseEntity<JsonNode> seriesSchemaValidationRE = validateSeries(editableSubsetSeries);
         if (!seriesSchemaValidationRE.getStatusCode().is2xxSuccessful())
             return seriesSchemaValidationRE;
+        return new ResponseEntity<>(editableSubsetSeries, OK);
+    }
 
-        LOG.debug("POSTING subset series with id " + id + " to database");
-        ResponseEntity<JsonNode> responseEntity = DatabaseFactory.getDatabase(BACKEND_TYPE).createSubsetSeries(editableSubsetSeries, id);
-        if (responseEntity.getStatusCode().equals(CREATED)) {
-            LOG.info("Series with id " + id + " was successfully created in databsse");
-            responseEntity = new ResponseEntity<>(editableSubsetSeries, CREATED);
-        } else {
-            LOG.error("Subset series with id " + id + " was NOT CREATED in database! Returning database responseEntity . . .");
+    /**
+     * Create many series and versions in one request, for migrations and for seeding environments.
+     * The body is a json array, or newline delimited json (NDJSON). Items with a "subsetId" are versions of that series, other items are series.
+     * Versions keep their "versionId" if they have one.
+     * A published version is checked against the other published versions of its series, stored or earlier in the import, with the same rules as postSubsetVersion,
+     * and a new latest version sets the validUntil of an open-ended previous latest version to its own validFrom, in the same write as the new version.
+     * Items are checked in parallel on the shared import executor, sharing KLASS responses, and written in batches.
+     * The response has one result per item and the throughput, with status 201 if all items were created and 207 otherwise.
+     */
+    @PostMapping(value = "/auth/v2/subsets/import", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<JsonNode> importSubsets(@RequestParam(defaultValue = "false") boolean ignoreSuperfluousFields, HttpServletRequest request) {
+        metricsService.incrementPOSTCounter();
+        long startNanos = System.nanoTime();
+
+        List<JsonNode> items = new ArrayList<>();
+        // Reads the elements of a root level array, or the root level values one after another
+        try (MappingIterator<JsonNode> itemIterator = new ObjectMapper().readerFor(JsonNode.class).readValues(request.getInputStream())) {
+            while (itemIterator.hasNextValue()) {
+                if (items.size() == MAX_IMPORT_ITEMS)
+                    return ErrorHandler.newHttpError("An import can have at most " + MAX_IMPORT_ITEMS + " items", PAYLOAD_TOO_LARGE, LOG);
+                items.add(itemIterator.nextValue());
+            }
+        } catch (IOException | RuntimeException e) {
+            return ErrorHandler.newHttpError("Import body must be a json array or newline delimited json. " + e.getMessage(), BAD_REQUEST, LOG);
         }
-        return responseEntity;
+        LOG.info("POST import of " + items.size() + " items");
+        long parsedNanos = System.nanoTime();
+
+        Map<String, ResponseEntity<JsonNode>> klassClassificationsMap = new ConcurrentHashMap<>();
+        Map<String, ResponseEntity<JsonNode>> klassVersionsMap = new ConcurrentHashMap<>();
+        List<ResponseEntity<JsonNode>> preparedItems = new ArrayList<>(items.size());
+        List<Future<ResponseEntity<JsonNode>>> futures = new ArrayList<>(items.size());
+        try {
+            for (JsonNode item : items)
+                futures.add(IMPORT_EXECUTOR.submit(() -> prepareImportItem(item, ignoreSuperfluousFields, klassClassificationsMap, klassVersionsMap)));
+            for (Future<ResponseEntity<JsonNode>> future : futures)
+                preparedItems.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            return ErrorHandler.newHttpError("Import was interrupted", INTERNAL_SERVER_ERROR, LOG);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            return ErrorHandler.newHttpError("Import failed while checking items: " + e.getCause(), INTERNAL_SERVER_ERROR, LOG);
+        }
+
+        // Checks that depend on the order of the items, or on what is stored, are done one item at a time
+        ObjectNode[] results = new ObjectNode[items.size()];
+        List<JsonNode> seriesToWrite = new ArrayList<>();
+        List<Integer> seriesIndexes = new ArrayList<>();
+        List<JsonNode> versionsToWrite = new ArrayList<>();
+        List<JsonNode> closedVersions = new ArrayList<>();
+        List<Integer> versionIndexes = new ArrayList<>();
+        Set<String> importedSeriesIDs = new HashSet<>();
+        Map<String, Boolean> storedSeriesExists = new HashMap<>();
+        Map<String, ResponseEntity<JsonNode>> publishedVersionsBySeries = new HashMap<>();
+        Set<String> importedVersionUIDs = new HashSet<>();
+        DatabaseInterface backend = DatabaseFactory.getDatabase(BACKEND_TYPE);
+        for (int i = 0; i < items.size(); i++) {
+            ResponseEntity<JsonNode> preparedRE = preparedItems.get(i);
+            boolean isVersion = isImportedVersion(items.get(i));
+            String type = isVersion ? "version" : "series";
+            if (!preparedRE.getStatusCode().is2xxSuccessful()) {
+                results[i] = importItemResult(i, type, items.get(i).path(isVersion ? Field.VERSION_ID : Field.ID).asText(null), preparedRE.getStatusCode(), errorMessage(preparedRE));
+                continue;
+            }
+            JsonNode item = preparedRE.getBody();
+            if (isVersion) {
+                String seriesID = item.get(Field.SUBSET_ID).asText();
+                String versionID = item.get(Field.VERSION_ID).asText();
+                boolean seriesExists = importedSeriesIDs.contains(seriesID) || storedSeriesExists.computeIfAbsent(seriesID, backend::existsSubsetSeriesWithID);
+                if (!seriesExists) {
+                    results[i] = importItemResult(i, type, versionID, BAD_REQUEST, "Series " + seriesID + " does not exist, and is not earlier in the import");
+                    continue;
+                }
+                JsonNode closedVersion = null;
+                if (item.get(Field.ADMINISTRATIVE_STATUS).asText().equals(Field.OPEN)) {
+                    // A failed read fails every published version of the series, since they can not be checked
+                    ResponseEntity<JsonNode> publishedVersionsRE = publishedVersionsBySeries.computeIfAbsent(seriesID, this::getPublishedVersions);
+                    if (!publishedVersionsRE.getStatusCode().is2xxSuccessful()) {
+                        results[i] = importItemResult(i, type, versionID, publishedVersionsRE.getStatusCode(), errorMessage(publishedVersionsRE));
+                        continue;
+                    }
+                    ArrayNode publishedVersions = (ArrayNode) publishedVersionsRE.getBody();
+                    ResponseEntity<JsonNode> isOverlappingValidityRE = isOverlappingValidity(item, publishedVersions);
+                    if (!isOverlappingValidityRE.getStatusCode().is2xxSuccessful()) {
+                        results[i] = importItemResult(i, type, versionID, BAD_REQUEST, ErrorHandler.OVERLAPPING_VALIDITY);
+                        continue;
+                    }
+                    // As in updateLatestPublishedValidUntil, but the previous latest version may itself be earlier in the import
+                    JsonNode isOverlapREBody = isOverlappingValidityRE.getBody();
+                    JsonNode latestPublishedVersion = isOverlapREBody.get("latestPublishedVersion");
+                    if (isOverlapREBody.get("existOtherPublishedVersions").asBoolean() && isOverlapREBody.get("isNewLatestVersion").asBoolean()
+                            && latestPublishedVersion.isObject() && !latestPublishedVersion.hasNonNull(Field.VALID_UNTIL)) {
+                        ((ObjectNode) latestPublishedVersion).put(Field.VALID_UNTIL, item.get(Field.VALID_FROM).asText());
+                        // A stored version is closed by the backend when this version is written, so that it stays open if the write fails
+                        if (!importedVersionUIDs.contains(seriesID + "_" + latestPublishedVersion.get(Field.VERSION_ID).asText()))
+                            closedVersion = latestPublishedVersion;
+                    }
+                    publishedVersions.add(item);
+                }
+                importedVersionUIDs.add(seriesID + "_" + versionID);
+                versionsToWrite.add(item);
+                closedVersions.add(closedVersion);
+                versionIndexes.add(i);
+            } else {
+                String seriesID = item.get(Field.ID).asText();
+                if (!importedSeriesIDs.add(seriesID)) {
+                    results[i] = importItemResult(i, type, seriesID, CONFLICT, "Series " + seriesID + " is earlier in the import");
+                    continue;
+                }
+                seriesToWrite.add(item);
+                seriesIndexes.add(i);
+            }
+        }
+        long checkedNanos = System.nanoTime();
+
+        ResponseEntity<JsonNode> importRE = backend.importSeriesAndVersions(seriesToWrite, versionsToWrite, closedVersions);
+        boolean isImportFailed = !importRE.getStatusCode().is2xxSuccessful();
+        // A failed import still reports the items it handled before the failure, which may have been written
+        JsonNode writeResults = isImportFailed ? importRE.getBody() == null ? null : importRE.getBody().get("items") : importRE.getBody();
+        if (isImportFailed && (writeResults == null || writeResults.isEmpty()))
+            return resolveNonOKDatabaseResponse("import of " + seriesToWrite.size() + " series and " + versionsToWrite.size() + " versions", importRE);
+        for (int w = 0; w < seriesToWrite.size() + versionsToWrite.size(); w++) {
+            boolean isVersion = w >= seriesToWrite.size();
+            int i = isVersion ? versionIndexes.get(w - seriesToWrite.size()) : seriesIndexes.get(w);
+            String type = isVersion ? "version" : "series";
+            if (w < writeResults.size()) {
+                JsonNode writeResult = writeResults.get(w);
+                results[i] = importItemResult(i, type, writeResult.get(Field.ID).asText(),
+                        HttpStatus.valueOf(writeResult.get("status").asInt()), writeResult.path("message").asText(null));
+            } else {
+                JsonNode item = isVersion ? versionsToWrite.get(w - seriesToWrite.size()) : seriesToWrite.get(w);
+                String id = isVersion ? item.get(Field.SUBSET_ID).asText() + "_" + item.get(Field.VERSION_ID).asText() : item.get(Field.ID).asText();
+                results[i] = importItemResult(i, type, id, importRE.getStatusCode(), errorMessage(importRE));
+            }
+        }
+        long writtenNanos = System.nanoTime();
+
+        ObjectNode body = new ObjectMapper().createObjectNode();
+        int created = 0;
+        ArrayNode resultsArrayNode = body.putArray("items");
+        for (ObjectNode result : results) {
+            resultsArrayNode.add(result);
+            if (result.get("status").asInt() == CREATED.value())
+                created++;
+        }
+        double totalSeconds = (writtenNanos - startNanos) / 1_000_000_000.0;
+        body.put("total", items.size());
+        body.put("created", created);
+        body.put("failed", items.size() - created);
+        ObjectNode durations = body.putObject("durationMillis");
+        durations.put("parse", (parsedNanos - startNanos) / 1_000_000);
+        durations.put("validation", (checkedNanos - parsedNanos) / 1_000_000);
+        durations.put("write", (writtenNanos - checkedNanos) / 1_000_000);
+        durations.put("total", (writtenNanos - startNanos) / 1_000_000);
+        body.put("itemsPerSecond", totalSeconds > 0 ? Math.round(items.size() / totalSeconds) : items.size());
+        LOG.info("Import of " + items.size() + " items created " + created + " in " + durations.get("total").asLong() + " ms");
+        return new ResponseEntity<>(body, created == items.size() ? CREATED : MULTI_STATUS);
+    }
+
+    private static boolean isImportedVersion(JsonNode item) {
+        return item.has(Field.SUBSET_ID);
+    }
+
+    /**
+     * Runs on the import executor. Exceptions are turned into an error for this item only.
+     */
+    private ResponseEntity<JsonNode> prepareImportItem(JsonNode item, boolean ignoreSuperfluousFields,
+                                                       Map<String, ResponseEntity<JsonNode>> klassClassificationsMap,
+                                                       Map<String, ResponseEntity<JsonNode>> klassVersionsMap) {
+        try {
+            if (!item.isObject())
+                return ErrorHandler.newHttpError("Import item must be a series or a version object", BAD_REQUEST, LOG);
+            if (!isImportedVersion(item))
+                return prepareNewSeries(item, ignoreSuperfluousFields);
+            String seriesID = item.get(Field.SUBSET_ID).asText();
+            if (!Utils.isClean(seriesID))
+                return ErrorHandler.illegalID(LOG);
+            String versionID = item.hasNonNull(Field.VERSION_ID) ? item.get(Field.VERSION_ID).asText() : UUID.randomUUID().toString();
+            if (!Utils.isClean(versionID))
+                return ErrorHandler.newHttpError("Illegal version ID", BAD_REQUEST, LOG);
+            return prepareNewVersion(seriesID, versionID, item, ignoreSuperfluousFields, klassClassificationsMap, klassVersionsMap);
+        } catch (RuntimeException e) {
+            return ErrorHandler.newHttpError("Import item could not be checked: " + e, BAD_REQUEST, LOG);
+        }
+    }
+
+    /**
+     * The published versions of a stored series, in an array that the import adds its own published versions to.
+     */
+    private ResponseEntity<JsonNode> getPublishedVersions(String seriesID) {
+        ResponseEntity<JsonNode> publishedVersionsRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionsMetadataBySeriesID(seriesID, false);
+        if (!publishedVersionsRE.getStatusCode().is2xxSuccessful())
+            return publishedVersionsRE;
+        if (!publishedVersionsRE.hasBody() || !publishedVersionsRE.getBody().isArray())
+            return ErrorHandler.newHttpError("The published versions of series " + seriesID + " could not be read", INTERNAL_SERVER_ERROR, LOG);
+        return new ResponseEntity<>(publishedVersionsRE.getBody().deepCopy(), OK);
+    }
+
+    private static String errorMessage(ResponseEntity<JsonNode> errorRE) {
+        if (!errorRE.hasBody())
+            return errorRE.getStatusCode().getReasonPhrase();
+        return errorRE.getBody().has("message") ? errorRE.getBody().get("message").asText() : errorRE.getBody().toString();
+    }
+
+    private static ObjectNode importItemResult(int index, String type, String id, HttpStatus status, String message) {
+        ObjectNode result = new ObjectMapper().createObjectNode();
+        result.put("index", index);
+        result.put("type", type);
+        result.put(Field.ID, id);
+        result.put("status", status.value());
+        if (message != null)
+            result.put("message", message);
+        return result;
+    }
+
+    private static int getImportParallelism() {
+        return Math.max(1, ConnectionPool.getIntEnv("IMPORT_PARALLELISM", 8));
+    }
+
+    /**
+     * Find the subset versions that contain a code of a classification, optionally only those valid on a date.
+     */
+    @GetMapping("/v2/subsets/byCode")
+    public ResponseEntity<JsonNode> getSubsetVersionsByCode(@RequestParam String classificationId,
+                                                           @RequestParam String code,
+                                                           @RequestParam(required = false) String date,
+                                                           @RequestParam(defaultValue = "false") boolean includeDrafts) {
+        metricsService.incrementGETCounter();
+        LOG.info("GET subset versions containing code " + code + " of classification " + classificationId + " date=" + date + " includeDrafts=" + includeDrafts);
+        if (date != null && !Utils.isYearMonthDay(date))
+            return ErrorHandler.newHttpError("date must be on the form YYYY-MM-DD", BAD_REQUEST, LOG);
+
+        ResponseEntity<JsonNode> versionsRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionsByCode(classificationId, code, date, includeDrafts);
+        if (!versionsRE.getStatusCode().is2xxSuccessful())
+            return resolveNonOKDatabaseResponse("get subset versions by code from database", versionsRE);
+        ArrayNode versions = versionsRE.getBody().deepCopy();
+        for (JsonNode version : versions)
+            ((ObjectNode) version).set(Field._LINKS, Utils.getSubsetVersionLinkNode(version));
+        return new ResponseEntity<>(versions, OK);
     }
 
     @GetMapping("/v2/subsets/{id}")
@@ -162,24 +474,47 @@ public class SubsetsControllerV2 {
         if (!Utils.isClean(id))
             return ErrorHandler.illegalID(LOG);
 
+        if (includeFullVersions) {
+            LOG.debug("Including full versions");
+            ResponseEntity<JsonNode> seriesWithVersionsRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getSubsetSeriesWithVersions(id, language);
+            if (!seriesWithVersionsRE.getStatusCode().equals(OK))
+                return seriesWithVersionsRE;
+            ObjectNode seriesWithVersions = (ObjectNode) seriesWithVersionsRE.getBody();
+            ArrayNode versions = (ArrayNode) seriesWithVersions.get(Field.VERSIONS);
+            seriesWithVersions.set(Field._LINKS, Utils.getLinkSelfObject(Utils.getSeriesLink(id)));
+            for (int i = 0; i < versions.size(); i++) {
+                versions.set(i, Utils.addLinksToSubsetVersion(versions.get(i)));
+            }
+            // The revision of the series does not change when one of its versions is edited, so it can not be the ETag of this body
+            return new ResponseEntity<>(seriesWithVersions, OK);
+        }
+
         ResponseEntity<JsonNode> subsetSeriesByIDRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getSubsetSeries(id);
         HttpStatus status = subsetSeriesByIDRE.getStatusCode();
         LOG.debug("Call to backend to get a subset series with id " + id + " returned " + status);
         if (status.equals(OK)) {
             ObjectNode series = addLinksToSeries(subsetSeriesByIDRE.getBody());
-            if (includeFullVersions) {
-                LOG.debug("Including full versions");
-                ResponseEntity<JsonNode> versionsRE = getVersions(id, true, true, language);
-                if (versionsRE.getStatusCode().is2xxSuccessful())
-                    series.set(Field.VERSIONS, versionsRE.getBody());
-                else
-                    return resolveNonOKDatabaseResponse("GET request to database for all versions of subset with id " + id + " ", versionsRE);
-            }
-            return new ResponseEntity<>(series, OK);
+            return new ResponseEntity<>(series, eTagHeaders(subsetSeriesByIDRE), OK);
         } else
             return subsetSeriesByIDRE;
     }
 
+    /**
+     * Same response as getSubsetSeriesByID with full versions, but the series and its versions are streamed to the client as they are read.
+     */
+    @GetMapping(value = "/v2/subsets/{id}", params = {"stream=true", "includeFullVersions=true"})
+    public ResponseEntity<JsonNode> streamSubsetSeriesWithVersions(@PathVariable("id") String id,
+                                                                   @RequestParam(defaultValue = "all") String language,
+                                                                   HttpServletResponse response) {
+        metricsService.incrementGETCounter();
+        LOG.info("GET subset series with id " + id + " with full versions, streamed");
+
+        if (!Utils.isClean(id))
+            return ErrorHandler.illegalID(LOG);
+
+        return streamedResponse(DatabaseFactory.getDatabase(BACKEND_TYPE).streamSubsetSeriesWithVersions(id, language, response), response);
+    }
+
     /**
      * Use this to make edits to the ClassificationSubsetSeries, except the versions array.
      * This is the information that is in common for all the versions.
@@ -191,8 +526,20 @@ public class SubsetsControllerV2 {
      * @param newEditionOfSeries
      * @return
      */
+    public ResponseEntity<JsonNode> putSubsetSeries(String seriesId, boolean ignoreSuperfluousFields, JsonNode newEditionOfSeries) {
+        return putSubsetSeries(seriesId, ignoreSuperfluousFields, null, newEditionOfSeries);
+    }
+
+    /**
+     * The series is only written if it still has the revision it had when it was read for the edit.
+     * With an If-Match header, it must also match the ETag of the stored series, otherwise 412 is returned.
+     * Without one, 409 is returned if another request changed the series in the meantime.
+     */
     @PutMapping(value = "/auth/v2/subsets/{id}", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<JsonNode> putSubsetSeries(@PathVariable("id") String seriesId, @RequestParam(defaultValue = "false") boolean ignoreSuperfluousFields, @RequestBody JsonNode newEditionOfSeries) {
+    public ResponseEntity<JsonNode> putSubsetSeries(@PathVariable("id") String seriesId,
+                                                    @RequestParam(defaultValue = "false") boolean ignoreSuperfluousFields,
+                                                    @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                                                    @RequestBody JsonNode newEditionOfSeries) {
         metricsService.incrementPUTCounter();
         LOG.info("PUT subset series with id " + seriesId);
 
@@ -214,6 +561,10 @@ public class SubsetsControllerV2 {
             return resolveNonOKDatabaseResponse("GET from database subsetSeries w id '" + seriesId + "'", getSeriesRE);
         }
 
+        String storedETag = getSeriesRE.getHeaders().getETag();
+        if (ifMatch != null && !Utils.ifMatch(ifMatch, storedETag))
+            return ErrorHandler.newHttpError("If-Match " + ifMatch + " does not match the ETag " + storedETag + " of subset series " + seriesId, PRECONDITION_FAILED, LOG);
+
         ObjectNode currentLatestEditionOfSeries = getSeriesRE.getBody().deepCopy();
         currentLatestEditionOfSeries.remove(Field._LINKS);
         ObjectNode editableNewEditionOfSeries = newEditionOfSeries.deepCopy();
@@ -254,9 +605,26 @@ public class SubsetsControllerV2 {
                     LOG);
         }
 
-        ResponseEntity<JsonNode> responseEntity = DatabaseFactory.getDatabase(BACKEND_TYPE).editSeries(editableNewEditionOfSeries, seriesId);
+        // Only the fields that differ from the stored series are written, so the versions array is never rewritten
+        ObjectNode changedFields = new ObjectMapper().createObjectNode();
+        Iterator<Map.Entry<String, JsonNode>> newFields = editableNewEditionOfSeries.fields();
+        while (newFields.hasNext()) {
+            Map.Entry<String, JsonNode> field = newFields.next();
+            if (!field.getValue().equals(currentLatestEditionOfSeries.get(field.getKey())))
+                changedFields.set(field.getKey(), field.getValue());
+        }
+        List<String> removedFields = new ArrayList<>();
+        Iterator<String> storedFieldNames = currentLatestEditionOfSeries.fieldNames();
+        while (storedFieldNames.hasNext()) {
+            String fieldName = storedFieldNames.next();
+            if (!editableNewEditionOfSeries.has(fieldName))
+                removedFields.add(fieldName);
+        }
+        ResponseEntity<JsonNode> responseEntity = DatabaseFactory.getDatabase(BACKEND_TYPE).patchSeries(seriesId, changedFields, removedFields, Utils.revisionOf(storedETag));
         if (responseEntity.getStatusCode().is2xxSuccessful()) {
-            responseEntity = new ResponseEntity<>(editableNewEditionOfSeries, OK);
+            responseEntity = new ResponseEntity<>(editableNewEditionOfSeries, eTagHeaders(responseEntity), OK);
+        } else if (responseEntity.getStatusCode().equals(PRECONDITION_FAILED) && ifMatch == null) {
+            return ErrorHandler.newHttpError("Subset series " + seriesId + " was changed by another request while this request was handled. Try again", CONFLICT, LOG);
         }
         return responseEntity;
     }
@@ -270,12 +638,22 @@ public class SubsetsControllerV2 {
      * @param putVersion
      * @return
      */
+    public ResponseEntity<JsonNode> putSubsetVersion(String seriesId, String versionUID, boolean ignoreSuperfluousFields, String language, JsonNode putVersion) {
+        return putSubsetVersion(seriesId, versionUID, ignoreSuperfluousFields, language, null, putVersion);
+    }
+
+    /**
+     * The version is only written if it still has the revision it had when it was read for the edit.
+     * With an If-Match header, it must also match the ETag of the stored version, otherwise 412 is returned.
+     * Without one, 409 is returned if another request changed the version in the meantime.
+     */
     @PutMapping(value = "/auth/v2/subsets/{seriesId}/versions/{versionUID}", consumes = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<JsonNode> putSubsetVersion(
             @PathVariable("seriesId") String seriesId,
             @PathVariable("versionUID") String versionUID,
             @RequestParam(defaultValue = "false") boolean ignoreSuperfluousFields,
             @RequestParam(defaultValue = "all") String language,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
             @RequestBody JsonNode putVersion) {
         LOG.info("PUT subset version of series " + seriesId + " with version id " + versionUID);
         if (!Utils.isClean(seriesId))
@@ -293,6 +671,9 @@ public class SubsetsControllerV2 {
         }
         if (!status.equals(OK))
             return getPreviousEditionOfVersion;
+        String storedETag = getPreviousEditionOfVersion.getHeaders().getETag();
+        if (ifMatch != null && !Utils.ifMatch(ifMatch, storedETag))
+            return ErrorHandler.newHttpError("If-Match " + ifMatch + " does not match the ETag " + storedETag + " of version " + versionUID + " of subset series " + seriesId, PRECONDITION_FAILED, LOG);
         JsonNode previousEditionOfVersion = getPreviousEditionOfVersion.getBody();
         ObjectNode editablePutVersion = putVersion.deepCopy();
 
@@ -301,7 +682,7 @@ public class SubsetsControllerV2 {
         editablePutVersion.put(Field.LAST_MODIFIED, Utils.getNowISO());
         editablePutVersion.set(Field.CREATED_DATE, previousEditionOfVersion.get(Field.CREATED_DATE));
         editablePutVersion = Utils.addCodeVersionsToAllCodesInVersion(editablePutVersion, LOG);
-        Map<String, ResponseEntity<JsonNode>> klassVersionsMap = getRelevantClassificationVersions(editablePutVersion);
+        Map<String, ResponseEntity<JsonNode>> klassVersionsMap = getRelevantClassificationVersions(editablePutVersion, new HashMap<>());
         editablePutVersion = addCodeNamesFromKlass(editablePutVersion, klassVersionsMap);
         editablePutVersion = addNotesFromKlass(editablePutVersion, klassVersionsMap);
 
@@ -325,16 +706,16 @@ public class SubsetsControllerV2 {
                         LOG);
         }
 
+        // Set when a draft is published, so the previous latest version can be closed once the publish has been written
+        ResponseEntity<JsonNode> isOverlappingValidityRE = null;
         // One set of rules for if the old version is DRAFT:
         if (wasDraftFromBefore) {
             if (isStatusOpen) {
                 // check validity period overlap with other OPEN versions
-                ResponseEntity<JsonNode> isOverlappingValidityRE = isOverlappingValidity(editablePutVersion);
+                isOverlappingValidityRE = isOverlappingValidity(editablePutVersion);
                 if (!isOverlappingValidityRE.getStatusCode().is2xxSuccessful()) {
                     return isOverlappingValidityRE;
                 }
-                ResponseEntity<JsonNode> updateLatestPublishedValidUntilRE = updateLatestPublishedValidUntil(isOverlappingValidityRE, editablePutVersion, seriesId);
-                //TODO: Handle if updateLatestPublishedValidUntilRE comes back non-200
             }
         } else { // Another stricter set of rules for if the old version is OPEN
             String oldCodeList = previousEditionOfVersion.get(Field.CODES).asText();
@@ -352,12 +733,19 @@ public class SubsetsControllerV2 {
             if (!compareFieldsRE.getStatusCode().is2xxSuccessful())
                 return compareFieldsRE;
         }
-        ResponseEntity<JsonNode> editVersionRE = DatabaseFactory.getDatabase(BACKEND_TYPE).editVersion(editablePutVersion);
+        ResponseEntity<JsonNode> editVersionRE = DatabaseFactory.getDatabase(BACKEND_TYPE).editVersion(editablePutVersion, Utils.revisionOf(storedETag));
         if (editVersionRE.getStatusCode().is2xxSuccessful()) {
-            editablePutVersion = setSingleLanguage(editablePutVersion, language);
+            if (isOverlappingValidityRE != null) {
+                ResponseEntity<JsonNode> updateLatestPublishedValidUntilRE = updateLatestPublishedValidUntil(isOverlappingValidityRE, editablePutVersion, seriesId);
+                if (!updateLatestPublishedValidUntilRE.getStatusCode().is2xxSuccessful())
+                    return updateLatestPublishedValidUntilRE;
+            }
+            editablePutVersion = Utils.setSingleLanguage(editablePutVersion, language);
             editablePutVersion = Utils.addLinksToSubsetVersion(editablePutVersion);
-            return new ResponseEntity<>(editablePutVersion, OK);
+            return new ResponseEntity<>(editablePutVersion, eTagHeaders(editVersionRE), OK);
         }
+        if (editVersionRE.getStatusCode().equals(PRECONDITION_FAILED) && ifMatch == null)
+            return ErrorHandler.newHttpError("Version " + versionUID + " of subset series " + seriesId + " was changed by another request while this request was handled. Try again", CONFLICT, LOG);
         return editVersionRE;
     }
 
@@ -377,12 +765,63 @@ public class SubsetsControllerV2 {
         if (version.isArray())
             return ErrorHandler.newHttpError("POST body was an array. Should be an object representing a single subset version.", BAD_REQUEST, LOG);
 
-        ResponseEntity<JsonNode> getSeriesByIDRE = getSubsetSeriesByID(seriesId, false, "all");
-        if (!getSeriesByIDRE.getStatusCode().equals(OK)) {
-            LOG.error("Attempt to get subset series by id '" + seriesId + "' returned a non-OK status code.");
-            return getSeriesByIDRE;
+        // Only the existence of the series is needed here, not the series document with all its versions
+        if (!DatabaseFactory.getDatabase(BACKEND_TYPE).existsSubsetSeriesWithID(seriesId))
+            return ErrorHandler.newHttpError("Series with id " + seriesId + " was not found", NOT_FOUND, LOG);
+
+        long startNanos = System.nanoTime();
+
+        String versionUUID = UUID.randomUUID().toString();
+        ResponseEntity<JsonNode> prepareVersionRE = prepareNewVersion(seriesId, versionUUID, version, ignoreSuperfluousFields, new HashMap<>(), new HashMap<>());
+        if (!prepareVersionRE.getStatusCode().is2xxSuccessful())
+            return prepareVersionRE;
+        ObjectNode editableVersion = (ObjectNode) prepareVersionRE.getBody();
+        version = null;
+        boolean isStatusOpen = editableVersion.get(Field.ADMINISTRATIVE_STATUS).asText().equals(Field.OPEN);
+        long preparedNanos = System.nanoTime();
+
+        if (isStatusOpen) {
+            ResponseEntity<JsonNode> isOverlappingValidityRE = isOverlappingValidity(editableVersion);
+            if (!isOverlappingValidityRE.getStatusCode().is2xxSuccessful())
+                return isOverlappingValidityRE;
+            ResponseEntity<JsonNode> updateLatestPublishedValidUntilRE = updateLatestPublishedValidUntil(isOverlappingValidityRE, editableVersion, seriesId);
+            //TODO: Check this response entity?
         }
 
+        long validationDoneNanos = System.nanoTime();
+        LOG.debug("Attempting to save version nr " + versionUUID + " of subset series " + seriesId + " to the database");
+        ResponseEntity<JsonNode> saveVersionInSeriesRE = DatabaseFactory.getDatabase(BACKEND_TYPE).saveVersionInSeries(seriesId, versionUUID, editableVersion);
+        LOG.info("POST version " + versionUUID + " of series " + seriesId + " latency: " +
+                "KLASS lookups and schema validation " + (preparedNanos - startNanos) / 1_000_000 + " ms, " +
+                "validity overlap check " + (validationDoneNanos - preparedNanos) / 1_000_000 + " ms, " +
+                "database save " + (System.nanoTime() - validationDoneNanos) / 1_000_000 + " ms");
+
+        if (saveVersionInSeriesRE.getStatusCode().equals(CREATED)) {
+            LOG.debug("Successfully saved version nr " + versionUUID + " of subset series " + seriesId + " to the database");
+            editableVersion = Utils.addLinksToSubsetVersion(editableVersion);
+            editableVersion = Utils.setSingleLanguage(editableVersion, language);
+            return new ResponseEntity<>(editableVersion, CREATED);
+        } else
+            return saveVersionInSeriesRE;
+    }
+
+    /**
+     * Check a new version of a series, and add the fields that are set by the server and the code names, notes and statistical units from KLASS.
+     * The KLASS maps are read before calling KLASS, and responses are added to them, so that they can be shared between versions.
+     * Validity overlap with other published versions of the series is not checked here.
+     *
+     * @param klassClassificationsMap KLASS classifications by classification id
+     * @param klassVersionsMap KLASS classification versions by request URL
+     * @return the version ready to be stored with status OK, or an error response
+     */
+    private ResponseEntity<JsonNode> prepareNewVersion(String seriesId, String versionUUID, JsonNode version, boolean ignoreSuperfluousFields,
+                                                       Map<String, ResponseEntity<JsonNode>> klassClassificationsMap,
+                                                       Map<String, ResponseEntity<JsonNode>> klassVersionsMap) {
+        if (version.isNull() || version.isEmpty())
+            return ErrorHandler.newHttpError("POST body was empty. Should contain a single subset version.", BAD_REQUEST, LOG);
+        if (version.isArray())
+            return ErrorHandler.newHttpError("POST body was an array. Should be an object representing a single subset version.", BAD_REQUEST, LOG);
+
         ObjectNode editableVersion = version.deepCopy();
         version = null;
 
@@ -395,17 +834,12 @@ public class SubsetsControllerV2 {
                     BAD_REQUEST,
                     LOG);
 
-        JsonNode series = getSeriesByIDRE.getBody();
-
-        int versionsSize = series.has(Field.VERSIONS) ? series.get(Field.VERSIONS).size() : 0;
-        LOG.debug("Amount of found versions in series " + seriesId + " before potentially adding new version: " + versionsSize);
-        String versionUUID = UUID.randomUUID().toString();
         editableVersion.put(Field.VERSION_ID, versionUUID);
         editableVersion.put(Field.SUBSET_ID, seriesId);
         editableVersion.put(Field.LAST_MODIFIED, Utils.getNowISO());
         editableVersion.put(Field.CREATED_DATE, Utils.getNowDate());
-        editableVersion = Utils.addCodeVersionsToAllCodesInVersion(editableVersion, LOG);
-        Map<String, ResponseEntity<JsonNode>> klassVersionsMap = getRelevantClassificationVersions(editableVersion);
+        editableVersion = Utils.addCodeVersionsToAllCodesInVersion(editableVersion, klassClassificationsMap, LOG);
+        getRelevantClassificationVersions(editableVersion, klassVersionsMap);
         LOG.debug("klassVersionsMap size: "+klassVersionsMap.size());
         editableVersion = addCodeNamesFromKlass(editableVersion, klassVersionsMap);
         editableVersion = addNotesFromKlass(editableVersion, klassVersionsMap);
@@ -428,7 +862,7 @@ public class SubsetsControllerV2 {
         LOG.debug("Getting statistical units for each individual classification used");
         Map<String, Boolean> statisticalUnitMap = new HashMap<>();
         classificationMap.keySet().forEach(k -> {
-            ResponseEntity<JsonNode> getClassificationRE = KlassURNResolver.getFrom(KlassURNResolver.makeKLASSClassificationURL(k));
+            ResponseEntity<JsonNode> getClassificationRE = getKlassClassification(k, klassClassificationsMap);
             if (getClassificationRE.getStatusCode().is2xxSuccessful()) {
                 JsonNode classification = getClassificationRE.getBody();
                 if (!classification.has(Field.STATISTICAL_UNITS))
@@ -451,24 +885,7 @@ public class SubsetsControllerV2 {
         editableVersion.set(Field.STATISTICAL_UNITS, versionStatisticalUnitsArrayNode);
         LOG.debug("statistical units array node of the new version of subset series " + seriesId + ": " + versionStatisticalUnitsArrayNode.toString());
 
-        // If status open, also edit the statisticalUnits of the series.
-        if (series.has(Field.STATISTICAL_UNITS)) {
-            ArrayNode seriesStatisticalUnits = (ArrayNode) series.get(Field.STATISTICAL_UNITS);
-            seriesStatisticalUnits.forEach(su -> statisticalUnitMap.put(su.asText(), true));
-        }
-
-        ArrayNode newSeriesStatisticalUnitsArrayNode = new ObjectMapper().createArrayNode();
-        statisticalUnitMap.forEach((k, v) -> newSeriesStatisticalUnitsArrayNode.add(k));
-        LOG.debug("statistical units array node of the subset series " + seriesId + " after the new version is added: " + newSeriesStatisticalUnitsArrayNode.toString());
-        ObjectNode editableSeries = series.deepCopy();
-        series = null;
-        editableSeries.set(Field.STATISTICAL_UNITS, newSeriesStatisticalUnitsArrayNode);
-        ResponseEntity<JsonNode> putSeriesRE = putSubsetSeries(seriesId, false, editableSeries);
-        if (!putSeriesRE.getStatusCode().is2xxSuccessful()) {
-            LOG.error("PUT series " + seriesId + " to update the statistical units array did not succeed. Status code " + putSeriesRE.getStatusCode());
-        } else {
-            LOG.debug("The series " + seriesId + " was successfully updated with a new statistical units array.");
-        }
+        // The statistical units of the version are merged into those of the series when the version is saved
 
         if (ignoreSuperfluousFields) {
             editableVersion = removeSuperfluousVersionFields(editableVersion);
@@ -477,30 +894,24 @@ public class SubsetsControllerV2 {
         ResponseEntity<JsonNode> versionSchemaValidationRE = validateVersion(editableVersion);
         if (!versionSchemaValidationRE.getStatusCode().is2xxSuccessful())
             return versionSchemaValidationRE;
+        return new ResponseEntity<>(editableVersion, OK);
+    }
 
-        if (isStatusOpen && versionsSize != 0) {
-            ResponseEntity<JsonNode> isOverlappingValidityRE = isOverlappingValidity(editableVersion);
-            if (!isOverlappingValidityRE.getStatusCode().is2xxSuccessful())
-                return isOverlappingValidityRE;
-            ResponseEntity<JsonNode> updateLatestPublishedValidUntilRE = updateLatestPublishedValidUntil(isOverlappingValidityRE, editableVersion, seriesId);
-            //TODO: Check this response entity?
+    private static ResponseEntity<JsonNode> getKlassClassification(String classificationID, Map<String, ResponseEntity<JsonNode>> klassClassificationsMap) {
+        ResponseEntity<JsonNode> classificationRE = klassClassificationsMap.get(classificationID);
+        if (classificationRE == null) {
+            classificationRE = KlassURNResolver.getFrom(KlassURNResolver.makeKLASSClassificationURL(classificationID));
+            if (classificationRE.getStatusCode().is2xxSuccessful())
+                klassClassificationsMap.put(classificationID, classificationRE);
         }
-
-        LOG.debug("Attempting to save version nr " + versionUUID + " of subset series " + seriesId + " to the database");
-        ResponseEntity<JsonNode> saveVersionInSeriesRE = DatabaseFactory.getDatabase(BACKEND_TYPE).saveVersionInSeries(seriesId, versionUUID, editableVersion);
-
-        if (saveVersionInSeriesRE.getStatusCode().equals(CREATED)) {
-            LOG.debug("Successfully saved version nr " + versionUUID + " of subset series " + seriesId + " to the database");
-            editableVersion = Utils.addLinksToSubsetVersion(editableVersion);
-            editableVersion = setSingleLanguage(editableVersion, language);
-            return new ResponseEntity<>(editableVersion, CREATED);
-        } else
-            return saveVersionInSeriesRE;
+        return classificationRE;
     }
 
-    private Map<String, ResponseEntity<JsonNode>> getRelevantClassificationVersions(JsonNode subsetVersion) {
+    /**
+     * Add the latest KLASS classification version of each code in every language to the klassVersionsMap, unless it is there already.
+     */
+    private Map<String, ResponseEntity<JsonNode>> getRelevantClassificationVersions(JsonNode subsetVersion, Map<String, ResponseEntity<JsonNode>> klassVersionsMap) {
         ArrayNode codesArrayNode = subsetVersion.get(Field.CODES).deepCopy();
-        Map<String, ResponseEntity<JsonNode>> klassVersionsMap = new HashMap<>();
         LOG.debug("GET relevant latest classification versions for (each of) the " + codesArrayNode.size() + " code(s) in the subset version, and store them in a Map");
         for (int i = 0; i < codesArrayNode.size(); i++) {
             LOG.debug("Getting latest classificationVersion containing code nr " + (i + 1) + "/" + codesArrayNode.size() + " in subset version.");
@@ -520,33 +931,68 @@ public class SubsetsControllerV2 {
         return klassVersionsMap;
     }
 
+    public ResponseEntity<JsonNode> getVersions(String id, boolean includeFuture, boolean includeDrafts, String language) {
+        return getVersions(id, includeFuture, includeDrafts, language, null, null);
+    }
+
+    /**
+     * Get all versions of a series, or one page of them when 'limit' is given.
+     * Versions are ordered by validFrom and then version id. The 'Link' header of a full page points to the next page.
+     */
     @GetMapping("/v2/subsets/{id}/versions")
     public ResponseEntity<JsonNode> getVersions(
             @PathVariable("id") String id,
             @RequestParam(defaultValue = "true") boolean includeFuture,
             @RequestParam(defaultValue = "true") boolean includeDrafts,
-            @RequestParam(defaultValue = "all") String language) {
+            @RequestParam(defaultValue = "all") String language,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String after) {
         metricsService.incrementGETCounter();
-        LOG.info("GET all versions of subset with id: " + id + " includeFuture: " + includeFuture + " includeDrafts: " + includeDrafts);
+        LOG.info("GET all versions of subset with id: " + id + " includeFuture: " + includeFuture + " includeDrafts: " + includeDrafts + " limit: " + limit + " after: " + after);
 
         if (!Utils.isClean(id))
             return ErrorHandler.illegalID(LOG);
+        ResponseEntity<JsonNode> pageParametersRE = validatePageParameters(limit, after);
+        if (pageParametersRE != null)
+            return pageParametersRE;
 
-        ResponseEntity<JsonNode> versions = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionsBySeriesID(id, includeFuture, includeDrafts);
+        String afterVersionUID = after == null ? null : toVersionUID(id, after); // The links give the versionId, the database the version uid
+        ResponseEntity<JsonNode> versions = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionsPageBySeriesID(id, includeFuture, includeDrafts, limit, afterVersionUID, language);
         if (!versions.getStatusCode().is2xxSuccessful())
             return versions;
         if (!versions.hasBody() || !versions.getBody().isArray())
             throw new Error("versions body was not a json array!");
+        if (after == null && versions.getBody().isEmpty())
+            return ErrorHandler.newHttpError("There were no versions for series ID " + id, NOT_FOUND, LOG);
+        HttpHeaders headers = new HttpHeaders();
+        if (limit != null && versions.getBody().size() == limit) {
+            String lastVersionID = versions.getBody().get(versions.getBody().size() - 1).get(Field.VERSION_ID).asText();
+            headers.add(HttpHeaders.LINK, nextPageLink(UriComponentsBuilder.fromPath(Utils.getSeriesLink(id) + "/versions")
+                    .queryParam("includeFuture", includeFuture)
+                    .queryParam("includeDrafts", includeDrafts)
+                    .queryParam("language", language), limit, lastVersionID));
+        }
         ArrayNode fullVersionsArrayNode = new ObjectMapper().createArrayNode();
         for (JsonNode jsonNode : versions.getBody()) {
-            ObjectNode node = Utils.addLinksToSubsetVersion(jsonNode);
-            if (!language.equals("all")) {
-                fullVersionsArrayNode.add(setSingleLanguage(node, language));
-            } else {
-                fullVersionsArrayNode.add(node);
-            }
+            fullVersionsArrayNode.add(Utils.addLinksToSubsetVersion(jsonNode));
         }
-        return new ResponseEntity<>(fullVersionsArrayNode, OK);
+        return new ResponseEntity<>(fullVersionsArrayNode, headers, OK);
+    }
+
+    @GetMapping(value = "/v2/subsets/{id}/versions", params = "stream=true")
+    public ResponseEntity<JsonNode> streamVersions(
+            @PathVariable("id") String id,
+            @RequestParam(defaultValue = "true") boolean includeFuture,
+            @RequestParam(defaultValue = "true") boolean includeDrafts,
+            @RequestParam(defaultValue = "all") String language,
+            HttpServletResponse response) {
+        metricsService.incrementGETCounter();
+        LOG.info("GET all versions of subset with id: " + id + " includeFuture: " + includeFuture + " includeDrafts: " + includeDrafts + " streamed");
+
+        if (!Utils.isClean(id))
+            return ErrorHandler.illegalID(LOG);
+
+        return streamedResponse(DatabaseFactory.getDatabase(BACKEND_TYPE).streamVersionsBySeriesID(id, includeFuture, includeDrafts, language, response), response);
     }
 
     /**
@@ -569,58 +1015,77 @@ public class SubsetsControllerV2 {
         if (!Utils.isClean(versionID))
             return ErrorHandler.newHttpError("Illegal version ID", BAD_REQUEST, LOG);
 
-        String[] splitUnderscore = versionID.split("_");
-        if (splitUnderscore.length < 2) {
-            String versionNr = splitUnderscore[0];
-            versionID = String.format("%s_%s", seriesID, versionNr);
-        }
-        ResponseEntity<JsonNode> versionByIdRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionByID(versionID);
+        versionID = toVersionUID(seriesID, versionID);
+        ResponseEntity<JsonNode> versionByIdRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionByID(versionID, language);
         HttpStatus status = versionByIdRE.getStatusCode();
         if (status.equals(NOT_FOUND))
             return versionByIdRE;
         if (!status.is2xxSuccessful())
             return resolveNonOKDatabaseResponse("get version of series '" + seriesID + "' from database by versionId '" + versionID + "' ", versionByIdRE);
-        ObjectNode versionJsonNode = versionByIdRE.getBody().deepCopy();
-        versionJsonNode = Utils.addLinksToSubsetVersion(versionJsonNode);
-        if (!language.equals("all")) {
-            versionJsonNode = setSingleLanguage(versionJsonNode, language);
-        }
-        return new ResponseEntity<>(versionJsonNode, OK);
+        ObjectNode versionJsonNode = Utils.addLinksToSubsetVersion(versionByIdRE.getBody());
+        return new ResponseEntity<>(versionJsonNode, eTagHeaders(versionByIdRE), OK);
     }
 
-    private ObjectNode setSingleLanguage(ObjectNode versionNode, String languageCode) {
-        ObjectNode versionNodeCopy = versionNode.deepCopy();
-        ArrayNode codes = versionNodeCopy.get(Field.CODES).deepCopy();
-        for (int i = 0; i < codes.size(); i++) {
-            ObjectNode code = codes.get(i).deepCopy();
-            ArrayNode nameMLTArray = code.get(Field.NAME).deepCopy();
-            for (JsonNode nameMLT : nameMLTArray) {
-                if (nameMLT.get("languageCode").asText().equals(languageCode)) {
-                    code.put(Field.NAME, nameMLT.get("languageText").asText());
-                    codes.set(i, code);
-                    break;
-                }
-            }
-            if (code.has(Field.NOTES)) {
-                ArrayNode notesMLTArrayCopy = code.get(Field.NOTES).deepCopy();
-                for (JsonNode noteMLT : notesMLTArrayCopy) {
-                    if (noteMLT.get(Field.LANGUAGE_CODE).asText().equals(languageCode)) {
-                        code.put(Field.NOTES, noteMLT.get(Field.LANGUAGE_TEXT).asText());
-                        codes.set(i, code);
-                        break;
-                    }
-                }
-            }
+    @GetMapping(value = "/v2/subsets/{id}/versions/{versionID}", params = "stream=true")
+    public ResponseEntity<JsonNode> streamVersion(
+            @PathVariable("id") String seriesID,
+            @PathVariable("versionID") String versionID,
+            @RequestParam(defaultValue = "all") String language,
+            HttpServletResponse response) {
+        metricsService.incrementGETCounter();
+        LOG.info("GET version " + versionID + " of subset with id " + seriesID + " streamed");
+
+        if (!Utils.isClean(seriesID))
+            return ErrorHandler.illegalID(LOG);
+        if (!Utils.isClean(versionID))
+            return ErrorHandler.newHttpError("Illegal version ID", BAD_REQUEST, LOG);
+
+        versionID = toVersionUID(seriesID, versionID);
+        ResponseEntity<JsonNode> streamRE = DatabaseFactory.getDatabase(BACKEND_TYPE).streamVersionByID(versionID, language, response);
+        HttpStatus status = streamRE.getStatusCode();
+        if (!status.is2xxSuccessful() && !status.equals(NOT_FOUND) && !response.isCommitted())
+            return resolveNonOKDatabaseResponse("stream version of series '" + seriesID + "' from database by versionId '" + versionID + "' ", streamRE);
+        return streamedResponse(streamRE, response);
+    }
+
+    /**
+     * Copies the ETag of a stored document from a database response, if it has one.
+     */
+    private static HttpHeaders eTagHeaders(ResponseEntity<JsonNode> databaseRE) {
+        HttpHeaders headers = new HttpHeaders();
+        String eTag = databaseRE.getHeaders().getETag();
+        if (eTag != null)
+            headers.setETag(eTag);
+        return headers;
+    }
+
+    /**
+     * A version id given as just the version number is expanded to the full version uid "{seriesID}_{versionNr}".
+     */
+    private static String toVersionUID(String seriesID, String versionID) {
+        String[] splitUnderscore = versionID.split("_");
+        if (splitUnderscore.length < 2) {
+            String versionNr = splitUnderscore[0];
+            return String.format("%s_%s", seriesID, versionNr);
         }
-        versionNodeCopy.set(Field.CODES, codes);
-        return versionNodeCopy;
+        return versionID;
+    }
+
+    /**
+     * When the database has already written the body to the response, returning null tells Spring the request is handled.
+     * Otherwise the error response entity from the database is returned as usual.
+     */
+    private static ResponseEntity<JsonNode> streamedResponse(ResponseEntity<JsonNode> streamRE, HttpServletResponse response) {
+        if (streamRE.getStatusCode().is2xxSuccessful() || response.isCommitted())
+            return null;
+        return streamRE;
     }
 
     /**
      * If no parameters are given, returns valid codes in last version.
      * If from and to parameters are given (DATES),
-     * returns a list of codes that are present in all the versions in the interval.
-     * In other words, returns the intersection of all the versions.
+     * returns a list of the distinct codes that are present in any of the versions valid in the interval.
+     * In other words, returns the union of the versions, computed by the database.
      *
      * @param id
      * @param from
@@ -647,21 +1112,14 @@ public class SubsetsControllerV2 {
 
         if (!isFromDate && !isToDate) {
             LOG.debug("getting all codes of the latest/current version of subset " + id);
-            ResponseEntity<JsonNode> versionsByIDRE = getVersions(id, includeDrafts, includeFuture, language);
-            JsonNode responseBodyJSON = versionsByIDRE.getBody();
-            if (!versionsByIDRE.getStatusCode().equals(OK))
-                return resolveNonOKDatabaseResponse("get versions of series with id " + id + " ", versionsByIDRE);
-            else {
-                if (responseBodyJSON == null) {
-                    return ErrorHandler.newHttpError("response body of getSubset with id " + id + " was null, so could not get codes.", INTERNAL_SERVER_ERROR, LOG);
-                }
-                String date = Utils.getNowDate();
-                ResponseEntity<JsonNode> codesAtRE = getSubsetCodesAt(id, date, includeFuture, includeDrafts, language);
-                if (!codesAtRE.getStatusCode().equals(OK))
-                    return resolveNonOKDatabaseResponse("GET codesAt " + date + " in series with id " + id + " ", codesAtRE);
-                ArrayNode codes = (ArrayNode) codesAtRE.getBody();
-                return new ResponseEntity<>(codes, OK);
-            }
+            String date = Utils.getNowDate();
+            ResponseEntity<JsonNode> codesAtRE = getSubsetCodesAt(id, date, includeFuture, includeDrafts, language);
+            if (codesAtRE.getStatusCode().equals(NOT_FOUND))
+                return codesAtRE;
+            if (!codesAtRE.getStatusCode().equals(OK))
+                return resolveNonOKDatabaseResponse("GET codesAt " + date + " in series with id " + id + " ", codesAtRE);
+            ArrayNode codes = (ArrayNode) codesAtRE.getBody();
+            return new ResponseEntity<>(codes, OK);
         }
 
         if (language == null || language.isEmpty() || !Arrays.asList(Utils.LANGUAGE_CODES).contains(language)) {
@@ -669,84 +1127,16 @@ public class SubsetsControllerV2 {
             language = "nb";
         }
 
-        // If a date interval is specified using 'from' and/or 'to' query parameters
-        ResponseEntity<JsonNode> getAllVersionsRE = getVersions(id, includeFuture, includeDrafts, language);
-        if (!getAllVersionsRE.getStatusCode().equals(OK))
-            return getAllVersionsRE;
-        JsonNode allVersionsArrayNode = getAllVersionsRE.getBody();
+        // If a date interval is specified using 'from' and/or 'to' query parameters, the database returns the distinct codes of the versions valid in it
         LOG.debug(String.format("Getting valid codes of subset %s from date %s to date %s", id, from, to));
-
-        if (allVersionsArrayNode == null)
-            return ErrorHandler.newHttpError("Response body was null", INTERNAL_SERVER_ERROR, LOG);
-        if (!allVersionsArrayNode.isArray())
+        ResponseEntity<JsonNode> codesInRangeRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getCodesInRange(id, includeFuture, includeDrafts, from, to, language);
+        if (!codesInRangeRE.getStatusCode().equals(OK))
+            return codesInRangeRE;
+        if (codesInRangeRE.getBody() == null || !codesInRangeRE.getBody().isArray())
             return ErrorHandler.newHttpError("Response body was not array", INTERNAL_SERVER_ERROR, LOG);
-
-        ArrayNode versionsValidInDateRange = (ArrayNode) allVersionsArrayNode;
-        int nrOfVersions = versionsValidInDateRange.size();
-        LOG.debug("Total nr of versions of subset series '" + id + "': " + nrOfVersions);
-
-        for (int i = versionsValidInDateRange.size() - 1; i >= 0; i--) {
-            JsonNode version = versionsValidInDateRange.get(i);
-            if (!includeFuture && version.get(Field.VALID_FROM).asText().compareTo(Utils.getNowDate()) > 0) {
-                versionsValidInDateRange.remove(i);
-            } else if (!includeDrafts && !version.get(Field.ADMINISTRATIVE_STATUS).asText().equals(Field.OPEN)) {
-                versionsValidInDateRange.remove(i);
-            } else if (isToDate && version.get(Field.VALID_FROM).asText().compareTo(to) >= 0) {
-                versionsValidInDateRange.remove(i);
-            } else if (isFromDate && version.has(Field.VALID_UNTIL) && version.get(Field.VALID_UNTIL).asText().compareTo(from) <= 0) {
-                versionsValidInDateRange.remove(i);
-            }
-        }
-
-        // The point of this is that no two codes with the same name, code and level should be added twice to the list
-        // AND classification versions should not be duplicated in the classificationVersionList
-
-        Map<String, Set<String>> classificationVersionsMap = new HashMap<>();
-
-        for (JsonNode subsetVersion : versionsValidInDateRange) {
-            LOG.debug("Version " + subsetVersion.get(Field.VERSION_ID) + " is valid in the interval, so its codes will be included");
-            // . . . using each code in this version as key, increment corresponding integer value in map
-            JsonNode codes = subsetVersion.get(Field.CODES);
-            ArrayNode codesArrayNode = (ArrayNode) codes;
-            LOG.debug("There are " + codesArrayNode.size() + " codes in version " + subsetVersion.get(Field.VERSION_ID));
-            for (JsonNode codeJsonNode : codesArrayNode) {
-                String classificationId = codeJsonNode.get(Field.CLASSIFICATION_ID).asText();
-                String code = codeJsonNode.get(Field.CODE).asText();
-                String name = codeJsonNode.get(Field.NAME).asText();
-                String level = codeJsonNode.get(Field.LEVEL).asText();
-                String codeURN = classificationId + "_" + code + "_" + name + "_" + level;
-                ArrayNode classificationVersionsArrayNode = codeJsonNode.get(Field.CLASSIFICATION_VERSIONS).deepCopy();
-                Set<String> classificationVersionsSet = new HashSet<>();
-                classificationVersionsArrayNode.forEach(e -> classificationVersionsSet.add(e.asText()));
-                classificationVersionsMap.merge(codeURN, classificationVersionsSet, (s1, s2) -> {
-                    s1.addAll(s2);
-                    return s1;
-                });
-            }
-        }
-
-        ArrayNode codesInRangeArrayNode = new ObjectMapper().createArrayNode();
-
-        for (Map.Entry<String, Set<String>> entry : classificationVersionsMap.entrySet()) {
-            Set<String> classificationVersionSet = entry.getValue();
-            ArrayNode classificationVersionList = new ObjectMapper().createArrayNode();
-            classificationVersionSet.forEach(classificationVersionList::add); // duplicate free classificationVersionList
-
-            ObjectNode editableCode = new ObjectMapper().createObjectNode();
-            String[] splitUnderscore = entry.getKey().split("_");
-            String classificationId = splitUnderscore[0];
-            String code = splitUnderscore[1];
-            String name = splitUnderscore[2];
-            String level = splitUnderscore[3];
-            editableCode.put(Field.CLASSIFICATION_ID, classificationId);
-            editableCode.put(Field.CODE, code);
-            editableCode.put(Field.NAME, name);
-            editableCode.put(Field.LEVEL, level);
-            editableCode.set(Field.CLASSIFICATION_VERSIONS, classificationVersionList);
-            codesInRangeArrayNode.add(editableCode);
-        }
+        LOG.debug("Nr of distinct codes of subset series '" + id + "' valid in the interval: " + codesInRangeRE.getBody().size());
         //TODO: We could chose to only return classification versions that are valid inside the requested interval [from, to]
-        return new ResponseEntity<>(codesInRangeArrayNode, OK);
+        return codesInRangeRE;
     }
 
     /**
@@ -783,33 +1173,22 @@ public class SubsetsControllerV2 {
                     LOG);
         }
 
-        ResponseEntity<JsonNode> versionsRE = getVersions(id, includeFuture, includeDrafts, language);
-        if (versionsRE.getStatusCode().equals(NOT_FOUND))
-            return versionsRE;
-        else if (!versionsRE.getStatusCode().equals(OK))
-            return resolveNonOKDatabaseResponse("GET versions of subset with id " + id + " ", versionsRE);
-
-        JsonNode versionsResponseBodyJSON = versionsRE.getBody();
-        if (versionsResponseBodyJSON == null)
-            return ErrorHandler.newHttpError("versions response body was null", INTERNAL_SERVER_ERROR, LOG);
-        if (!versionsResponseBodyJSON.isArray())
-            return ErrorHandler.newHttpError("versions response body was not array", INTERNAL_SERVER_ERROR, LOG);
-        LOG.debug("codesAt: We found " + versionsResponseBodyJSON.size() + " subset versions. Now we are going to find if one of them is valid at the date given.");
-        ArrayNode versionsArrayNode = (ArrayNode) versionsResponseBodyJSON;
-        for (JsonNode versionJsonNode : versionsArrayNode) {
-            String entryValidFrom = versionJsonNode.get(Field.VALID_FROM).textValue();
-            String entryValidUntil = versionJsonNode.has(Field.VALID_UNTIL) ? versionJsonNode.get(Field.VALID_UNTIL).textValue() : null;
-            String versionId = versionJsonNode.get(Field.VERSION_ID).asText();
-            LOG.debug("version " + versionId + " has validFrom " + entryValidFrom + " and validUntil " + (entryValidFrom != null ? entryValidUntil : "does not exist"));
-            if (entryValidFrom.compareTo(date) <= 0 && (entryValidUntil == null || entryValidUntil.compareTo(date) > 0)) {
-                LOG.debug("The date " + date + " was within the range!");
-                JsonNode codes = versionJsonNode.get(Field.CODES);
-                return new ResponseEntity<>(codes, OK);
-            } else {
-                LOG.debug("The date " + date + " was not within the range.");
-            }
-        }
-        return new ResponseEntity<>(new ObjectMapper().createArrayNode(), OK); //TODO Maybe this should be "not found"?
+        ResponseEntity<JsonNode> codesAtRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getCodesAt(id, date, includeFuture, includeDrafts);
+        if (codesAtRE.getStatusCode().equals(NOT_FOUND))
+            return codesAtRE;
+        else if (!codesAtRE.getStatusCode().equals(OK))
+            return resolveNonOKDatabaseResponse("GET codes at " + date + " of subset with id " + id + " ", codesAtRE);
+
+        JsonNode codesResponseBodyJSON = codesAtRE.getBody();
+        if (codesResponseBodyJSON == null)
+            return ErrorHandler.newHttpError("codes response body was null", INTERNAL_SERVER_ERROR, LOG);
+        if (!codesResponseBodyJSON.isArray())
+            return ErrorHandler.newHttpError("codes response body was not array", INTERNAL_SERVER_ERROR, LOG);
+        LOG.debug("codesAt: The version valid at " + date + " has " + codesResponseBodyJSON.size() + " codes");
+        ArrayNode codes = (ArrayNode) codesResponseBodyJSON;
+        if (!language.equals("all"))
+            codes = Utils.setSingleLanguage(codes, language);
+        return new ResponseEntity<>(codes, OK);
     }
 
     @GetMapping("/v2/subsets/schema")
@@ -1030,34 +1409,31 @@ public class SubsetsControllerV2 {
     }
 
     private ResponseEntity<JsonNode> isOverlappingValidity(JsonNode editableVersion) {
-        String newVersionValidFrom = editableVersion.get(Field.VALID_FROM).asText();
-        String newVersionValidUntil = editableVersion.has(Field.VALID_UNTIL) ? editableVersion.get(Field.VALID_UNTIL).asText() : null;
-
         String seriesID = editableVersion.get(Field.SUBSET_ID).asText();
-        ResponseEntity<JsonNode> getPublishedVersionsRE = getVersions(seriesID, true, false, "all");
-        if (getPublishedVersionsRE.getStatusCode().equals(NOT_FOUND)) {
-            ObjectNode body = new ObjectMapper().createObjectNode();
-            body.put("message", "Subset getVersions returned 404 NOT FOUND, which means there is no overlap");
-            body.put("status", OK.value());
-            body.put("existOtherPublishedVersions", false);
-            body.put("isNewLatestVersion", true);
-            body.put("isNewFirstVersion", true);
-            return new ResponseEntity<>(body, OK); // No overlap if no versions found
-        }
+        // Only OPEN versions are returned when drafts are not included, and only the fields needed here, not the code lists
+        ResponseEntity<JsonNode> getPublishedVersionsRE = DatabaseFactory.getDatabase(BACKEND_TYPE).getVersionsMetadataBySeriesID(seriesID, false);
         if (!getPublishedVersionsRE.getStatusCode().is2xxSuccessful())
             return getPublishedVersionsRE; // FIXME
+        return isOverlappingValidity(editableVersion, getPublishedVersionsRE.getBody().deepCopy());
+    }
+
+    /**
+     * The overlap check of a new version against the given published versions of its series.
+     * The latestPublishedVersion of the response is the element of publishedSubsetVersions itself, not a copy.
+     */
+    private static ResponseEntity<JsonNode> isOverlappingValidity(JsonNode editableVersion, Iterable<JsonNode> publishedSubsetVersions) {
+        String newVersionValidFrom = editableVersion.get(Field.VALID_FROM).asText();
+        String newVersionValidUntil = editableVersion.has(Field.VALID_UNTIL) ? editableVersion.get(Field.VALID_UNTIL).asText() : null;
 
         boolean isNewLatestVersion = true;
         boolean isNewFirstVersion = true;
-        ArrayNode publishedSubsetVersionsArrayNode = getPublishedVersionsRE.getBody().deepCopy();
-
         boolean existOtherPublishedVersions = false;
         JsonNode latestPublishedVersion = null;
-        if (!publishedSubsetVersionsArrayNode.isEmpty()) {
+        if (publishedSubsetVersions.iterator().hasNext()) {
             existOtherPublishedVersions = true;
             String firstValidFrom = null;
             String lastValidFrom = null;
-            for (JsonNode oldPublishedSubsetVersion : publishedSubsetVersionsArrayNode) {
+            for (JsonNode oldPublishedSubsetVersion : publishedSubsetVersions) {
                 if (oldPublishedSubsetVersion.get(Field.ADMINISTRATIVE_STATUS).asText().equals(Field.OPEN)) { // We only care about checking against published subset versions
                     LOG.debug("Checking version " + oldPublishedSubsetVersion.get(Field.SUBSET_ID).asText() + "_" + oldPublishedSubsetVersion.get(Field.VERSION_ID).asText() + " for overlap with the new version, since it is published.");
                     String oldPublishedVersionValidFrom = oldPublishedSubsetVersion.get(Field.VALID_FROM).asText();
@@ -1167,23 +1543,19 @@ public class SubsetsControllerV2 {
         if (isOverlapREBody.get("existOtherPublishedVersions").asBoolean() &&
                 isOverlapREBody.get("isNewLatestVersion").asBoolean()) {
             LOG.debug("according to the overlap check there is a previously published version, and the new version is the new latest version");
-            ObjectNode latestPublishedVersion = isOverlapREBody.get("latestPublishedVersion").deepCopy();
-            if (latestPublishedVersion == null)
+            JsonNode latestPublishedVersion = isOverlapREBody.get("latestPublishedVersion");
+            if (latestPublishedVersion == null || latestPublishedVersion.isNull())
                 return ErrorHandler.newHttpError(
                         "There is supposedly other published versions, and the posted version is the new latest version, but the old latest version returned from the overlap check was null", INTERNAL_SERVER_ERROR, LOG);
             if ((!latestPublishedVersion.has(Field.VALID_UNTIL) || latestPublishedVersion.get(Field.VALID_UNTIL).isNull())) {
                 LOG.debug("The latestPublishedVersion did not have a validUntil date. Attempting to set it to the validFrom of the new version");
-                latestPublishedVersion.put(Field.VALID_UNTIL, newVersion.get(Field.VALID_FROM).asText());
-                latestPublishedVersion.remove(Field._LINKS);
-                LOG.debug("Attempting to PUT the previous latest version with a new validUntil that is the same as the validFrom of the new version");
-                ResponseEntity<JsonNode> putVersionRE = putSubsetVersion(
+                // Only validUntil and lastModified change, so they are set in place rather than reading and writing the whole version
+                ResponseEntity<JsonNode> setValidUntilRE = DatabaseFactory.getDatabase(BACKEND_TYPE).setVersionValidUntil(
                         seriesId,
-                        latestPublishedVersion.get(Field.VERSION_ID).asText(),
-                        false,
-                        "all",
-                        latestPublishedVersion);
-                if (!putVersionRE.getStatusCode().is2xxSuccessful()) {
-                    return ErrorHandler.newHttpError("Failed to update the validUntil of the previous last published version. PUT caused error code " + putVersionRE.getStatusCode() + " and had body " + (putVersionRE.hasBody() && putVersionRE.getBody() != null ? putVersionRE.getBody().toPrettyString().replaceAll("\n", "").replaceAll("\r", "").replaceAll("\t", "") : ""), INTERNAL_SERVER_ERROR, LOG);
+                        seriesId + "_" + latestPublishedVersion.get(Field.VERSION_ID).asText(),
+                        newVersion.get(Field.VALID_FROM).asText());
+                if (!setValidUntilRE.getStatusCode().is2xxSuccessful()) {
+                    return ErrorHandler.newHttpError("Failed to update the validUntil of the previous last published version. The update caused error code " + setValidUntilRE.getStatusCode() + " and had body " + (setValidUntilRE.hasBody() && setValidUntilRE.getBody() != null ? setValidUntilRE.getBody().toPrettyString().replaceAll("\n", "").replaceAll("\r", "").replaceAll("\t", "") : ""), INTERNAL_SERVER_ERROR, LOG);
                 }
             } else {
                 LOG.debug("The latestPublishedVersion already had a validUntil date");
@@ -1,5 +1,9 @@
 package no.ssb.subsetsservice.entity;
 
+import no.ssb.subsetsservice.util.Utils;
+
+import java.util.Arrays;
+
 public class SQL {
 
     public static String CREATE_SERIES = "CREATE TABLE IF NOT EXISTS public.series\n" +
@@ -23,31 +27,463 @@ public class SQL {
             ");";
     public static String SET_OWNER_VERSIONS = "ALTER TABLE public.versions\n" +
             "    OWNER to subsets;";
-    public static String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS \"seriesIndex\"\n" +
+    public static String CREATE_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"seriesIndex\"\n" +
             "    ON public.versions USING btree\n" +
             "    (\"series_id\" varchar_pattern_ops ASC NULLS LAST)\n" +
             ";";
+    // Immutable 'YYYY-MM-DD' text to date conversion. A plain cast is only STABLE, and can not be used in generated columns.
+    public static String CREATE_ISO_DATE_FUNCTION = "CREATE OR REPLACE FUNCTION public.subsets_iso_date(text) RETURNS date\n" +
+            "    LANGUAGE sql IMMUTABLE PARALLEL SAFE\n" +
+            "    AS $$ SELECT CASE WHEN $1 ~ '^\\d{4}-(0[1-9]|1[0-2])-(0[1-9]|[12]\\d|3[01])' " +
+            "THEN make_date(substr($1, 1, 4)::int, substr($1, 6, 2)::int, substr($1, 9, 2)::int) END $$;";
+    public static String ADD_VERSIONS_GENERATED_COLUMNS = "ALTER TABLE public.versions\n" +
+            "    ADD COLUMN IF NOT EXISTS \"status\" text GENERATED ALWAYS AS (version_json ->> '" + Field.ADMINISTRATIVE_STATUS + "') STORED,\n" +
+            "    ADD COLUMN IF NOT EXISTS \"valid_from\" date GENERATED ALWAYS AS (public.subsets_iso_date(version_json ->> '" + Field.VALID_FROM + "')) STORED,\n" +
+            "    ADD COLUMN IF NOT EXISTS \"valid_until\" date GENERATED ALWAYS AS (public.subsets_iso_date(version_json ->> '" + Field.VALID_UNTIL + "')) STORED;";
+    // Half open [validFrom, validUntil) range. Empty if validUntil is not after validFrom, unbounded if validUntil is missing.
+    public static String CREATE_VALIDITY_FUNCTION = "CREATE OR REPLACE FUNCTION public.subsets_validity(text, text) RETURNS daterange\n" +
+            "    LANGUAGE sql IMMUTABLE PARALLEL SAFE\n" +
+            "    AS $$ SELECT CASE WHEN public.subsets_iso_date($1) IS NULL THEN NULL " +
+            "WHEN public.subsets_iso_date($2) <= public.subsets_iso_date($1) THEN 'empty'::daterange " +
+            "ELSE daterange(public.subsets_iso_date($1), public.subsets_iso_date($2), '[)') END $$;";
+    public static String ADD_VERSIONS_VALIDITY_COLUMN = "ALTER TABLE public.versions\n" +
+            "    ADD COLUMN IF NOT EXISTS \"validity\" daterange GENERATED ALWAYS AS " +
+            "(public.subsets_validity(version_json ->> '" + Field.VALID_FROM + "', version_json ->> '" + Field.VALID_UNTIL + "')) STORED;";
+    // btree_gist lets the varchar series_id be part of a GiST index
+    public static String CREATE_BTREE_GIST_EXTENSION = "CREATE EXTENSION IF NOT EXISTS btree_gist;";
+    public static String CREATE_VERSIONS_VALIDITY_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionsSeriesValidityIndex\"\n" +
+            "    ON public.versions USING gist\n" +
+            "    (\"series_id\", \"validity\")\n" +
+            ";";
+    public static String ADD_SERIES_GENERATED_COLUMNS = "ALTER TABLE public.series\n" +
+            "    ADD COLUMN IF NOT EXISTS \"status\" text GENERATED ALWAYS AS (series_json ->> '" + Field.ADMINISTRATIVE_STATUS + "') STORED,\n" +
+            "    ADD COLUMN IF NOT EXISTS \"valid_from\" date GENERATED ALWAYS AS (public.subsets_iso_date(series_json ->> '" + Field.VALID_FROM + "')) STORED,\n" +
+            "    ADD COLUMN IF NOT EXISTS \"valid_until\" date GENERATED ALWAYS AS (public.subsets_iso_date(series_json ->> '" + Field.VALID_UNTIL + "')) STORED;";
+    public static String CREATE_SERIES_STATUS_VALIDITY_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"seriesStatusValidityIndex\"\n" +
+            "    ON public.series USING btree\n" +
+            "    (\"status\", \"valid_from\", \"valid_until\")\n" +
+            ";";
+    public static String CREATE_VERSIONS_PAGE_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionsSeriesValidFromVersionIndex\"\n" +
+            "    ON public.versions USING btree\n" +
+            "    (\"series_id\", \"valid_from\", \"version_id\")\n" +
+            ";";
+    /*
+     * One row per code in each version, with the validity of the version, so that versions can be looked up by code.
+     * Kept in sync by the statements that insert and update versions. Rows of deleted versions are removed by the foreign key.
+     */
+    public static String CREATE_VERSION_CODES = "CREATE TABLE IF NOT EXISTS public.version_codes\n" +
+            "(\n" +
+            "    \"version_id\" character varying(128) COLLATE pg_catalog.\"default\" NOT NULL,\n" +
+            "    \"classification_id\" text,\n" +
+            "    \"code\" text,\n" +
+            "    \"level\" text,\n" +
+            "    \"valid_from\" date,\n" +
+            "    \"valid_until\" date,\n" +
+            "    CONSTRAINT \"versionCodesVersionIdFk\" FOREIGN KEY (\"version_id\")\n" +
+            "        REFERENCES public.versions (\"version_id\") MATCH SIMPLE\n" +
+            "        ON UPDATE NO ACTION\n" +
+            "        ON DELETE CASCADE\n" +
+            ");";
+    public static String SET_OWNER_VERSION_CODES = "ALTER TABLE public.version_codes\n" +
+            "    OWNER to subsets;";
+    public static String CREATE_VERSION_CODES_VERSION_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionCodesVersionIndex\"\n" +
+            "    ON public.version_codes USING btree\n" +
+            "    (\"version_id\")\n" +
+            ";";
+    public static String CREATE_VERSION_CODES_CODE_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionCodesCodeIndex\"\n" +
+            "    ON public.version_codes USING btree\n" +
+            "    (\"classification_id\", \"code\", \"valid_from\")\n" +
+            ";";
+    private static final String VERSION_CODES_COLUMNS = "version_codes (version_id, classification_id, code, level, valid_from, valid_until) ";
+
+    /**
+     * @param versions a relation with the version_id, valid_from and valid_until columns of versions
+     * @param codes an expression for the codes array of a version in the relation
+     * @return a select of one version_codes row per code in the versions
+     */
+    private static String selectVersionCodesOf(String versions, String codes) {
+        return "SELECT " + versions + ".version_id, code ->> '" + Field.CLASSIFICATION_ID + "', code ->> '" + Field.CODE + "', code ->> '" + Field.LEVEL + "', " +
+                versions + ".valid_from, " + versions + ".valid_until " +
+                "FROM " + versions + ", jsonb_array_elements(COALESCE(" + codes + ", '[]'::jsonb)) AS code ";
+    }
+
+    // Fills in the codes of versions stored before version_codes existed
+    public static String BACKFILL_VERSION_CODES = "INSERT INTO " + VERSION_CODES_COLUMNS + selectVersionCodesOf("versions", "versions.version_json -> '" + Field.CODES + "'") +
+            "WHERE NOT EXISTS (SELECT 1 FROM version_codes WHERE version_codes.version_id = versions.version_id);";
+    // Incremented by every write to the row. Served as the ETag of the document, and compared by conditional updates.
+    public static String ADD_SERIES_REVISION_COLUMN = "ALTER TABLE public.series\n" +
+            "    ADD COLUMN IF NOT EXISTS \"revision\" bigint NOT NULL DEFAULT 1;";
+    public static String ADD_VERSIONS_REVISION_COLUMN = "ALTER TABLE public.versions\n" +
+            "    ADD COLUMN IF NOT EXISTS \"revision\" bigint NOT NULL DEFAULT 1;";
+    /*
+     * Single language projections of versions, stored next to version_json. In the projection for a language, the name and the notes of each code
+     * are the text in that language instead of the array of multilingual texts, as long as there is a text in the language.
+     * The functions are immutable, so the projections can be stored generated columns, computed whenever version_json is written.
+     */
+    public static String CREATE_SINGLE_LANGUAGE_FIELD_FUNCTION = "CREATE OR REPLACE FUNCTION public.subsets_single_language_field(jsonb, text, text) RETURNS jsonb\n" +
+            "    LANGUAGE sql IMMUTABLE PARALLEL SAFE\n" +
+            "    AS $$ SELECT COALESCE((SELECT jsonb_set($1, ARRAY[$2], to_jsonb(multilingual_text ->> '" + Field.LANGUAGE_TEXT + "')) " +
+            "FROM jsonb_array_elements(CASE WHEN jsonb_typeof($1 -> $2) = 'array' THEN $1 -> $2 ELSE '[]'::jsonb END) AS multilingual_text " +
+            "WHERE multilingual_text ->> '" + Field.LANGUAGE_CODE + "' = $3 LIMIT 1), $1) $$;";
+    public static String CREATE_SINGLE_LANGUAGE_FUNCTION = "CREATE OR REPLACE FUNCTION public.subsets_single_language(jsonb, text) RETURNS jsonb\n" +
+            "    LANGUAGE sql IMMUTABLE PARALLEL SAFE\n" +
+            "    AS $$ SELECT CASE WHEN jsonb_typeof($1 -> '" + Field.CODES + "') = 'array' THEN jsonb_set($1, '{" + Field.CODES + "}', " +
+            "(SELECT COALESCE(jsonb_agg(public.subsets_single_language_field(public.subsets_single_language_field(code.value, '" + Field.NAME + "', $2), " +
+            "'" + Field.NOTES + "', $2) ORDER BY code.ordinality), '[]'::jsonb) " +
+            "FROM jsonb_array_elements($1 -> '" + Field.CODES + "') WITH ORDINALITY AS code)) ELSE $1 END $$;";
+    public static String ADD_VERSIONS_LANGUAGE_COLUMNS = "ALTER TABLE public.versions\n" + String.join(",\n", Arrays.stream(Utils.LANGUAGE_CODES)
+            .map(language -> "    ADD COLUMN IF NOT EXISTS \"" + versionJsonColumn(language) + "\" jsonb GENERATED ALWAYS AS (public.subsets_single_language(version_json, '" + language + "')) STORED")
+            .toArray(String[]::new)) + ";";
+
+    /**
+     * The column with the version json in the language, which is version_json itself for 'all' and languages without a projection.
+     */
+    public static String versionJsonColumn(String language) {
+        return Arrays.asList(Utils.LANGUAGE_CODES).contains(language) ? "version_json_" + language : "version_json";
+    }
+
+    public static String CREATE_VERSIONS_STATUS_VALID_FROM_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionsSeriesStatusValidFromIndex\"\n" +
+            "    ON public.versions USING btree\n" +
+            "    (\"series_id\", \"status\", \"valid_from\")\n" +
+            ";";
+
+    /*
+     * Published versions of a series can not have overlapping validity. Checked by Postgres on every write, also between concurrent writes.
+     * Versions without a validFrom have a NULL validity, and empty ranges overlap nothing, so neither is ever in conflict.
+     * Exclusion constraints have no IF NOT EXISTS, so it is only added if it is not there already.
+     */
+    public static final String VERSIONS_OPEN_VALIDITY_EXCLUSION = "versionsOpenValidityExclusion";
+    public static String ADD_VERSIONS_OPEN_VALIDITY_EXCLUSION = "DO $$ BEGIN\n" +
+            "    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = '" + VERSIONS_OPEN_VALIDITY_EXCLUSION + "' AND conrelid = 'public.versions'::regclass) THEN\n" +
+            "        ALTER TABLE public.versions ADD CONSTRAINT \"" + VERSIONS_OPEN_VALIDITY_EXCLUSION + "\"\n" +
+            "            EXCLUDE USING gist (\"series_id\" WITH =, \"validity\" WITH &&) WHERE (\"status\" = '" + Field.OPEN + "');\n" +
+            "    END IF;\n" +
+            "END $$;";
+
+    /*
+     * Code lists stored once per distinct content, and referenced by the versions that have them.
+     * The hash is the sha256 of the jsonb text of the codes, which is the same however the json was formatted when it was written.
+     * Instances from before code lists read the codes from version_json, so while they may still run, versions keep a copy of their codes there too.
+     * Once they are gone, the codes are moved out of version_json in batches (MOVE_VERSION_CODES_TO_CODE_LISTS_BATCH).
+     * Codes in version_json are read in preference to the code list, since an older instance may have updated them without updating codes_hash.
+     * Versions without a codes array have no code list.
+     */
+    public static String CREATE_CODE_LIST_HASH_FUNCTION = "CREATE OR REPLACE FUNCTION public.subsets_code_list_hash(jsonb) RETURNS text\n" +
+            "    LANGUAGE sql IMMUTABLE PARALLEL SAFE\n" +
+            "    AS $$ SELECT encode(sha256(convert_to($1::text, 'UTF8')), 'hex') $$;";
+    public static String CREATE_CODE_LISTS = "CREATE TABLE IF NOT EXISTS public.code_lists\n" +
+            "(\n" +
+            "    \"hash\" text NOT NULL,\n" +
+            "    \"codes\" jsonb NOT NULL,\n" +
+            "    CONSTRAINT code_lists_pkey PRIMARY KEY (\"hash\")\n" +
+            ");";
+    public static String SET_OWNER_CODE_LISTS = "ALTER TABLE public.code_lists\n" +
+            "    OWNER to subsets;";
+    // The single language projections of the codes, like those of version_json
+    public static String ADD_CODE_LISTS_LANGUAGE_COLUMNS = "ALTER TABLE public.code_lists\n" + String.join(",\n", Arrays.stream(Utils.LANGUAGE_CODES)
+            .map(language -> "    ADD COLUMN IF NOT EXISTS \"" + codesColumn(language) + "\" jsonb GENERATED ALWAYS AS " +
+                    "(public.subsets_single_language(jsonb_build_object('" + Field.CODES + "', codes), '" + language + "') -> '" + Field.CODES + "') STORED")
+            .toArray(String[]::new)) + ";";
+    public static String ADD_VERSIONS_CODES_HASH_COLUMN = "ALTER TABLE public.versions\n" +
+            "    ADD COLUMN IF NOT EXISTS \"codes_hash\" text CONSTRAINT \"versionsCodesHashFk\" REFERENCES public.code_lists (\"hash\");";
+    // Used to find out if a code list is still referenced
+    public static String CREATE_VERSIONS_CODES_HASH_INDEX = "CREATE INDEX CONCURRENTLY IF NOT EXISTS \"versionsCodesHashIndex\"\n" +
+            "    ON public.versions USING btree\n" +
+            "    (\"codes_hash\")\n" +
+            ";";
+    /*
+     * Moves the codes that one batch of versions keeps in version_json into code lists, in version_id order. The hash is taken from the codes in version_json,
+     * since codes_hash may be stale. The revisions are left as they are, since the versions read the same.
+     * The rows are locked as they are read, and rows locked by a write or another instance moving codes are skipped, to be moved by a later run.
+     * Parameters: the last version_id of the previous batch ('' for the first), batch size. Returns the last version_id of the batch, or null when no version was left.
+     */
+    public static String MOVE_VERSION_CODES_TO_CODE_LISTS_BATCH = "WITH moved_version AS (" +
+            "SELECT versions.version_id, public.subsets_code_list_hash(versions.version_json -> '" + Field.CODES + "') AS hash, versions.version_json -> '" + Field.CODES + "' AS codes " +
+            "FROM versions WHERE versions.version_id > ? AND jsonb_typeof(versions.version_json -> '" + Field.CODES + "') = 'array' " +
+            "ORDER BY versions.version_id LIMIT ? FOR UPDATE SKIP LOCKED), " +
+            "inserted_code_list AS (INSERT INTO code_lists (hash, codes) SELECT DISTINCT ON (moved_version.hash) moved_version.hash, moved_version.codes FROM moved_version " +
+            "ON CONFLICT (hash) DO UPDATE SET hash = EXCLUDED.hash WHERE FALSE), " +
+            "updated_version AS (UPDATE versions SET version_json = versions.version_json - '" + Field.CODES + "', codes_hash = moved_version.hash " +
+            "FROM moved_version WHERE versions.version_id = moved_version.version_id RETURNING versions.version_id) " +
+            "SELECT max(updated_version.version_id) FROM updated_version;";
+
+    /**
+     * The column of code_lists with the codes in the language, which is codes itself for 'all' and languages without a projection.
+     */
+    public static String codesColumn(String language) {
+        return Arrays.asList(Utils.LANGUAGE_CODES).contains(language) ? "codes_" + language : "codes";
+    }
+
+    // The codes of the current row of versions in the language, from version_json or else from its code list
+    private static String versionCodesOf(String language) {
+        return "COALESCE(versions." + versionJsonColumn(language) + " -> '" + Field.CODES + "', " +
+                "(SELECT code_lists." + codesColumn(language) + " FROM code_lists WHERE code_lists.hash = versions.codes_hash))";
+    }
+
+    // The whole json of the current row of versions in the language, with the codes from its code list put back in if version_json has none
+    private static String versionJsonOf(String language) {
+        return "CASE WHEN versions.codes_hash IS NULL OR versions." + versionJsonColumn(language) + " -> '" + Field.CODES + "' IS NOT NULL THEN versions." + versionJsonColumn(language) + " " +
+                "ELSE versions." + versionJsonColumn(language) + " || jsonb_build_object('" + Field.CODES + "', " + versionCodesOf(language) + ") END";
+    }
+
+    /*
+     * The first parts of a WITH that writes the version json in the relation new_version: the code list of the version, and its insert.
+     * A conflicting insert locks the stored code list without updating it, so that it is not removed as unreferenced before the version that references it is committed.
+     */
+    private static final String NEW_CODE_LIST = "new_code_list AS (SELECT public.subsets_code_list_hash(new_version.version_json -> '" + Field.CODES + "') AS hash, " +
+            "new_version.version_json -> '" + Field.CODES + "' AS codes FROM new_version WHERE jsonb_typeof(new_version.version_json -> '" + Field.CODES + "') = 'array'), " +
+            "inserted_code_list AS (INSERT INTO code_lists (hash, codes) SELECT new_code_list.hash, new_code_list.codes FROM new_code_list " +
+            "ON CONFLICT (hash) DO UPDATE SET hash = EXCLUDED.hash WHERE FALSE), ";
+
+    // The version json to store, which keeps its codes if inlineCodes is true
+    private static String newVersionJson(boolean inlineCodes) {
+        return inlineCodes ? "new_version.version_json" :
+                "CASE WHEN new_code_list.hash IS NULL THEN new_version.version_json ELSE new_version.version_json - '" + Field.CODES + "' END";
+    }
+    private static final String NEW_VERSION_CODES = "(SELECT new_version.version_json -> '" + Field.CODES + "' FROM new_version)";
+
+    // Parameter: hash. Unreferenced code lists are left by versions that are deleted, or that get another code list
+    public static String DELETE_CODE_LIST_IF_UNREFERENCED = "DELETE FROM code_lists WHERE code_lists.hash = ? " +
+            "AND NOT EXISTS (SELECT 1 FROM versions WHERE versions.codes_hash = code_lists.hash);";
+    public static String DELETE_UNREFERENCED_CODE_LISTS = "DELETE FROM code_lists WHERE NOT EXISTS (SELECT 1 FROM versions WHERE versions.codes_hash = code_lists.hash);";
+
+    /*
+     * The schema migrations that have been applied, see SchemaMigrations. The advisory lock key makes sure only one instance migrates at a time.
+     */
+    public static final long SCHEMA_MIGRATION_LOCK_KEY = 0x5375627365747301L;
+    public static String CREATE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS public.schema_version\n" +
+            "(\n" +
+            "    \"version\" integer NOT NULL,\n" +
+            "    \"description\" text NOT NULL,\n" +
+            "    \"installed_at\" timestamp with time zone NOT NULL DEFAULT now(),\n" +
+            "    \"duration_ms\" bigint NOT NULL,\n" +
+            "    CONSTRAINT schema_version_pkey PRIMARY KEY (\"version\")\n" +
+            ");";
+    public static String SET_OWNER_SCHEMA_VERSION = "ALTER TABLE public.schema_version\n" +
+            "    OWNER to subsets;";
+    public static String SELECT_SCHEMA_VERSION_EXISTS = "SELECT to_regclass('public.schema_version') IS NOT NULL;";
+    public static String SELECT_SCHEMA_VERSION = "SELECT COALESCE(MAX(version), 0) FROM public.schema_version;";
+    public static String INSERT_SCHEMA_VERSION = "INSERT INTO public.schema_version (version, description, duration_ms) VALUES (?, ?, ?);";
+    // Polled instead of waiting in pg_advisory_lock, since a CREATE INDEX CONCURRENTLY of the holder would wait for the transaction of the waiting statement
+    public static String TRY_LOCK_SCHEMA_MIGRATION = "SELECT pg_try_advisory_lock(?);";
+    public static String UNLOCK_SCHEMA_MIGRATION = "SELECT pg_advisory_unlock(?);";
+    // True if the index exists, but is invalid because a concurrent build of it failed. Such an index has to be dropped before it can be built again
+    public static String SELECT_INDEX_INVALID = "SELECT NOT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?);";
+
+    /*
+     * Writes send the id of the affected series on this channel when they commit, so that every instance can evict it from its local cache.
+     * The payload "*" means that any series may have changed.
+     */
+    public static final String CHANGES_CHANNEL = "subsets_changes";
+    public static String LISTEN_CHANGES = "LISTEN " + CHANGES_CHANNEL + ";";
+    public static String NOTIFY_CHANGE = "SELECT pg_notify('" + CHANGES_CHANNEL + "', ?);";
+    private static final String NOTIFY_CHANGE_OF = "pg_notify('" + CHANGES_CHANNEL + "', ";
+
+    public static String SELECT_SERIES_BY_ID = "SELECT series.series_json, series.revision FROM series WHERE series.series_id = ?;";
+    // Answered from the primary key index, without reading the series json
+    public static String SELECT_SERIES_EXISTS = "SELECT EXISTS (SELECT 1 FROM series WHERE series.series_id = ?);";
+    /*
+     * Parameters: series_id to start after (null for the first page) twice, include drafts (boolean),
+     * latest allowed valid_from (null to include future series) twice, earliest allowed valid_until (null to include expired series) twice,
+     * page size (null for no limit). Dates are 'YYYY-MM-DD'. Series without the status or date fields are never filtered away.
+     * Keyset pagination on series_pkey, filters backed by "seriesStatusValidityIndex".
+     */
+    private static final String SERIES_FILTER = "WHERE (CAST(? AS TEXT) IS NULL OR series.series_id > ?) " +
+            "AND (? OR series.status IS DISTINCT FROM '" + Field.DRAFT + "') " +
+            "AND (CAST(? AS DATE) IS NULL OR series.valid_from IS NULL OR series.valid_from <= CAST(? AS DATE)) " +
+            "AND (CAST(? AS DATE) IS NULL OR series.valid_until IS NULL OR series.valid_until >= CAST(? AS DATE)) " +
+            "ORDER BY series.series_id LIMIT ?;";
+    public static String SELECT_SERIES_PAGE = "SELECT series.series_json FROM series " + SERIES_FILTER;
+    public static String SELECT_SERIES_PAGE_WITH_ID = "SELECT series.series_id, series.series_json FROM series " + SERIES_FILTER;
+    public static String INSERT_SERIES = "INSERT INTO series (series_id, series_json) VALUES (?, ?::JSON);";
+    /*
+     * Parameters: series json, series_id, expected revision (null to update whatever the revision is) twice.
+     * Returns the new revision, or no row if the series does not exist or had another revision. Notifies CHANGES_CHANNEL.
+     */
+    public static String UPDATE_SERIES = "UPDATE series SET series_json = ?, revision = series.revision + 1 " +
+            "WHERE series_id = ? AND (CAST(? AS BIGINT) IS NULL OR series.revision = ?) " +
+            "RETURNING series.revision, " + NOTIFY_CHANGE_OF + "series.series_id);";
+    /*
+     * Sets some top-level fields of series_json and removes others, leaving the rest, like the versions array, as it is.
+     * Parameters: names of the fields to remove, object with the fields to set, series_id, expected revision (null to update whatever the revision is) twice.
+     * Returns the new revision, or no row if the series does not exist or had another revision. Notifies CHANGES_CHANNEL.
+     */
+    public static String PATCH_SERIES = "UPDATE series SET series_json = (series.series_json - CAST(? AS TEXT[])) || CAST(? AS JSONB), revision = series.revision + 1 " +
+            "WHERE series_id = ? AND (CAST(? AS BIGINT) IS NULL OR series.revision = ?) " +
+            "RETURNING series.revision, " + NOTIFY_CHANGE_OF + "series.series_id);";
+
+    /*
+     * Inserts a version, its code list if it is not stored already, and its version_codes rows and, in the same statement, appends its id to the versions of the series,
+     * merges the statistical units of the version into those of the series, sets lastModified of the series and increments its revision.
+     * Parameters: version_id, series_id, version json, lastModified. Returns the series_id of the updated series, and notifies CHANGES_CHANNEL.
+     * The batch variant has no RETURNING, since JDBC batches can not return rows, and does not notify.
+     * If inlineCodes is true, version_json keeps a copy of the codes, for instances from before code lists.
+     */
+    public static String insertVersionAndUpdateSeriesBatch(boolean inlineCodes) {
+        return "WITH new_version AS (SELECT CAST(? AS TEXT) AS version_id, CAST(? AS TEXT) AS series_id, CAST(? AS JSONB) AS version_json), " +
+                NEW_CODE_LIST +
+                "inserted_version AS (INSERT INTO versions (version_id, series_id, version_json, codes_hash) " +
+                "SELECT new_version.version_id, new_version.series_id, " + newVersionJson(inlineCodes) + ", new_code_list.hash FROM new_version LEFT JOIN new_code_list ON TRUE " +
+                "RETURNING versions.version_id, versions.series_id, versions.version_json, versions.valid_from, versions.valid_until), " +
+                "inserted_codes AS (INSERT INTO " + VERSION_CODES_COLUMNS + selectVersionCodesOf("inserted_version", NEW_VERSION_CODES) + ") " +
+                "UPDATE series SET series_json = series.series_json || jsonb_build_object(" +
+                "'" + Field.VERSIONS + "', COALESCE(series.series_json -> '" + Field.VERSIONS + "', '[]'::jsonb) || to_jsonb(inserted_version.version_id), " +
+                "'" + Field.STATISTICAL_UNITS + "', (SELECT COALESCE(jsonb_agg(units.unit ORDER BY units.unit), '[]'::jsonb) FROM (" +
+                "SELECT jsonb_array_elements_text(COALESCE(series.series_json -> '" + Field.STATISTICAL_UNITS + "', '[]'::jsonb)) " +
+                "UNION SELECT jsonb_array_elements_text(COALESCE(inserted_version.version_json -> '" + Field.STATISTICAL_UNITS + "', '[]'::jsonb))" +
+                ") AS units(unit)), " +
+                "'" + Field.LAST_MODIFIED + "', CAST(? AS TEXT)), revision = series.revision + 1 " +
+                "FROM inserted_version WHERE series.series_id = inserted_version.series_id";
+    }
+
+    public static String insertVersionAndUpdateSeries(boolean inlineCodes) {
+        return insertVersionAndUpdateSeriesBatch(inlineCodes) + " RETURNING series.series_id, " + NOTIFY_CHANGE_OF + "series.series_id);";
+    }
+
+    public static String SELECT_VERSION_BY_ID = selectVersionByID("all");
+
+    public static String selectVersionByID(String language) {
+        return "SELECT " + versionJsonOf(language) + ", versions.revision, versions.series_id FROM versions WHERE versions.version_id = ?;";
+    }
+
+    /*
+     * Parameters: series_id, comma separated statuses, latest allowed valid_from (null to include future versions),
+     * 'to' date (null for no upper bound), 'from' date (null for no lower bound). Dates are 'YYYY-MM-DD'.
+     * Backed by "versionsSeriesStatusValidFromIndex".
+     */
+    private static final String SERIES_VERSIONS_WHERE = "WHERE versions.series_id = ? " +
+            "AND versions.status = ANY (string_to_array(?, ',')) " +
+            "AND (CAST(? AS DATE) IS NULL OR versions.valid_from <= CAST(? AS DATE)) " +
+            "AND (CAST(? AS DATE) IS NULL OR versions.valid_from < CAST(? AS DATE)) " +
+            "AND (CAST(? AS DATE) IS NULL OR versions.valid_until IS NULL OR versions.valid_until > CAST(? AS DATE)) ";
+    /*
+     * SERIES_VERSIONS_WHERE, then keyset pagination on (valid_from, version_id): version_id to start after (null for the first page) twice,
+     * page size (null for no limit). Backed by "versionsSeriesValidFromVersionIndex".
+     */
+    private static final String SERIES_VERSIONS_FILTER = SERIES_VERSIONS_WHERE +
+            "AND (CAST(? AS TEXT) IS NULL OR (versions.valid_from, versions.version_id) > " +
+            "(SELECT after_version.valid_from, after_version.version_id FROM versions after_version WHERE after_version.version_id = ?)) " +
+            "ORDER BY versions.valid_from, versions.version_id LIMIT ?;";
+    public static String SELECT_SERIES_VERSIONS_FILTERED = selectSeriesVersionsFiltered("all");
+
+    public static String selectSeriesVersionsFiltered(String language) {
+        return "SELECT " + versionJsonOf(language) + " FROM versions " + SERIES_VERSIONS_FILTER;
+    }
 
-    public static String SELECT_SERIES_BY_ID = "SELECT series.series_json FROM series WHERE series.series_id = ?;";
-    public static String SELECT_ALL_SERIES = "SELECT series.series_json FROM series;";
-    public static String UPDATE_SERIES = "UPDATE series SET series_json = ? WHERE series_id = ?;";
-    public static String ADD_VERSION_TO_SERIES = "UPDATE series SET series_json = jsonb_set(series_json, '{versions,99999}'::text[], to_jsonb(?::text), true) WHERE series_id = ?;";
+    /*
+     * A series with the versions its versions array references, in the order of that array, aggregated in the same statement so they are read from one snapshot.
+     * Parameter: series_id. The versions are looked up by their primary key.
+     */
+    public static String selectSeriesWithVersions(String language) {
+        return "SELECT series.series_json, COALESCE((SELECT jsonb_agg(" + versionJsonOf(language) + " ORDER BY series_version.position) " +
+                "FROM jsonb_array_elements_text(CASE WHEN jsonb_typeof(series.series_json -> '" + Field.VERSIONS + "') = 'array' " +
+                "THEN series.series_json -> '" + Field.VERSIONS + "' ELSE '[]'::jsonb END) WITH ORDINALITY AS series_version(version_id, position) " +
+                "JOIN versions ON versions.version_id = series_version.version_id AND versions.series_id = series.series_id), '[]'::jsonb) " +
+                "FROM series WHERE series.series_id = ?;";
+    }
 
-    public static String SELECT_VERSION_BY_ID = "SELECT versions.version_json FROM versions WHERE versions.version_id = ?;";
-    public static String SELECT_SERIES_VERSIONS_VALID = "SELECT versions.version_json FROM versions " +
-            "WHERE versions.series_id = ? " +
-            "AND versions.version_json ->> '" + Field.ADMINISTRATIVE_STATUS + "' = ANY (string_to_array(?, ',')) " +
-            "AND CAST (versions.version_json ->> '" + Field.VALID_FROM + "' AS DATE) < CURRENT_DATE;";
-    public static String SELECT_SERIES_VERSIONS_VALID_AND_FUTURE = "SELECT versions.version_json FROM versions " +
-            "WHERE versions.series_id = ? " +
-            "AND versions.version_json ->> '" + Field.ADMINISTRATIVE_STATUS + "' = ANY (string_to_array(?, ','));";
-    public static String UPDATE_VERSION = "UPDATE versions SET version_json = ? WHERE series_id = ? AND version_id = ?";
+    // For streaming reads, where the ids needed for the links must be known before the document is copied
+    public static String SELECT_SERIES_VERSIONS_FILTERED_WITH_IDS = "SELECT versions.series_id, versions.version_json ->> '" + Field.VERSION_ID + "', " + versionJsonOf("all") + " FROM versions " + SERIES_VERSIONS_FILTER;
+    public static String SELECT_VERSION_BY_ID_WITH_IDS = "SELECT versions.series_id, versions.version_json ->> '" + Field.VERSION_ID + "', " + versionJsonOf("all") + " FROM versions WHERE versions.version_id = ?;";
+    /*
+     * The distinct codes of the versions matching SERIES_VERSIONS_WHERE, with the name in one language, and the union of their classification versions.
+     * Parameters: language code, then the SERIES_VERSIONS_WHERE parameters.
+     * A name without text in the language becomes an empty string.
+     */
+    public static String SELECT_SERIES_CODES_IN_RANGE = "SELECT version_code.classification_id, version_code.code, version_code.name, version_code.level, " +
+            "COALESCE(jsonb_agg(DISTINCT classification_version.link ORDER BY classification_version.link) FILTER (WHERE classification_version.link IS NOT NULL), '[]'::jsonb) " +
+            "FROM versions " +
+            "CROSS JOIN LATERAL jsonb_array_elements(COALESCE(" + versionCodesOf("all") + ", '[]'::jsonb)) AS code_json(code) " +
+            "CROSS JOIN LATERAL (SELECT code_json.code ->> '" + Field.CLASSIFICATION_ID + "' AS classification_id, " +
+            "code_json.code ->> '" + Field.CODE + "' AS code, " +
+            "CASE WHEN jsonb_typeof(code_json.code -> '" + Field.NAME + "') = 'string' THEN code_json.code ->> '" + Field.NAME + "' " +
+            "ELSE COALESCE((SELECT name_text ->> '" + Field.LANGUAGE_TEXT + "' FROM jsonb_array_elements(" +
+            "CASE WHEN jsonb_typeof(code_json.code -> '" + Field.NAME + "') = 'array' THEN code_json.code -> '" + Field.NAME + "' ELSE '[]'::jsonb END) AS name_text " +
+            "WHERE name_text ->> '" + Field.LANGUAGE_CODE + "' = ? LIMIT 1), '') END AS name, " +
+            "code_json.code ->> '" + Field.LEVEL + "' AS level) AS version_code " +
+            "LEFT JOIN LATERAL jsonb_array_elements_text(CASE WHEN jsonb_typeof(code_json.code -> '" + Field.CLASSIFICATION_VERSIONS + "') = 'array' " +
+            "THEN code_json.code -> '" + Field.CLASSIFICATION_VERSIONS + "' ELSE '[]'::jsonb END) AS classification_version(link) ON TRUE " +
+            SERIES_VERSIONS_WHERE +
+            "GROUP BY version_code.classification_id, version_code.code, version_code.name, version_code.level " +
+            "ORDER BY version_code.classification_id, version_code.code, version_code.level, version_code.name;";
+    /*
+     * Codes of the version valid on a date. Parameters: date, comma separated statuses,
+     * latest allowed valid_from (null to include future versions) twice, series_id.
+     * No row means that the series does not exist. A row with null codes means that no version was valid on the date.
+     */
+    public static String SELECT_SERIES_CODES_AT = "SELECT valid_version.codes FROM series " +
+            "LEFT JOIN LATERAL (SELECT " + versionCodesOf("all") + " AS codes FROM versions " +
+            "WHERE versions.series_id = series.series_id " +
+            "AND versions.validity @> CAST(? AS DATE) " +
+            "AND versions.status = ANY (string_to_array(?, ',')) " +
+            "AND (CAST(? AS DATE) IS NULL OR versions.valid_from <= CAST(? AS DATE)) " +
+            "ORDER BY versions.valid_from DESC LIMIT 1) valid_version ON TRUE " +
+            "WHERE series.series_id = ?;";
+    /*
+     * Updates a version, stores its code list if it is not stored already, and replaces its version_codes rows. All parts of the statement see the same snapshot,
+     * so the delete only removes the rows from before the update.
+     * Parameters: version json, series_id, version_id, expected revision (null to update whatever the revision is) twice.
+     * Returns the new revision and the hash of the code list the version had before, if it was replaced by another,
+     * or no row if the version does not exist or had another revision. Notifies CHANGES_CHANNEL.
+     * If inlineCodes is true, version_json keeps a copy of the codes, for instances from before code lists.
+     */
+    public static String updateVersion(boolean inlineCodes) {
+        return "WITH new_version AS (SELECT CAST(? AS JSONB) AS version_json), " +
+                NEW_CODE_LIST +
+                "updated_version AS (" +
+                "UPDATE versions SET version_json = " + newVersionJson(inlineCodes) + ", codes_hash = new_code_list.hash, revision = versions.revision + 1 " +
+                "FROM new_version LEFT JOIN new_code_list ON TRUE, versions AS previous_version " +
+                "WHERE versions.series_id = ? AND versions.version_id = ? AND previous_version.version_id = versions.version_id " +
+                "AND (CAST(? AS BIGINT) IS NULL OR versions.revision = ?) " +
+                "RETURNING versions.version_id, versions.series_id, versions.valid_from, versions.valid_until, versions.revision, " +
+                "versions.codes_hash, previous_version.codes_hash AS previous_codes_hash), " +
+                "deleted_codes AS (DELETE FROM version_codes WHERE version_codes.version_id IN (SELECT updated_version.version_id FROM updated_version)), " +
+                "inserted_codes AS (INSERT INTO " + VERSION_CODES_COLUMNS + selectVersionCodesOf("updated_version", NEW_VERSION_CODES) + ") " +
+                "SELECT updated_version.revision, " + NOTIFY_CHANGE_OF + "updated_version.series_id), " +
+                "CASE WHEN updated_version.previous_codes_hash IS DISTINCT FROM updated_version.codes_hash THEN updated_version.previous_codes_hash END " +
+                "FROM updated_version;";
+    }
+    /*
+     * The version id, status, validFrom and validUntil of the versions of a series, ordered by validFrom and then version id.
+     * Only the row and its generated columns are read. Reading fields out of version_json would fetch and decompress the whole document, code list and all.
+     * The version id is the version uid without the "{series_id}_" prefix. Parameters: series_id, comma separated statuses.
+     * Backed by "versionsSeriesStatusValidFromIndex".
+     */
+    public static String SELECT_VERSIONS_METADATA = "SELECT substr(versions.version_id, length(versions.series_id) + 2), versions.status, " +
+            "to_char(versions.valid_from, 'YYYY-MM-DD'), to_char(versions.valid_until, 'YYYY-MM-DD') FROM versions " +
+            "WHERE versions.series_id = ? AND versions.status = ANY (string_to_array(?, ',')) " +
+            "ORDER BY versions.valid_from, versions.version_id;";
+    /*
+     * Set the validUntil and lastModified of a version in place, and the validity of its codes with it.
+     * Parameters: validUntil, lastModified, series_id, version_id.
+     */
+    public static String UPDATE_VERSION_VALID_UNTIL = "WITH updated_version AS (" +
+            "UPDATE versions SET version_json = versions.version_json || jsonb_build_object(" +
+            "'" + Field.VALID_UNTIL + "', CAST(? AS TEXT), '" + Field.LAST_MODIFIED + "', CAST(? AS TEXT)), revision = versions.revision + 1 " +
+            "WHERE series_id = ? AND version_id = ? " +
+            "RETURNING versions.version_id, versions.series_id, versions.valid_until, versions.revision), " +
+            "updated_codes AS (UPDATE version_codes SET valid_until = updated_version.valid_until FROM updated_version " +
+            "WHERE version_codes.version_id = updated_version.version_id) " +
+            "SELECT updated_version.revision, " + NOTIFY_CHANGE_OF + "updated_version.series_id) FROM updated_version;";
+    /*
+     * Versions that contain a code. Parameters: classification id, code, date (null for any date) three times,
+     * comma separated statuses. Backed by "versionCodesCodeIndex".
+     */
+    public static String SELECT_VERSIONS_BY_CODE = "SELECT versions.series_id, versions.version_json ->> '" + Field.VERSION_ID + "', versions.status, " +
+            "version_codes.valid_from, version_codes.valid_until, version_codes.level " +
+            "FROM version_codes JOIN versions ON versions.version_id = version_codes.version_id " +
+            "WHERE version_codes.classification_id = ? AND version_codes.code = ? " +
+            "AND (CAST(? AS DATE) IS NULL OR (version_codes.valid_from <= CAST(? AS DATE) " +
+            "AND (version_codes.valid_until IS NULL OR version_codes.valid_until > CAST(? AS DATE)))) " +
+            "AND versions.status = ANY (string_to_array(?, ',')) " +
+            "ORDER BY versions.series_id, version_codes.valid_from;";
 
     public static String DELETE_SERIES = "DELETE FROM series;";
     public static String DELETE_SERIES_BY_ID = "DELETE FROM series WHERE series.series_id = ?;";
-    public static String DELETE_VERSIONS_IN_SERIES = "DELETE FROM versions WHERE versions.series_id = ?;";
+    // The deletes of some versions return the code lists they referenced, so that only those are checked for references afterwards
+    public static String DELETE_VERSIONS_IN_SERIES = "DELETE FROM versions WHERE versions.series_id = ? RETURNING versions.codes_hash;";
     public static String DELETE_VERSIONS = "DELETE FROM versions;";
-    public static String DELETE_VERSIONS_BY_ID = "DELETE FROM versions WHERE versions.series_id = ? AND versions.version_id = ?;";
+    public static String DELETE_VERSIONS_BY_ID = "DELETE FROM versions WHERE versions.series_id = ? AND versions.version_id = ? RETURNING versions.codes_hash;";
 
 
 }
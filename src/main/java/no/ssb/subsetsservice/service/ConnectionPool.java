@@ -2,16 +2,22 @@ package no.ssb.subsetsservice.service;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
 public class ConnectionPool {
 
-    private static ConnectionPool instance;
+    private static volatile ConnectionPool instance;
+    private static volatile ConnectionPool replicaInstance;
 
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
 
@@ -20,44 +26,81 @@ public class ConnectionPool {
     private static final String ENV_DB_PASSWORD = "SPRING_DATASOURCE_PASSWORD"; // The ENV var containing the users password
     private static final String ENV_DB_CONNECTION_NAME = "POSTGRES_CONNECTION_NAME"; // The ENV var containing the cloud SQL instance name
     private static final String ENV_JDBC_URL = "SPRING_DATASOURCE_URL";
+    private static final String ENV_REPLICA_JDBC_URL = "SPRING_DATASOURCE_REPLICA_URL"; // Optional read replica. Reads are only routed to a replica if this or the next one is set
+    private static final String ENV_REPLICA_CONNECTION_NAME = "POSTGRES_REPLICA_CONNECTION_NAME"; // Optional cloud SQL read replica instance name
+
+    private static final String ENV_POOL_MAX_SIZE = "POSTGRES_POOL_MAX_SIZE"; // Max number of connections in the pool
+    private static final String ENV_POOL_MIN_IDLE = "POSTGRES_POOL_MIN_IDLE"; // Connections kept open, and warmed up before the service reports ready
+    private static final String ENV_POOL_IDLE_TIMEOUT_MS = "POSTGRES_POOL_IDLE_TIMEOUT_MS"; // How long a connection above min idle may sit unused
+    private static final String ENV_POOL_LEAK_DETECTION_MS = "POSTGRES_POOL_LEAK_DETECTION_MS"; // Log a warning if a connection is held longer than this. 0 disables it
+    private static final String ENV_CONNECTION_TIMEOUT_MS = "POSTGRES_CONNECTION_TIMEOUT_MS"; // How long a request waits for a connection before it fails
 
     private static final String LOCAL_PS_USER = "subsets";
     private static final String LOCAL_PS_PW = "postgres";
     private static final String LOCAL_DB_NAME = "subsets";
     private static final String LOCAL_JDBC_PS_URL = "jdbc:postgresql://localhost:5432/"+LOCAL_DB_NAME;
 
+    private static final int DEFAULT_POOL_MAX_SIZE = 10;
+    private static final int DEFAULT_POOL_MIN_IDLE = 2;
+    private static final long DEFAULT_POOL_IDLE_TIMEOUT_MS = 600000; // 10 min
+    private static final long DEFAULT_POOL_LEAK_DETECTION_MS = 0;
+    private static final long DEFAULT_CONNECTION_TIMEOUT_MS = 10000; // 10s
+
+    private static final String PRIMARY_POOL_NAME = "subsets-pool";
+    private static final String REPLICA_POOL_NAME = "subsets-replica-pool";
+
     private String db_name;
     private String user;
     private String password;
     private String cloudSqlInstance;
     private String jdbcUrl;
 
-    private DataSource dataSource;
+    private int minIdle;
+
+    private HikariDataSource dataSource;
 
-    public static ConnectionPool getInstance(){
+    public static synchronized ConnectionPool getInstance(){
         if (instance == null)
-            instance = new ConnectionPool();
+            instance = new ConnectionPool(PRIMARY_POOL_NAME, System.getenv().getOrDefault(ENV_JDBC_URL, LOCAL_JDBC_PS_URL), System.getenv(ENV_DB_CONNECTION_NAME));
         return instance;
     };
 
-    private ConnectionPool(){
-        LOG.debug("ConnectionPool constructor");
+    /**
+     * @return a read-only pool towards the read replica, or null if no replica is configured
+     */
+    public static synchronized ConnectionPool getReplicaInstance(){
+        String replicaJdbcUrl = System.getenv(ENV_REPLICA_JDBC_URL);
+        String replicaCloudSqlInstance = System.getenv(ENV_REPLICA_CONNECTION_NAME);
+        if (replicaInstance == null && (replicaJdbcUrl != null || replicaCloudSqlInstance != null))
+            replicaInstance = new ConnectionPool(REPLICA_POOL_NAME, replicaJdbcUrl, replicaCloudSqlInstance);
+        return replicaInstance;
+    }
+
+    private ConnectionPool(String poolName, String jdbcUrl, String cloudSqlInstance){
+        LOG.debug("ConnectionPool constructor for "+poolName);
         db_name = System.getenv().getOrDefault(ENV_DB_NAME, LOCAL_DB_NAME);
         user = System.getenv().getOrDefault(ENV_DB_USERNAME, LOCAL_PS_USER);
         password = System.getenv().getOrDefault(ENV_DB_PASSWORD, LOCAL_PS_PW);
-        jdbcUrl = System.getenv().getOrDefault(ENV_JDBC_URL, LOCAL_JDBC_PS_URL);
-        cloudSqlInstance = System.getenv(ENV_DB_CONNECTION_NAME);
+        this.jdbcUrl = jdbcUrl;
+        this.cloudSqlInstance = cloudSqlInstance;
+        HikariConfig config;
         if (cloudSqlInstance != null) {
             LOG.debug("DataSource pointing to an external CloudSQL instance '"+cloudSqlInstance+"' will be attempted.");
-            dataSource = getExternalDataSource(db_name, user, password, cloudSqlInstance);
+            config = getExternalDataSourceConfig(db_name, user, password, cloudSqlInstance);
         } else {
-            LOG.warn(ENV_DB_CONNECTION_NAME+" env variable pointing to a CloudSQL instance name was not present. "+
-                    "No connection pool is created, and a new connection to "+jdbcUrl+" will be attempted at each getConnection() call. "+
+            LOG.debug(ENV_DB_CONNECTION_NAME+" env variable pointing to a CloudSQL instance name was not present. "+
+                    "A connection pool towards "+jdbcUrl+" is created instead. "+
                     "If a CloudSQL proxy is present, connections to localhost (127.0.0.1) are supposed to work towards an external instance.");
+            config = getJdbcDataSourceConfig(jdbcUrl, user, password);
         }
+        applyPoolSettings(config, poolName);
+        // The replica can not be written to anyway. Read-only connections make the driver fail fast if a write is routed there by mistake
+        config.setReadOnly(poolName.equals(REPLICA_POOL_NAME));
+        dataSource = new HikariDataSource(config);
+        warmUp();
     }
 
-    private static HikariDataSource getExternalDataSource(String db_name, String user, String password, String cloudSqlInstance){
+    private static HikariConfig getExternalDataSourceConfig(String db_name, String user, String password, String cloudSqlInstance){
         LOG.debug("createConnectionPool - db: "+db_name+" user: "+user+" cloudSqlInstance: "+cloudSqlInstance);
         // Set up URL parameters
         String jdbcURL = String.format("jdbc:postgresql:///%s", db_name);
@@ -73,15 +116,125 @@ public class ConnectionPool {
         HikariConfig config = new HikariConfig();
         config.setJdbcUrl(jdbcURL);
         config.setDataSourceProperties(connProps);
-        config.setConnectionTimeout(10000); // 10s
+        return config;
+    }
 
-        return new HikariDataSource(config);
+    private static HikariConfig getJdbcDataSourceConfig(String jdbcUrl, String user, String password){
+        LOG.debug("createConnectionPool - jdbcUrl: "+jdbcUrl+" user: "+user);
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(jdbcUrl);
+        config.setUsername(user);
+        config.setPassword(password);
+        // Do not fail at startup if the database is not up yet. Readiness is reported through isWarmedUp() instead.
+        config.setInitializationFailTimeout(-1);
+        return config;
+    }
+
+    private void applyPoolSettings(HikariConfig config, String poolName){
+        int maxSize = getIntEnv(ENV_POOL_MAX_SIZE, DEFAULT_POOL_MAX_SIZE);
+        minIdle = Math.min(getIntEnv(ENV_POOL_MIN_IDLE, DEFAULT_POOL_MIN_IDLE), maxSize);
+        long idleTimeout = getLongEnv(ENV_POOL_IDLE_TIMEOUT_MS, DEFAULT_POOL_IDLE_TIMEOUT_MS);
+        long leakDetectionThreshold = getLongEnv(ENV_POOL_LEAK_DETECTION_MS, DEFAULT_POOL_LEAK_DETECTION_MS);
+        long connectionTimeout = getLongEnv(ENV_CONNECTION_TIMEOUT_MS, DEFAULT_CONNECTION_TIMEOUT_MS);
+        LOG.debug("Connection pool settings for "+poolName+" - maxSize: "+maxSize+" minIdle: "+minIdle+" idleTimeout: "+idleTimeout+" ms leakDetectionThreshold: "+leakDetectionThreshold+" ms connectionTimeout: "+connectionTimeout+" ms");
+        config.setPoolName(poolName);
+        config.setMaximumPoolSize(maxSize);
+        config.setMinimumIdle(minIdle);
+        config.setIdleTimeout(idleTimeout);
+        config.setLeakDetectionThreshold(leakDetectionThreshold);
+        config.setConnectionTimeout(connectionTimeout);
+        // Publishes hikaricp.connections.active, .idle, .pending, .acquire and friends, tagged with the pool name.
+        // The pools are not Spring beans, so they register with the global registry, which Spring Boot adds its registries to
+        config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(Metrics.globalRegistry));
+    }
+
+    /**
+     * Opens minIdle connections in the background, so that the first requests do not pay for the handshakes.
+     * Hikari would eventually fill the pool on its own, but only at its housekeeping interval.
+     */
+    private void warmUp(){
+        CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            List<Connection> connections = new ArrayList<>(minIdle);
+            try {
+                for (int i = 0; i < minIdle; i++) {
+                    connections.add(dataSource.getConnection());
+                }
+                LOG.info("Connection pool warmed up with "+minIdle+" connections in "+((System.nanoTime() - start) / 1_000_000)+" ms");
+            } catch (SQLException ex) {
+                LOG.warn("Connection pool warm-up failed after "+connections.size()+" of "+minIdle+" connections: "+ex.getMessage());
+            } finally {
+                for (Connection connection : connections) {
+                    try {
+                        connection.close();
+                    } catch (SQLException ex) {
+                        LOG.warn("Failed to return warm-up connection to the pool: "+ex.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true when the pool holds at least the configured minimum number of idle connections
+     */
+    public boolean isWarmedUp(){
+        HikariPoolMXBean poolMXBean = dataSource.getHikariPoolMXBean();
+        if (poolMXBean == null)
+            return false;
+        int totalConnections = poolMXBean.getTotalConnections();
+        LOG.trace("Connection pool has "+totalConnections+" connections, minIdle is "+minIdle);
+        return totalConnections >= minIdle;
+    }
+
+    /**
+     * @return the number of threads waiting for a connection from this pool
+     */
+    public int getPendingConnections(){
+        HikariPoolMXBean poolMXBean = dataSource.getHikariPoolMXBean();
+        return poolMXBean == null ? 0 : poolMXBean.getThreadsAwaitingConnection();
+    }
+
+    /**
+     * The highest number of threads waiting for a connection in any of the pools created so far.
+     * Does not create a pool, so it is 0 when another backend than Postgres is used.
+     */
+    public static int getMaxPendingConnections(){
+        ConnectionPool primary = instance;
+        ConnectionPool replica = replicaInstance;
+        int pending = primary == null ? 0 : primary.getPendingConnections();
+        if (replica != null)
+            pending = Math.max(pending, replica.getPendingConnections());
+        return pending;
+    }
+
+    /**
+     * The number in an env variable, or the default if it is not set or not a number, which is logged.
+     */
+    public static int getIntEnv(String name, int defaultValue){
+        return (int) getLongEnv(name, defaultValue);
+    }
+
+    public static long getLongEnv(String name, long defaultValue){
+        String value = System.getenv(name);
+        if (value == null || value.isBlank())
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Env variable "+name+" had the non-numeric value '"+value+"'. Using default "+defaultValue);
+            return defaultValue;
+        }
     }
 
     public Connection getConnection() throws SQLException {
-        if (dataSource != null)
-            return dataSource.getConnection();
-        else
-            return DriverManager.getConnection(jdbcUrl, user, password);
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Close a connection instead of returning it to the pool, for connections left in a state other users should not inherit.
+     */
+    public void evictConnection(Connection connection){
+        dataSource.evictConnection(connection);
     }
 }
@@ -1,13 +1,30 @@
 package no.ssb.subsetsservice.service;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class DatabaseFactory {
 
     public static final String POSTGRES = "POSTGRES";
+    public static final String IN_MEMORY = "IN_MEMORY";
+    public static final String MAPPED_LOG = "MAPPED_LOG";
     public static final String DEFAULT_DATABASE = POSTGRES;
 
+    // One long-lived backend per type, so that schema bootstrap only happens the first time a backend is requested
+    private static final Map<String, DatabaseInterface> instances = new ConcurrentHashMap<>();
+
+    /**
+     * The backend of the type in env BACKEND_TYPE, or the default one if it is not set.
+     */
+    public static DatabaseInterface getDatabase() {
+        return getDatabase(System.getenv().getOrDefault("BACKEND_TYPE", DEFAULT_DATABASE));
+    }
+
     public static DatabaseInterface getDatabase(String databaseType) {
         switch (databaseType.toUpperCase()) {
-            case POSTGRES: return new PostgresFacade();
+            case POSTGRES: return instances.computeIfAbsent(POSTGRES, type -> new PostgresFacade());
+            case IN_MEMORY: return instances.computeIfAbsent(IN_MEMORY, type -> new InMemoryDatabase());
+            case MAPPED_LOG: return instances.computeIfAbsent(MAPPED_LOG, type -> new InMemoryDatabase(new MappedDocumentLog()));
             default: return null;
         }
     }
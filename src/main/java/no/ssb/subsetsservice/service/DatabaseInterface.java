@@ -4,6 +4,9 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.springframework.http.ResponseEntity;
 
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+
 /**
  * This interface presents some operations that can be made against a connection
  * to an instance of the database
@@ -14,24 +17,160 @@ public interface DatabaseInterface {
 
     ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts);
 
+    /**
+     * Get the versions of a series, with the filtering done by the database.
+     * Unlike the method above, an empty array is returned with status OK if no versions match.
+     *
+     * @param from if not null, only versions that are still valid after this date (YYYY-MM-DD) are returned
+     * @param to if not null, only versions that are valid from before this date (YYYY-MM-DD) are returned
+     */
+    ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to);
+
+    /**
+     * Get the distinct codes of the versions of a series that are valid in a date interval, computed by the database.
+     * Codes are distinct on classificationId, code, name and level. The name is given in the language, and the classificationVersions
+     * are the union of those of the code in all the versions.
+     *
+     * @param from if not null, only versions that are still valid after this date (YYYY-MM-DD) are included
+     * @param to if not null, only versions that are valid from before this date (YYYY-MM-DD) are included
+     */
+    ResponseEntity<JsonNode> getCodesInRange(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to, String language);
+
+    /**
+     * Get one page of the versions of a series, ordered by validFrom and then version id.
+     * An empty array is returned with status OK if there are no more versions.
+     *
+     * @param limit max number of versions in the page, or null for no limit
+     * @param afterVersionID the last version id of the previous page, or null for the first page
+     */
+    ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID);
+
+    /**
+     * The same as the method above, with the versions in a language as given by {@link no.ssb.subsetsservice.util.Utils#setSingleLanguage(com.fasterxml.jackson.databind.node.ObjectNode, String)}.
+     *
+     * @param language one of Utils.LANGUAGE_CODES, or 'all' for the versions as they are stored
+     */
+    ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID, String language);
+
+    /**
+     * Get only the codes of the version of a series that is valid on the given date.
+     * Returns 404 if the series does not exist, and an empty array if no version is valid on the date.
+     */
+    ResponseEntity<JsonNode> getCodesAt(String seriesID, String date, boolean includeFuture, boolean includeDrafts);
+
+    /**
+     * Find the versions that contain a code, using the version_codes index.
+     * Each result has the subsetId, versionId, administrativeStatus, validFrom, validUntil and level of the code.
+     *
+     * @param date if not null, only versions valid on this date (YYYY-MM-DD) are returned
+     */
+    ResponseEntity<JsonNode> getVersionsByCode(String classificationID, String code, String date, boolean includeDrafts);
+
+    /*
+     * Single documents are returned with an ETag header holding the revision of the stored row.
+     */
+
     ResponseEntity<JsonNode> getVersionByID(String versionId);
 
+    /**
+     * Get a version in a language as given by {@link no.ssb.subsetsservice.util.Utils#setSingleLanguage(com.fasterxml.jackson.databind.node.ObjectNode, String)}.
+     *
+     * @param language one of Utils.LANGUAGE_CODES, or 'all' for the version as it is stored
+     */
+    ResponseEntity<JsonNode> getVersionByID(String versionId, String language);
+
     ResponseEntity<JsonNode> getSubsetSeries(String id);
 
+    /**
+     * Get a series where the versions array holds the full versions instead of references to them, read together in one consistent read.
+     * Every version the versions array references is included, in the order of that array. Links are not added.
+     *
+     * @param language one of Utils.LANGUAGE_CODES, or 'all' for the versions as they are stored
+     */
+    ResponseEntity<JsonNode> getSubsetSeriesWithVersions(String id, String language);
+
     ResponseEntity<JsonNode> getAllSubsetSeries();
 
+    /**
+     * Get one page of the series, ordered by series id, with the filtering done by the database.
+     *
+     * @param includeDrafts if false, series with administrativeStatus DRAFT are left out
+     * @param includeFuture if false, series with a validFrom after today are left out
+     * @param includeExpired if false, series with a validUntil before today are left out
+     * @param limit max number of series in the page, or null for no limit
+     * @param afterSeriesID the last series id of the previous page, or null for the first page
+     */
+    ResponseEntity<JsonNode> getSubsetSeriesPage(boolean includeDrafts, boolean includeFuture, boolean includeExpired, Integer limit, String afterSeriesID);
+
+    /*
+     * Streaming reads. These copy the stored json straight to the response, adding links and applying the language filter on the fly.
+     * They return OK after the body has been written, or an error response entity if nothing was written to the response.
+     */
+
+    ResponseEntity<JsonNode> streamSubsetSeries(boolean includeDrafts, boolean includeFuture, boolean includeExpired, HttpServletResponse response);
+
+    ResponseEntity<JsonNode> streamVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String language, HttpServletResponse response);
+
+    ResponseEntity<JsonNode> streamVersionByID(String versionUid, String language, HttpServletResponse response);
+
+    ResponseEntity<JsonNode> streamSubsetSeriesWithVersions(String id, String language, HttpServletResponse response);
+
     boolean healthReady();
 
     ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID);
 
+    /**
+     * Conditional update of a series. On success the ETag header of the response holds the new revision.
+     *
+     * @param expectedRevision the revision the series must have for the update to happen, or null to update any revision.
+     * Returns PRECONDITION_FAILED if the series has another revision.
+     */
+    ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID, Long expectedRevision);
+
+    /**
+     * Conditional update of only some top-level fields of a series. The other fields of the stored series, like the versions array, are not rewritten.
+     * Responds like the conditional editSeries.
+     *
+     * @param changedFields the fields to set, with their new values
+     * @param removedFields the names of the fields to remove
+     */
+    ResponseEntity<JsonNode> patchSeries(String seriesID, ObjectNode changedFields, List<String> removedFields, Long expectedRevision);
+
     ResponseEntity<JsonNode> createSubsetSeries(JsonNode subset, String id);
 
     ResponseEntity<JsonNode> saveVersionInSeries(String id, String versionID, JsonNode versionNode);
 
+    /**
+     * Store new series and new versions of series, in batches.
+     * The series must be ready to store, and each version must have its subsetId and versionId set.
+     *
+     * @param closedVersionList one element per version, null or a stored version of the same series with its subsetId, versionId and new validUntil.
+     * The validUntil is set in the same transaction as the version is written, so it is only set if the version is.
+     * @return an array with one result object per series and then per version, in the order they were given.
+     * Each result has the stored "id", the http "status" for the item and, if it failed, a "message".
+     * If the import fails part way, the error body has the results of the items handled before the failure in "items".
+     */
+    ResponseEntity<JsonNode> importSeriesAndVersions(List<JsonNode> seriesList, List<JsonNode> versionList, List<JsonNode> closedVersionList);
+
     ResponseEntity<JsonNode> resolveVersionLink(String versionLink);
 
     boolean existsSubsetSeriesWithID(String id);
 
+    /**
+     * Get the versionId, subsetId, administrativeStatus, validFrom and validUntil of the versions of a series, without the rest of the versions.
+     * Versions are ordered by validFrom and then version id, and a version without a validUntil has no validUntil field.
+     * Dates are 'YYYY-MM-DD'. The result is an empty array if the series has no such versions.
+     *
+     * @param includeDrafts if false, only OPEN versions are returned
+     */
+    ResponseEntity<JsonNode> getVersionsMetadataBySeriesID(String seriesID, boolean includeDrafts);
+
+    /**
+     * Set the validUntil of a version, and its lastModified to now, leaving the rest of the version as it is.
+     * On success the ETag header of the response holds the new revision.
+     */
+    ResponseEntity<JsonNode> setVersionValidUntil(String seriesID, String versionUid, String validUntil);
+
     ResponseEntity<JsonNode> getSubsetSeriesDefinition();
 
     ResponseEntity<JsonNode> getSubsetSeriesSchema();
@@ -49,4 +188,12 @@ public interface DatabaseInterface {
     void deleteSubsetVersion(String subsetId, String versionUid);
 
     ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion);
+
+    /**
+     * Conditional update of a version. On success the ETag header of the response holds the new revision.
+     *
+     * @param expectedRevision the revision the version must have for the update to happen, or null to update any revision.
+     * Returns PRECONDITION_FAILED if the version has another revision.
+     */
+    ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion, Long expectedRevision);
 }
@@ -0,0 +1,120 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local cache of stored series and version documents with the revisions of their rows.
+ * Entries are evicted by series id whenever the series or one of its versions is written, by this instance or by another one.
+ * Other instances learn about writes through Postgres NOTIFY, see {@link PostgresFacade}.
+ */
+class DocumentCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentCache.class);
+
+    static final String ALL_SERIES = "*"; // Notification payload that evicts everything
+
+    private final int maxEntries;
+    private final Map<String, CachedDocument> seriesByID = new ConcurrentHashMap<>();
+    private final Map<String, CachedDocument> versionsByUID = new ConcurrentHashMap<>();
+    // Incremented by every eviction. A document read before an eviction may be stale, and is not put in the cache.
+    private final AtomicLong generation = new AtomicLong();
+    // Only while the instance listens for notifications can it know that entries are still fresh
+    private volatile boolean enabled = false;
+
+    static class CachedDocument {
+        final String seriesID;
+        final JsonNode document;
+        final long revision;
+
+        private CachedDocument(String seriesID, JsonNode document, long revision) {
+            this.seriesID = seriesID;
+            this.document = document;
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * @param maxEntries max number of series and versions together. Everything is evicted when it is exceeded.
+     */
+    DocumentCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Start using the cache, from empty. Call this when listening for notifications has started.
+     */
+    void enable() {
+        evictAll();
+        enabled = true;
+    }
+
+    /**
+     * Stop using the cache. Call this when notifications can no longer be received.
+     */
+    void disable() {
+        enabled = false;
+        evictAll();
+    }
+
+    /**
+     * Read this before reading a document from the database, and pass it to put afterwards.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    CachedDocument getSeries(String seriesID) {
+        return enabled ? seriesByID.get(seriesID) : null;
+    }
+
+    CachedDocument getVersion(String versionUID) {
+        return enabled ? versionsByUID.get(versionUID) : null;
+    }
+
+    void putSeries(long readGeneration, String seriesID, JsonNode series, long revision) {
+        put(seriesByID, readGeneration, seriesID, new CachedDocument(seriesID, series, revision));
+    }
+
+    void putVersion(long readGeneration, String seriesID, String versionUID, JsonNode version, long revision) {
+        put(versionsByUID, readGeneration, versionUID, new CachedDocument(seriesID, version, revision));
+    }
+
+    private void put(Map<String, CachedDocument> documents, long readGeneration, String key, CachedDocument cachedDocument) {
+        if (!enabled)
+            return;
+        if (seriesByID.size() + versionsByUID.size() >= maxEntries) {
+            LOG.debug("Document cache is full with " + maxEntries + " entries. Evicting everything");
+            evictAll();
+            return;
+        }
+        documents.put(key, cachedDocument);
+        // An eviction may have happened between the database read and the put above
+        if (generation.get() != readGeneration)
+            documents.remove(key, cachedDocument);
+    }
+
+    /**
+     * Evict the series and all its versions.
+     */
+    void evictSeries(String seriesID) {
+        if (ALL_SERIES.equals(seriesID)) {
+            evictAll();
+            return;
+        }
+        generation.incrementAndGet();
+        seriesByID.remove(seriesID);
+        versionsByUID.values().removeIf(cachedVersion -> cachedVersion.seriesID.equals(seriesID));
+    }
+
+    void evictAll() {
+        generation.incrementAndGet();
+        seriesByID.clear();
+        versionsByUID.clear();
+    }
+}
@@ -0,0 +1,1003 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ssb.subsetsservice.controller.ErrorHandler;
+import no.ssb.subsetsservice.entity.Field;
+import no.ssb.subsetsservice.util.JsonStreamRenderer;
+import no.ssb.subsetsservice.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.http.HttpStatus.*;
+
+/**
+ * A DatabaseInterface that keeps everything in concurrent maps, for development, tests and as a baseline in performance comparisons.
+ * It answers like {@link PostgresFacade}: same filters, orderings, status codes and ETags.
+ * Reads do not lock. Writes are serialized, since a write may change a version, its series and the indexes together.
+ * If IN_MEMORY_SNAPSHOT_PATH is set, the data is loaded from that file at startup, and saved to it periodically and at shutdown.
+ * Given a {@link ChangeLog}, every write is appended to it before it is applied, and the log is replayed at startup instead.
+ */
+public class InMemoryDatabase implements DatabaseInterface {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryDatabase.class);
+
+    private static final String ENV_SNAPSHOT_PATH = "IN_MEMORY_SNAPSHOT_PATH"; // Optional file to save the data to and load it from
+    private static final String ENV_SNAPSHOT_INTERVAL_MS = "IN_MEMORY_SNAPSHOT_INTERVAL_MS"; // How often the data is saved, if it has changed
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_MS = 60000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Sorts after every date, like NULLS LAST
+    private static final String NO_DATE = "\uffff";
+    private static final String KEY_SEPARATOR = "\u0000";
+
+    static class StoredDocument {
+        final String id;
+        final String seriesID;
+        final JsonNode json; // Never modified after it is stored
+        final long revision;
+        final String status;
+        final String validFrom;
+        final String validUntil;
+
+        StoredDocument(String id, String seriesID, JsonNode json, long revision) {
+            this.id = id;
+            this.seriesID = seriesID;
+            this.json = json;
+            this.revision = revision;
+            this.status = json.hasNonNull(Field.ADMINISTRATIVE_STATUS) ? json.get(Field.ADMINISTRATIVE_STATUS).asText() : null;
+            this.validFrom = isoDate(json, Field.VALID_FROM);
+            this.validUntil = isoDate(json, Field.VALID_UNTIL);
+        }
+
+        /**
+         * Versions of a series are ordered by validFrom and then version uid.
+         */
+        String versionSortKey() {
+            return (validFrom == null ? NO_DATE : validFrom) + KEY_SEPARATOR + id;
+        }
+    }
+
+    enum ChangeType { PUT_SERIES, PUT_VERSION, DELETE_SERIES, DELETE_VERSION, DELETE_ALL }
+
+    /**
+     * One change to the stored data. A write is one or more changes, which are applied together.
+     */
+    static class Change {
+        final ChangeType type;
+        final String id; // Series id or version uid. Null for DELETE_ALL.
+        final StoredDocument document; // Only for the PUT types
+
+        private Change(ChangeType type, String id, StoredDocument document) {
+            this.type = type;
+            this.id = id;
+            this.document = document;
+        }
+
+        static Change put(ChangeType type, StoredDocument document) {
+            return new Change(type, document.id, document);
+        }
+
+        static Change delete(ChangeType type, String id) {
+            return new Change(type, id, null);
+        }
+    }
+
+    /**
+     * Persists the changes of an InMemoryDatabase.
+     */
+    interface ChangeLog {
+        /**
+         * Open the log and apply the changes in it to the database, in order.
+         */
+        void replay(InMemoryDatabase database) throws IOException;
+
+        /**
+         * Durably append the changes of one write. Called with the write lock held, before the changes are applied.
+         * If it throws, the write fails and nothing is applied.
+         */
+        void append(List<Change> changes) throws IOException;
+
+        String describe();
+    }
+
+    private final ConcurrentSkipListMap<String, StoredDocument> seriesByID = new ConcurrentSkipListMap<>();
+    private final Map<String, StoredDocument> versionsByUID = new ConcurrentHashMap<>();
+    private final Map<String, ConcurrentSkipListMap<String, StoredDocument>> versionsBySeries = new ConcurrentHashMap<>();
+    // "{classificationId}\0{code}" to the uids of the versions with that code
+    private final Map<String, Set<String>> versionUIDsByCode = new ConcurrentHashMap<>();
+
+    private final ChangeLog changeLog;
+    private final Path snapshotPath;
+    private SubsetSchemas schemas;
+    private volatile boolean changedSinceSnapshot = false;
+    private boolean initialized = false;
+
+    InMemoryDatabase() {
+        this(null, snapshotPathFromEnv());
+    }
+
+    InMemoryDatabase(ChangeLog changeLog) {
+        this(changeLog, null);
+    }
+
+    /**
+     * @param snapshotPath the snapshot file, or null for no snapshots. Not used when there is a change log.
+     */
+    InMemoryDatabase(ChangeLog changeLog, Path snapshotPath) {
+        this.changeLog = changeLog;
+        this.snapshotPath = changeLog == null ? snapshotPath : null;
+        initializeDatabase();
+    }
+
+    private static Path snapshotPathFromEnv() {
+        String snapshotPathEnv = System.getenv(ENV_SNAPSHOT_PATH);
+        return snapshotPathEnv == null || snapshotPathEnv.isBlank() ? null : Paths.get(snapshotPathEnv.trim());
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> initializeDatabase() {
+        if (initialized) {
+            LOG.trace("initializeDatabase: database is already initialized");
+            return new ResponseEntity<>(OK);
+        }
+        schemas = new SubsetSchemas();
+        if (changeLog != null) {
+            try {
+                changeLog.replay(this);
+            } catch (IOException e) {
+                LOG.error("Failed to replay " + changeLog.describe(), e);
+                return ErrorHandler.newHttpError("Failed to replay " + changeLog.describe(), INTERNAL_SERVER_ERROR, LOG);
+            }
+        } else if (snapshotPath != null) {
+            if (Files.exists(snapshotPath)) {
+                try {
+                    loadSnapshot();
+                } catch (IOException e) {
+                    LOG.error("Failed to load the in memory snapshot from " + snapshotPath, e);
+                    return ErrorHandler.newHttpError("Failed to load the in memory snapshot from " + snapshotPath, INTERNAL_SERVER_ERROR, LOG);
+                }
+            }
+            startSnapshots();
+        }
+        initialized = true;
+        LOG.info("In memory database initialized with " + seriesByID.size() + " series and " + versionsByUID.size() + " versions" +
+                (changeLog != null ? ", with " + changeLog.describe() : snapshotPath == null ? ", without snapshots" : ", with snapshots in " + snapshotPath));
+        return new ResponseEntity<>(OK);
+    }
+
+    private static String isoDate(JsonNode json, String field) {
+        if (!json.hasNonNull(field))
+            return null;
+        String date = json.get(field).asText();
+        return date.length() >= 10 && Utils.isYearMonthDay(date.substring(0, 10)) ? date.substring(0, 10) : null;
+    }
+
+    private static ResponseEntity<JsonNode> withETag(JsonNode body, long revision, HttpStatus status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(Utils.toETag(revision));
+        return new ResponseEntity<>(body, headers, status);
+    }
+
+    private static boolean hasIncludedStatus(StoredDocument version, boolean includeDrafts) {
+        return Field.OPEN.equals(version.status) || (includeDrafts && Field.DRAFT.equals(version.status));
+    }
+
+    /**
+     * The same filter as SQL.SERIES_VERSIONS_WHERE.
+     */
+    private static boolean isIncludedVersion(StoredDocument version, boolean includeFuture, boolean includeDrafts, String from, String to) {
+        if (!hasIncludedStatus(version, includeDrafts))
+            return false;
+        if (!includeFuture && (version.validFrom == null || version.validFrom.compareTo(Utils.getNowDate()) > 0))
+            return false;
+        if (to != null && (version.validFrom == null || version.validFrom.compareTo(to) >= 0))
+            return false;
+        return from == null || version.validUntil == null || version.validUntil.compareTo(from) > 0;
+    }
+
+    private Collection<StoredDocument> versionsOf(String seriesID) {
+        ConcurrentSkipListMap<String, StoredDocument> versions = versionsBySeries.get(seriesID);
+        return versions == null ? Collections.emptyList() : versions.values();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts) {
+        LOG.debug("getVersionBySeriesID " + seriesID);
+        ResponseEntity<JsonNode> versionsRE = getVersionsBySeriesID(seriesID, includeFuture, includeDrafts, null, null);
+        if (versionsRE.getBody().isEmpty())
+            return ErrorHandler.newHttpError("There were no versions for series ID " + seriesID, NOT_FOUND, LOG);
+        return versionsRE;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to) {
+        return getVersionsPage(seriesID, includeFuture, includeDrafts, from, to, null, null);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID) {
+        return getVersionsPage(seriesID, includeFuture, includeDrafts, null, null, limit, afterVersionID);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID, String language) {
+        ResponseEntity<JsonNode> versionsRE = getVersionsPageBySeriesID(seriesID, includeFuture, includeDrafts, limit, afterVersionID);
+        if (!Arrays.asList(Utils.LANGUAGE_CODES).contains(language))
+            return versionsRE;
+        ArrayNode versionsArrayNode = MAPPER.createArrayNode();
+        versionsRE.getBody().forEach(version -> versionsArrayNode.add(Utils.setSingleLanguage((ObjectNode) version, language)));
+        return new ResponseEntity<>(versionsArrayNode, OK);
+    }
+
+    private ResponseEntity<JsonNode> getVersionsPage(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to, Integer limit, String afterVersionID) {
+        ArrayNode versionsArrayNode = MAPPER.createArrayNode();
+        String afterSortKey = null;
+        if (afterVersionID != null) {
+            StoredDocument afterVersion = versionsByUID.get(afterVersionID);
+            if (afterVersion == null)
+                return new ResponseEntity<>(versionsArrayNode, OK); // Like the row comparison with the missing version in SQL
+            afterSortKey = afterVersion.versionSortKey();
+        }
+        for (StoredDocument version : versionsOf(seriesID)) {
+            if (limit != null && versionsArrayNode.size() >= limit)
+                break;
+            if (afterSortKey != null && version.versionSortKey().compareTo(afterSortKey) <= 0)
+                continue;
+            if (isIncludedVersion(version, includeFuture, includeDrafts, from, to))
+                versionsArrayNode.add(version.json.deepCopy());
+        }
+        return new ResponseEntity<>(versionsArrayNode, OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getCodesInRange(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to, String language) {
+        LOG.debug("getCodesInRange " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " from " + from + " to " + to + " language " + language);
+        // classificationId, code, name, level to the union of the classification versions, like the GROUP BY of SQL.SELECT_SERIES_CODES_IN_RANGE
+        Map<List<String>, TreeSet<String>> classificationVersionsByCode = new HashMap<>();
+        for (StoredDocument version : versionsOf(seriesID)) {
+            if (!isIncludedVersion(version, includeFuture, includeDrafts, from, to) || !version.json.has(Field.CODES))
+                continue;
+            for (JsonNode code : version.json.get(Field.CODES)) {
+                List<String> key = Arrays.asList(textOf(code, Field.CLASSIFICATION_ID), textOf(code, Field.CODE), nameIn(code, language), textOf(code, Field.LEVEL));
+                TreeSet<String> classificationVersions = classificationVersionsByCode.computeIfAbsent(key, k -> new TreeSet<>());
+                JsonNode codeClassificationVersions = code.get(Field.CLASSIFICATION_VERSIONS);
+                if (codeClassificationVersions != null && codeClassificationVersions.isArray())
+                    codeClassificationVersions.forEach(classificationVersion -> classificationVersions.add(classificationVersion.asText()));
+            }
+        }
+        List<List<String>> keys = new ArrayList<>(classificationVersionsByCode.keySet());
+        Comparator<String> nullsLast = Comparator.nullsLast(Comparator.naturalOrder());
+        keys.sort(Comparator.<List<String>, String>comparing(key -> key.get(0), nullsLast)
+                .thenComparing(key -> key.get(1), nullsLast)
+                .thenComparing(key -> key.get(3), nullsLast)
+                .thenComparing(key -> key.get(2), nullsLast));
+        ArrayNode codesArrayNode = MAPPER.createArrayNode();
+        for (List<String> key : keys) {
+            ObjectNode code = codesArrayNode.addObject();
+            code.put(Field.CLASSIFICATION_ID, key.get(0));
+            code.put(Field.CODE, key.get(1));
+            code.put(Field.NAME, key.get(2));
+            code.put(Field.LEVEL, key.get(3));
+            ArrayNode classificationVersions = code.putArray(Field.CLASSIFICATION_VERSIONS);
+            classificationVersionsByCode.get(key).forEach(classificationVersions::add);
+        }
+        return new ResponseEntity<>(codesArrayNode, OK);
+    }
+
+    private static String textOf(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asText() : null;
+    }
+
+    /**
+     * A string name as it is, otherwise the text in the language from a multilingual name, or an empty string if there is none.
+     */
+    private static String nameIn(JsonNode code, String language) {
+        JsonNode name = code.get(Field.NAME);
+        if (name != null && name.isTextual())
+            return name.asText();
+        if (name != null && name.isArray()) {
+            for (JsonNode nameText : name) {
+                if (nameText.hasNonNull(Field.LANGUAGE_TEXT) && language.equals(textOf(nameText, Field.LANGUAGE_CODE)))
+                    return nameText.get(Field.LANGUAGE_TEXT).asText();
+            }
+        }
+        return "";
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getCodesAt(String seriesID, String date, boolean includeFuture, boolean includeDrafts) {
+        LOG.debug("getCodesAt " + date + " in series " + seriesID);
+        if (!seriesByID.containsKey(seriesID))
+            return ErrorHandler.newHttpError("Series with id " + seriesID + " was not found", NOT_FOUND, LOG);
+        ConcurrentSkipListMap<String, StoredDocument> versions = versionsBySeries.get(seriesID);
+        if (versions != null) {
+            String nowDate = Utils.getNowDate();
+            for (StoredDocument version : versions.descendingMap().values()) {
+                boolean validAtDate = version.validFrom != null && version.validFrom.compareTo(date) <= 0
+                        && (version.validUntil == null || version.validUntil.compareTo(date) > 0);
+                boolean included = hasIncludedStatus(version, includeDrafts) && (includeFuture || version.validFrom.compareTo(nowDate) <= 0);
+                if (validAtDate && included)
+                    return new ResponseEntity<>(version.json.has(Field.CODES) ? version.json.get(Field.CODES).deepCopy() : MAPPER.createArrayNode(), OK);
+            }
+        }
+        LOG.debug("No version of series " + seriesID + " was valid at " + date);
+        return new ResponseEntity<>(MAPPER.createArrayNode(), OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsByCode(String classificationID, String code, String date, boolean includeDrafts) {
+        LOG.debug("getVersionsByCode classification " + classificationID + " code " + code + " date " + date + " includeDrafts " + includeDrafts);
+        List<StoredDocument> versions = new ArrayList<>();
+        for (String versionUID : versionUIDsByCode.getOrDefault(classificationID + KEY_SEPARATOR + code, Collections.emptySet())) {
+            StoredDocument version = versionsByUID.get(versionUID);
+            if (version == null || !hasIncludedStatus(version, includeDrafts))
+                continue;
+            boolean validAtDate = date == null || (version.validFrom != null && version.validFrom.compareTo(date) <= 0
+                    && (version.validUntil == null || version.validUntil.compareTo(date) > 0));
+            if (validAtDate)
+                versions.add(version);
+        }
+        versions.sort(Comparator.<StoredDocument, String>comparing(version -> version.seriesID).thenComparing(StoredDocument::versionSortKey));
+        ArrayNode versionsArrayNode = MAPPER.createArrayNode();
+        for (StoredDocument version : versions) {
+            // One result per occurrence of the code, like the rows of version_codes
+            for (JsonNode versionCode : version.json.get(Field.CODES)) {
+                if (!classificationID.equals(textOf(versionCode, Field.CLASSIFICATION_ID)) || !code.equals(textOf(versionCode, Field.CODE)))
+                    continue;
+                ObjectNode result = versionsArrayNode.addObject();
+                result.put(Field.SUBSET_ID, version.seriesID);
+                result.put(Field.VERSION_ID, textOf(version.json, Field.VERSION_ID));
+                result.put(Field.ADMINISTRATIVE_STATUS, version.status);
+                result.put(Field.VALID_FROM, version.validFrom);
+                result.put(Field.VALID_UNTIL, version.validUntil);
+                result.put(Field.LEVEL, textOf(versionCode, Field.LEVEL));
+            }
+        }
+        return new ResponseEntity<>(versionsArrayNode, OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionByID(String versionId) {
+        LOG.debug("getVersionByID uid " + versionId);
+        StoredDocument version = versionsByUID.get(versionId);
+        if (version == null)
+            return ErrorHandler.newHttpError("Version with id " + versionId + " was not found", NOT_FOUND, LOG);
+        return withETag(version.json.deepCopy(), version.revision, OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionByID(String versionId, String language) {
+        ResponseEntity<JsonNode> versionRE = getVersionByID(versionId);
+        if (!versionRE.getStatusCode().is2xxSuccessful() || !Arrays.asList(Utils.LANGUAGE_CODES).contains(language))
+            return versionRE;
+        return new ResponseEntity<>(Utils.setSingleLanguage((ObjectNode) versionRE.getBody(), language), versionRE.getHeaders(), OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeries(String id) {
+        LOG.debug("getSubsetSeries id " + id);
+        StoredDocument series = seriesByID.get(id);
+        if (series == null)
+            return ErrorHandler.newHttpError("Series with id " + id + " was not found", NOT_FOUND, LOG);
+        return withETag(series.json.deepCopy(), series.revision, OK);
+    }
+
+    /**
+     * Synchronized with the writes, so the series and its versions are read from the same state.
+     */
+    @Override
+    public synchronized ResponseEntity<JsonNode> getSubsetSeriesWithVersions(String id, String language) {
+        LOG.debug("getSubsetSeriesWithVersions id " + id + " language " + language);
+        StoredDocument series = seriesByID.get(id);
+        if (series == null)
+            return ErrorHandler.newHttpError("Series with id " + id + " was not found", NOT_FOUND, LOG);
+        ObjectNode seriesWithVersions = series.json.deepCopy();
+        ArrayNode versionsArrayNode = seriesWithVersions.putArray(Field.VERSIONS);
+        for (JsonNode version : referencedVersions(series))
+            versionsArrayNode.add(Utils.setSingleLanguage((ObjectNode) version, language));
+        return new ResponseEntity<>(seriesWithVersions, OK);
+    }
+
+    /**
+     * The versions the versions array of the series references, in the order of that array, like SQL.selectSeriesWithVersions.
+     */
+    private List<JsonNode> referencedVersions(StoredDocument series) {
+        List<JsonNode> versions = new ArrayList<>();
+        for (JsonNode versionUID : series.json.path(Field.VERSIONS)) {
+            StoredDocument version = versionsByUID.get(versionUID.asText());
+            if (version != null && version.seriesID.equals(series.id))
+                versions.add(version.json);
+        }
+        return versions;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getAllSubsetSeries() {
+        return getSubsetSeriesPage(true, true, true, null, null);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesPage(boolean includeDrafts, boolean includeFuture, boolean includeExpired, Integer limit, String afterSeriesID) {
+        LOG.debug("getSubsetSeriesPage includeDrafts " + includeDrafts + " includeFuture " + includeFuture + " includeExpired " + includeExpired + " limit " + limit + " after " + afterSeriesID);
+        ArrayNode allSeriesArrayNode = MAPPER.createArrayNode();
+        for (StoredDocument series : filteredSeries(includeDrafts, includeFuture, includeExpired, afterSeriesID)) {
+            if (limit != null && allSeriesArrayNode.size() >= limit)
+                break;
+            allSeriesArrayNode.add(series.json.deepCopy());
+        }
+        return new ResponseEntity<>(allSeriesArrayNode, OK);
+    }
+
+    /**
+     * The same filter as SQL.SERIES_FILTER, in series id order.
+     */
+    private List<StoredDocument> filteredSeries(boolean includeDrafts, boolean includeFuture, boolean includeExpired, String afterSeriesID) {
+        String nowDate = Utils.getNowDate();
+        Collection<StoredDocument> candidates = afterSeriesID == null ? seriesByID.values() : seriesByID.tailMap(afterSeriesID, false).values();
+        List<StoredDocument> series = new ArrayList<>();
+        for (StoredDocument candidate : candidates) {
+            if (!includeDrafts && Field.DRAFT.equals(candidate.status))
+                continue;
+            if (!includeFuture && candidate.validFrom != null && candidate.validFrom.compareTo(nowDate) > 0)
+                continue;
+            if (!includeExpired && candidate.validUntil != null && candidate.validUntil.compareTo(nowDate) < 0)
+                continue;
+            series.add(candidate);
+        }
+        return series;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamSubsetSeries(boolean includeDrafts, boolean includeFuture, boolean includeExpired, HttpServletResponse response) {
+        LOG.debug("streamSubsetSeries includeDrafts " + includeDrafts + " includeFuture " + includeFuture + " includeExpired " + includeExpired);
+        try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response)) {
+            generator.writeStartArray();
+            for (StoredDocument series : filteredSeries(includeDrafts, includeFuture, includeExpired, null)) {
+                try (JsonParser parser = MAPPER.treeAsTokens(series.json)) {
+                    JsonStreamRenderer.writeSeries(parser, generator, series.id);
+                }
+            }
+            generator.writeEndArray();
+            return new ResponseEntity<>(OK);
+        } catch (IOException e) {
+            LOG.error("Failed to write series json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write series json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String language, HttpServletResponse response) {
+        LOG.debug("streamVersionsBySeriesID " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " language " + language);
+        List<StoredDocument> versions = new ArrayList<>();
+        for (StoredDocument version : versionsOf(seriesID)) {
+            if (isIncludedVersion(version, includeFuture, includeDrafts, null, null))
+                versions.add(version);
+        }
+        if (versions.isEmpty())
+            return ErrorHandler.newHttpError("There were no versions for series ID " + seriesID, NOT_FOUND, LOG);
+        try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response)) {
+            generator.writeStartArray();
+            for (StoredDocument version : versions) {
+                try (JsonParser parser = MAPPER.treeAsTokens(version.json)) {
+                    JsonStreamRenderer.writeVersion(parser, generator, version.seriesID, textOf(version.json, Field.VERSION_ID), language);
+                }
+            }
+            generator.writeEndArray();
+            return new ResponseEntity<>(OK);
+        } catch (IOException e) {
+            LOG.error("Failed to write version json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write version json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamVersionByID(String versionUid, String language, HttpServletResponse response) {
+        LOG.debug("streamVersionByID uid " + versionUid + " language " + language);
+        StoredDocument version = versionsByUID.get(versionUid);
+        if (version == null)
+            return ErrorHandler.newHttpError("Version with id " + versionUid + " was not found", NOT_FOUND, LOG);
+        try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response);
+             JsonParser parser = MAPPER.treeAsTokens(version.json)) {
+            JsonStreamRenderer.writeVersion(parser, generator, version.seriesID, textOf(version.json, Field.VERSION_ID), language);
+            return new ResponseEntity<>(OK);
+        } catch (IOException e) {
+            LOG.error("Failed to write version json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write version json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamSubsetSeriesWithVersions(String id, String language, HttpServletResponse response) {
+        LOG.debug("streamSubsetSeriesWithVersions id " + id + " language " + language);
+        StoredDocument series;
+        List<JsonNode> versions = new ArrayList<>();
+        synchronized (this) {
+            series = seriesByID.get(id);
+            if (series == null)
+                return ErrorHandler.newHttpError("Series with id " + id + " was not found", NOT_FOUND, LOG);
+            versions.addAll(referencedVersions(series));
+        }
+        try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response);
+             JsonParser seriesParser = MAPPER.treeAsTokens(series.json);
+             JsonParser versionsParser = MAPPER.treeAsTokens(MAPPER.createArrayNode().addAll(versions))) {
+            JsonStreamRenderer.writeSeriesWithVersions(seriesParser, versionsParser, generator, id, language);
+            return new ResponseEntity<>(OK);
+        } catch (IOException e) {
+            LOG.error("Failed to write series json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write series json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public boolean healthReady() {
+        return initialized;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID) {
+        return editSeries(newVersionOfSeries, seriesID, null);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID, Long expectedRevision) {
+        LOG.debug("editSeries with id " + seriesID + " expecting revision " + expectedRevision);
+        StoredDocument series = seriesByID.get(seriesID);
+        if (series == null || (expectedRevision != null && series.revision != expectedRevision)) {
+            if (expectedRevision != null)
+                return ErrorHandler.newHttpError("Series " + seriesID + " is no longer at revision " + expectedRevision, PRECONDITION_FAILED, LOG);
+            return ErrorHandler.newHttpError("No rows were affected", INTERNAL_SERVER_ERROR, LOG);
+        }
+        StoredDocument editedSeries = new StoredDocument(seriesID, seriesID, newVersionOfSeries.deepCopy(), series.revision + 1);
+        ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_SERIES, editedSeries)));
+        if (!writeRE.getStatusCode().is2xxSuccessful())
+            return writeRE;
+        return withETag(null, editedSeries.revision, CREATED);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> patchSeries(String seriesID, ObjectNode changedFields, List<String> removedFields, Long expectedRevision) {
+        LOG.debug("patchSeries with id " + seriesID + " setting " + changedFields.size() + " fields and removing " + removedFields + ", expecting revision " + expectedRevision);
+        StoredDocument series = seriesByID.get(seriesID);
+        if (series == null)
+            return editSeries(changedFields, seriesID, expectedRevision); // Responds as to a missing series
+        ObjectNode patchedSeries = series.json.deepCopy();
+        patchedSeries.remove(removedFields);
+        patchedSeries.setAll(changedFields.deepCopy());
+        return editSeries(patchedSeries, seriesID, expectedRevision);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> createSubsetSeries(JsonNode subset, String id) {
+        LOG.debug("createSubsetSeries with id " + id);
+        if (seriesByID.containsKey(id))
+            return ErrorHandler.newHttpError("Failed to create series", INTERNAL_SERVER_ERROR, LOG);
+        ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_SERIES, new StoredDocument(id, id, subset.deepCopy(), 1))));
+        if (!writeRE.getStatusCode().is2xxSuccessful())
+            return writeRE;
+        return new ResponseEntity<>(CREATED);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> saveVersionInSeries(String seriesID, String versionID, JsonNode versionNode) {
+        String versionUID = seriesID + "_" + versionID;
+        LOG.debug("Attempting to insert version with UID " + versionUID + " and update series to point to version");
+        StoredDocument series = seriesByID.get(seriesID);
+        if (series == null || versionsByUID.containsKey(versionUID))
+            return ErrorHandler.newHttpError("Failed to create version or insert version into series", INTERNAL_SERVER_ERROR, LOG);
+        StoredDocument version = new StoredDocument(versionUID, seriesID, versionNode.deepCopy(), 1);
+        if (overlapsOpenVersion(version))
+            return ErrorHandler.overlappingValidity(LOG);
+        StoredDocument editedSeries = new StoredDocument(seriesID, seriesID, seriesWithVersion(series.json, version), series.revision + 1);
+        ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_VERSION, version), Change.put(ChangeType.PUT_SERIES, editedSeries)));
+        if (!writeRE.getStatusCode().is2xxSuccessful())
+            return writeRE;
+        return new ResponseEntity<>(CREATED);
+    }
+
+    /**
+     * The same change to the series as SQL.insertVersionAndUpdateSeries.
+     */
+    private static JsonNode seriesWithVersion(JsonNode seriesJson, StoredDocument version) {
+        ObjectNode editedSeries = seriesJson.deepCopy();
+        ArrayNode versions = editedSeries.has(Field.VERSIONS) && editedSeries.get(Field.VERSIONS).isArray() ?
+                (ArrayNode) editedSeries.get(Field.VERSIONS) : editedSeries.putArray(Field.VERSIONS);
+        versions.add(version.id);
+        TreeSet<String> statisticalUnits = new TreeSet<>();
+        for (JsonNode json : new JsonNode[]{seriesJson, version.json}) {
+            JsonNode units = json.get(Field.STATISTICAL_UNITS);
+            if (units != null && units.isArray())
+                units.forEach(unit -> statisticalUnits.add(unit.asText()));
+        }
+        ArrayNode statisticalUnitsArray = editedSeries.putArray(Field.STATISTICAL_UNITS);
+        statisticalUnits.forEach(statisticalUnitsArray::add);
+        editedSeries.put(Field.LAST_MODIFIED, Utils.getNowISO());
+        return editedSeries;
+    }
+
+    /**
+     * Append the changes of one write to the change log, if there is one, and apply them.
+     * Must be called with the write lock held.
+     */
+    private ResponseEntity<JsonNode> write(List<Change> changes) {
+        if (changeLog != null) {
+            try {
+                changeLog.append(changes);
+            } catch (IOException e) {
+                LOG.error("Failed to append to " + changeLog.describe(), e);
+                return ErrorHandler.newHttpError("Failed to write to " + changeLog.describe(), INTERNAL_SERVER_ERROR, LOG);
+            }
+        }
+        apply(changes);
+        changedSinceSnapshot = true;
+        return new ResponseEntity<>(OK);
+    }
+
+    /**
+     * Apply changes to the maps and indexes, without logging them. Used by writes and when a change log is replayed.
+     */
+    synchronized void apply(List<Change> changes) {
+        for (Change change : changes) {
+            switch (change.type) {
+                case PUT_SERIES:
+                    seriesByID.put(change.id, change.document);
+                    break;
+                case PUT_VERSION:
+                    StoredDocument replacedVersion = versionsByUID.get(change.id);
+                    if (replacedVersion != null)
+                        removeVersion(replacedVersion);
+                    putVersion(change.document);
+                    break;
+                case DELETE_SERIES:
+                    for (StoredDocument version : new ArrayList<>(versionsOf(change.id)))
+                        removeVersion(version);
+                    versionsBySeries.remove(change.id);
+                    seriesByID.remove(change.id);
+                    break;
+                case DELETE_VERSION:
+                    StoredDocument deletedVersion = versionsByUID.get(change.id);
+                    if (deletedVersion != null)
+                        removeVersion(deletedVersion);
+                    break;
+                case DELETE_ALL:
+                    versionUIDsByCode.clear();
+                    versionsBySeries.clear();
+                    versionsByUID.clear();
+                    seriesByID.clear();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The same rule as SQL.ADD_VERSIONS_OPEN_VALIDITY_EXCLUSION: the half open validity of a published version
+     * may not overlap that of another published version of the series. Versions without a validFrom, and empty ranges, overlap nothing.
+     */
+    private boolean overlapsOpenVersion(StoredDocument version) {
+        return overlapsOpenVersion(version, null);
+    }
+
+    /**
+     * @param replacedVersion a new edition of a stored version, that the version is checked against instead of the stored edition, or null
+     */
+    private boolean overlapsOpenVersion(StoredDocument version, StoredDocument replacedVersion) {
+        if (!Field.OPEN.equals(version.status) || isEmptyValidity(version))
+            return false;
+        for (StoredDocument stored : versionsOf(version.seriesID)) {
+            StoredDocument other = replacedVersion != null && stored.id.equals(replacedVersion.id) ? replacedVersion : stored;
+            if (other.id.equals(version.id) || !Field.OPEN.equals(other.status) || isEmptyValidity(other))
+                continue;
+            boolean startsBeforeOtherEnds = other.validUntil == null || version.validFrom.compareTo(other.validUntil) < 0;
+            boolean endsAfterOtherStarts = version.validUntil == null || other.validFrom.compareTo(version.validUntil) < 0;
+            if (startsBeforeOtherEnds && endsAfterOtherStarts) {
+                LOG.debug("Version " + version.id + " overlaps the published version " + other.id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEmptyValidity(StoredDocument version) {
+        return version.validFrom == null || (version.validUntil != null && version.validUntil.compareTo(version.validFrom) <= 0);
+    }
+
+    private void putVersion(StoredDocument version) {
+        versionsByUID.put(version.id, version);
+        versionsBySeries.computeIfAbsent(version.seriesID, seriesID -> new ConcurrentSkipListMap<>()).put(version.versionSortKey(), version);
+        for (String codeKey : codeKeysOf(version)) {
+            versionUIDsByCode.computeIfAbsent(codeKey, key -> ConcurrentHashMap.newKeySet()).add(version.id);
+        }
+    }
+
+    private void removeVersion(StoredDocument version) {
+        versionsByUID.remove(version.id);
+        ConcurrentSkipListMap<String, StoredDocument> seriesVersions = versionsBySeries.get(version.seriesID);
+        if (seriesVersions != null)
+            seriesVersions.remove(version.versionSortKey());
+        for (String codeKey : codeKeysOf(version)) {
+            Set<String> versionUIDs = versionUIDsByCode.get(codeKey);
+            if (versionUIDs != null)
+                versionUIDs.remove(version.id);
+        }
+    }
+
+    private static Set<String> codeKeysOf(StoredDocument version) {
+        Set<String> codeKeys = new HashSet<>();
+        JsonNode codes = version.json.get(Field.CODES);
+        if (codes != null && codes.isArray()) {
+            for (JsonNode code : codes)
+                codeKeys.add(textOf(code, Field.CLASSIFICATION_ID) + KEY_SEPARATOR + textOf(code, Field.CODE));
+        }
+        return codeKeys;
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> importSeriesAndVersions(List<JsonNode> seriesList, List<JsonNode> versionList, List<JsonNode> closedVersionList) {
+        LOG.debug("importSeriesAndVersions " + seriesList.size() + " series and " + versionList.size() + " versions");
+        ArrayNode results = MAPPER.createArrayNode();
+        for (JsonNode series : seriesList) {
+            String seriesID = series.get(Field.ID).asText();
+            if (seriesByID.containsKey(seriesID)) {
+                results.add(importResult(seriesID, CONFLICT, "Series " + seriesID + " already exists"));
+                continue;
+            }
+            ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_SERIES, new StoredDocument(seriesID, seriesID, series.deepCopy(), 1))));
+            results.add(writeRE.getStatusCode().is2xxSuccessful() ? importResult(seriesID, CREATED, null) : importResult(seriesID, INTERNAL_SERVER_ERROR, "Failed to write series " + seriesID));
+        }
+        for (int i = 0; i < versionList.size(); i++) {
+            JsonNode version = versionList.get(i);
+            String seriesID = version.get(Field.SUBSET_ID).asText();
+            String versionUID = seriesID + "_" + version.get(Field.VERSION_ID).asText();
+            StoredDocument series = seriesByID.get(seriesID);
+            if (series == null) {
+                results.add(importResult(versionUID, BAD_REQUEST, "Series " + seriesID + " does not exist"));
+                continue;
+            }
+            if (versionsByUID.containsKey(versionUID)) {
+                results.add(importResult(versionUID, CONFLICT, "Version " + versionUID + " already exists"));
+                continue;
+            }
+            StoredDocument storedVersion = new StoredDocument(versionUID, seriesID, version.deepCopy(), 1);
+            List<Change> changes = new ArrayList<>();
+            // The closed version is written with the new one, so it is checked for overlap as it will be after the write
+            StoredDocument closedVersion = closedVersion(closedVersionList.get(i));
+            if (closedVersion != null)
+                changes.add(Change.put(ChangeType.PUT_VERSION, closedVersion));
+            if (overlapsOpenVersion(storedVersion, closedVersion)) {
+                results.add(importResult(versionUID, BAD_REQUEST, ErrorHandler.OVERLAPPING_VALIDITY));
+                continue;
+            }
+            StoredDocument editedSeries = new StoredDocument(seriesID, seriesID, seriesWithVersion(series.json, storedVersion), series.revision + 1);
+            changes.add(Change.put(ChangeType.PUT_VERSION, storedVersion));
+            changes.add(Change.put(ChangeType.PUT_SERIES, editedSeries));
+            ResponseEntity<JsonNode> writeRE = write(changes);
+            results.add(writeRE.getStatusCode().is2xxSuccessful() ? importResult(versionUID, CREATED, null) : importResult(versionUID, INTERNAL_SERVER_ERROR, "Failed to write version " + versionUID));
+        }
+        return new ResponseEntity<>(results, OK);
+    }
+
+    /**
+     * The stored version with the validUntil of closedVersion, or null if there is no closed version or it is no longer stored.
+     */
+    private StoredDocument closedVersion(JsonNode closedVersion) {
+        if (closedVersion == null)
+            return null;
+        String seriesID = closedVersion.get(Field.SUBSET_ID).asText();
+        StoredDocument version = versionsByUID.get(seriesID + "_" + closedVersion.get(Field.VERSION_ID).asText());
+        if (version == null || !version.seriesID.equals(seriesID))
+            return null;
+        ObjectNode editedJson = version.json.deepCopy();
+        editedJson.put(Field.VALID_UNTIL, closedVersion.get(Field.VALID_UNTIL).asText());
+        editedJson.put(Field.LAST_MODIFIED, Utils.getNowISO());
+        return new StoredDocument(version.id, seriesID, editedJson, version.revision + 1);
+    }
+
+    private static ObjectNode importResult(String id, HttpStatus status, String message) {
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put(Field.ID, id);
+        result.put("status", status.value());
+        if (message != null)
+            result.put("message", message);
+        return result;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> resolveVersionLink(String versionLink) {
+        return ErrorHandler.newHttpError("Method Not Implemented", NOT_IMPLEMENTED, LOG);
+    }
+
+    @Override
+    public boolean existsSubsetSeriesWithID(String id) {
+        return seriesByID.containsKey(id);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsMetadataBySeriesID(String seriesID, boolean includeDrafts) {
+        LOG.debug("getVersionsMetadataBySeriesID " + seriesID + " includeDrafts " + includeDrafts);
+        ArrayNode versionsArrayNode = MAPPER.createArrayNode();
+        for (StoredDocument version : versionsOf(seriesID)) {
+            if (!hasIncludedStatus(version, includeDrafts))
+                continue;
+            ObjectNode metadata = versionsArrayNode.addObject();
+            metadata.put(Field.VERSION_ID, textOf(version.json, Field.VERSION_ID));
+            metadata.put(Field.SUBSET_ID, seriesID);
+            metadata.put(Field.ADMINISTRATIVE_STATUS, version.status);
+            metadata.put(Field.VALID_FROM, version.validFrom);
+            if (version.validUntil != null)
+                metadata.put(Field.VALID_UNTIL, version.validUntil);
+        }
+        return new ResponseEntity<>(versionsArrayNode, OK);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> setVersionValidUntil(String seriesID, String versionUid, String validUntil) {
+        LOG.debug("setVersionValidUntil " + versionUid + " to " + validUntil);
+        StoredDocument version = versionsByUID.get(versionUid);
+        if (version == null || !version.seriesID.equals(seriesID))
+            return ErrorHandler.newHttpError("Version " + versionUid + " of series " + seriesID + " was not found", NOT_FOUND, LOG);
+        ObjectNode editedJson = version.json.deepCopy();
+        editedJson.put(Field.VALID_UNTIL, validUntil);
+        editedJson.put(Field.LAST_MODIFIED, Utils.getNowISO());
+        StoredDocument editedVersion = new StoredDocument(versionUid, seriesID, editedJson, version.revision + 1);
+        if (overlapsOpenVersion(editedVersion))
+            return ErrorHandler.overlappingValidity(LOG);
+        ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_VERSION, editedVersion)));
+        if (!writeRE.getStatusCode().is2xxSuccessful())
+            return writeRE;
+        return withETag(null, editedVersion.revision, OK);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesDefinition() {
+        return schemas.getSubsetSeriesDefinition();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesSchema() {
+        return schemas.getSubsetSeriesSchema();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetVersionsDefinition() {
+        return schemas.getSubsetVersionsDefinition();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetVersionSchema() {
+        return schemas.getSubsetVersionSchema();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetCodeDefinition() {
+        return schemas.getSubsetCodeDefinition();
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> deleteAllSubsetSeries() {
+        return write(List.of(Change.delete(ChangeType.DELETE_ALL, null)));
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> deleteSubsetSeries(String id) {
+        if (!seriesByID.containsKey(id) && !versionsBySeries.containsKey(id))
+            return new ResponseEntity<>(OK);
+        return write(List.of(Change.delete(ChangeType.DELETE_SERIES, id)));
+    }
+
+    @Override
+    public synchronized void deleteSubsetVersion(String subsetId, String versionUid) {
+        StoredDocument version = versionsByUID.get(versionUid);
+        if (version != null && version.seriesID.equals(subsetId))
+            write(List.of(Change.delete(ChangeType.DELETE_VERSION, versionUid)));
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion) {
+        return editVersion(editablePutVersion, null);
+    }
+
+    @Override
+    public synchronized ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion, Long expectedRevision) {
+        String seriesID = editablePutVersion.get(Field.SUBSET_ID).asText();
+        String versionUid = seriesID + "_" + editablePutVersion.get(Field.VERSION_ID).asText();
+        LOG.debug("editVersion " + versionUid + " expecting revision " + expectedRevision);
+        StoredDocument version = versionsByUID.get(versionUid);
+        if (version == null || !version.seriesID.equals(seriesID) || (expectedRevision != null && version.revision != expectedRevision)) {
+            if (expectedRevision != null)
+                return ErrorHandler.newHttpError("Version " + versionUid + " is no longer at revision " + expectedRevision, PRECONDITION_FAILED, LOG);
+            return ErrorHandler.newHttpError("No rows were affected", INTERNAL_SERVER_ERROR, LOG);
+        }
+        StoredDocument editedVersion = new StoredDocument(versionUid, seriesID, editablePutVersion.deepCopy(), version.revision + 1);
+        if (overlapsOpenVersion(editedVersion))
+            return ErrorHandler.overlappingValidity(LOG);
+        ResponseEntity<JsonNode> writeRE = write(List.of(Change.put(ChangeType.PUT_VERSION, editedVersion)));
+        if (!writeRE.getStatusCode().is2xxSuccessful())
+            return writeRE;
+        return withETag(null, editedVersion.revision, CREATED);
+    }
+
+    /*
+     * Snapshots. The file holds {"series": [...], "versions": [...]}, where each item has the id, subsetId, revision and json of a document.
+     * It is written to a temporary file first and then moved in place, so a crash midway leaves the previous snapshot.
+     */
+
+    private void startSnapshots() {
+        long intervalMillis = ConnectionPool.getLongEnv(ENV_SNAPSHOT_INTERVAL_MS, DEFAULT_SNAPSHOT_INTERVAL_MS);
+        ScheduledExecutorService snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "in-memory-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotExecutor.scheduleWithFixedDelay(this::saveSnapshotIfChanged, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveSnapshotIfChanged, "in-memory-snapshot-shutdown"));
+    }
+
+    void saveSnapshotIfChanged() {
+        if (!changedSinceSnapshot)
+            return;
+        ObjectNode snapshot = MAPPER.createObjectNode();
+        // The stored json is never modified, so the snapshot can share it, and only the collection of it needs the write lock
+        synchronized (this) {
+            changedSinceSnapshot = false;
+            ArrayNode seriesArray = snapshot.putArray("series");
+            seriesByID.values().forEach(series -> seriesArray.add(toJson(series)));
+            ArrayNode versionsArray = snapshot.putArray(Field.VERSIONS);
+            versionsByUID.values().forEach(version -> versionsArray.add(toJson(version)));
+        }
+        long start = System.nanoTime();
+        try {
+            Path temporaryPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            MAPPER.writeValue(temporaryPath.toFile(), snapshot);
+            Files.move(temporaryPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Saved in memory snapshot to " + snapshotPath + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            changedSinceSnapshot = true;
+            LOG.error("Failed to save the in memory snapshot to " + snapshotPath, e);
+        }
+    }
+
+    static ObjectNode toJson(StoredDocument document) {
+        ObjectNode item = MAPPER.createObjectNode();
+        item.put(Field.ID, document.id);
+        item.put(Field.SUBSET_ID, document.seriesID);
+        item.put("revision", document.revision);
+        item.set("json", document.json);
+        return item;
+    }
+
+    static StoredDocument fromJson(JsonNode item) {
+        return new StoredDocument(item.get(Field.ID).asText(), item.get(Field.SUBSET_ID).asText(), item.get("json"), item.get("revision").asLong());
+    }
+
+    private void loadSnapshot() throws IOException {
+        long start = System.nanoTime();
+        JsonNode snapshot = MAPPER.readTree(new File(snapshotPath.toString()));
+        List<Change> changes = new ArrayList<>();
+        snapshot.path("series").forEach(item -> changes.add(Change.put(ChangeType.PUT_SERIES, fromJson(item))));
+        snapshot.path(Field.VERSIONS).forEach(item -> changes.add(Change.put(ChangeType.PUT_VERSION, fromJson(item))));
+        apply(changes);
+        LOG.info("Loaded " + seriesByID.size() + " series and " + versionsByUID.size() + " versions from " + snapshotPath +
+                " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,355 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ssb.subsetsservice.entity.Field;
+import no.ssb.subsetsservice.service.InMemoryDatabase.Change;
+import no.ssb.subsetsservice.service.InMemoryDatabase.ChangeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The changes of an {@link InMemoryDatabase} in an append-only file, which is written and read through a MappedByteBuffer.
+ * Each change is a frame: the int length of the payload, the int CRC32 of the payload, a byte that is 1 if more changes of the same write follow and 0 on the last one,
+ * and the payload, which is the change as json. The file is zero after the last frame.
+ * At startup frames are read until a zero length or a frame with a wrong checksum, and only the writes that were completely written are applied.
+ * An offset index points at the frame with the current document of each series and version.
+ * When the frames that are no longer current take up more space than the current ones, the current frames are copied to a new file in the background, which then replaces the log.
+ */
+class MappedDocumentLog implements InMemoryDatabase.ChangeLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedDocumentLog.class);
+
+    private static final String ENV_PATH = "MAPPED_LOG_PATH";
+    private static final String DEFAULT_PATH = "subsets-documents.log";
+    private static final String ENV_INITIAL_SIZE_MB = "MAPPED_LOG_INITIAL_SIZE_MB"; // The file is mapped with this size at first, and doubled when it is full
+    private static final int DEFAULT_INITIAL_SIZE_MB = 64;
+    private static final String ENV_COMPACTION_INTERVAL_MS = "MAPPED_LOG_COMPACTION_INTERVAL_MS"; // How often to check if the log should be compacted
+    private static final long DEFAULT_COMPACTION_INTERVAL_MS = 60000;
+    private static final long COMPACTION_MIN_STALE_BYTES = 1024 * 1024;
+
+    private static final int HEADER_BYTES = 9; // length, checksum and the more byte
+    private static final int TERMINATOR_BYTES = 4;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static class Frame {
+        final int offset;
+        final int length; // Including the header
+        final String seriesID;
+
+        private Frame(int offset, int length, String seriesID) {
+            this.offset = offset;
+            this.length = length;
+            this.seriesID = seriesID;
+        }
+    }
+
+    private final Path path;
+    private final int initialSize;
+
+    // Everything below is guarded by the lock of the database
+    private InMemoryDatabase database;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position = 0; // Where the next frame is written
+    private final Map<String, Frame> seriesFrames = new HashMap<>();
+    private final Map<String, Frame> versionFrames = new HashMap<>();
+    private long liveBytes = 0; // Bytes of the frames in the offset index
+    private long staleBytes = 0; // Bytes of replaced documents and of deletes, which compaction drops
+
+    MappedDocumentLog() {
+        this(Paths.get(System.getenv().getOrDefault(ENV_PATH, DEFAULT_PATH).trim()), ConnectionPool.getIntEnv(ENV_INITIAL_SIZE_MB, DEFAULT_INITIAL_SIZE_MB) * 1024 * 1024);
+    }
+
+    /**
+     * @param initialSize in bytes
+     */
+    MappedDocumentLog(Path path, int initialSize) {
+        this.path = path;
+        this.initialSize = initialSize;
+    }
+
+    @Override
+    public String describe() {
+        return "mapped document log " + path;
+    }
+
+    @Override
+    public void replay(InMemoryDatabase database) throws IOException {
+        long start = System.nanoTime();
+        this.database = database;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), initialSize));
+        List<Change> writeChanges = new ArrayList<>();
+        List<Frame> writeFrames = new ArrayList<>();
+        int offset = 0;
+        int frameCount = 0;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > buffer.capacity())
+                break;
+            byte[] payload = new byte[length];
+            ByteBuffer payloadBuffer = buffer.duplicate();
+            payloadBuffer.position(offset + HEADER_BYTES);
+            payloadBuffer.get(payload);
+            if (buffer.getInt(offset + 4) != checksum(payload))
+                break;
+            Change change;
+            try {
+                change = toChange(MAPPER.readTree(payload));
+            } catch (IOException | IllegalArgumentException | NullPointerException e) {
+                LOG.warn("Unreadable frame at offset " + offset + " of " + path, e);
+                break;
+            }
+            boolean lastOfWrite = buffer.get(offset + 8) == 0;
+            writeChanges.add(change);
+            writeFrames.add(new Frame(offset, HEADER_BYTES + length, seriesIDOf(change)));
+            offset += HEADER_BYTES + length;
+            if (lastOfWrite) {
+                database.apply(writeChanges);
+                index(writeChanges, writeFrames);
+                frameCount += writeChanges.size();
+                position = offset;
+                writeChanges.clear();
+                writeFrames.clear();
+            }
+        }
+        if (offset > position)
+            LOG.warn("Ignoring " + (offset - position) + " bytes of an incomplete write at the end of " + path);
+        if (position + TERMINATOR_BYTES <= buffer.capacity())
+            buffer.putInt(position, 0);
+        LOG.info("Replayed " + frameCount + " changes from " + path + " in " + (System.nanoTime() - start) / 1_000_000 + " ms. " +
+                liveBytes + " bytes are current and " + staleBytes + " bytes are stale");
+        startCompaction();
+    }
+
+    @Override
+    public void append(List<Change> changes) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(changes.size());
+        long bytes = TERMINATOR_BYTES;
+        for (Change change : changes) {
+            byte[] payload = MAPPER.writeValueAsBytes(toJson(change));
+            payloads.add(payload);
+            bytes += HEADER_BYTES + payload.length;
+        }
+        ensureCapacity(position + bytes);
+        List<Frame> frames = new ArrayList<>(changes.size());
+        int offset = position;
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            buffer.putInt(offset, payload.length);
+            buffer.putInt(offset + 4, checksum(payload));
+            buffer.put(offset + 8, (byte) (i < payloads.size() - 1 ? 1 : 0));
+            ByteBuffer payloadBuffer = buffer.duplicate();
+            payloadBuffer.position(offset + HEADER_BYTES);
+            payloadBuffer.put(payload);
+            frames.add(new Frame(offset, HEADER_BYTES + payload.length, seriesIDOf(changes.get(i))));
+            offset += HEADER_BYTES + payload.length;
+        }
+        buffer.putInt(offset, 0);
+        buffer.force();
+        position = offset;
+        index(changes, frames);
+    }
+
+    private void ensureCapacity(long neededBytes) throws IOException {
+        if (neededBytes <= buffer.capacity())
+            return;
+        long newSize = Math.max((long) buffer.capacity() * 2, neededBytes);
+        if (newSize > Integer.MAX_VALUE)
+            throw new IOException(path + " would grow beyond the 2 GB that can be mapped");
+        LOG.info("Growing " + path + " from " + buffer.capacity() + " to " + newSize + " bytes");
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /**
+     * Point the offset index at the frames of a write that was appended or replayed, and account for the bytes it made stale.
+     */
+    private void index(List<Change> changes, List<Frame> frames) {
+        for (int i = 0; i < changes.size(); i++) {
+            Change change = changes.get(i);
+            Frame frame = frames.get(i);
+            switch (change.type) {
+                case PUT_SERIES:
+                    markStale(seriesFrames.put(change.id, frame));
+                    liveBytes += frame.length;
+                    break;
+                case PUT_VERSION:
+                    markStale(versionFrames.put(change.id, frame));
+                    liveBytes += frame.length;
+                    break;
+                case DELETE_SERIES:
+                    markStale(seriesFrames.remove(change.id));
+                    Iterator<Frame> versionFramesIterator = versionFrames.values().iterator();
+                    while (versionFramesIterator.hasNext()) {
+                        Frame versionFrame = versionFramesIterator.next();
+                        if (change.id.equals(versionFrame.seriesID)) {
+                            markStale(versionFrame);
+                            versionFramesIterator.remove();
+                        }
+                    }
+                    staleBytes += frame.length;
+                    break;
+                case DELETE_VERSION:
+                    markStale(versionFrames.remove(change.id));
+                    staleBytes += frame.length;
+                    break;
+                case DELETE_ALL:
+                    seriesFrames.clear();
+                    versionFrames.clear();
+                    staleBytes += liveBytes + frame.length;
+                    liveBytes = 0;
+                    break;
+            }
+        }
+    }
+
+    private void markStale(Frame frame) {
+        if (frame == null)
+            return;
+        liveBytes -= frame.length;
+        staleBytes += frame.length;
+    }
+
+    private void startCompaction() {
+        long intervalMillis = ConnectionPool.getLongEnv(ENV_COMPACTION_INTERVAL_MS, DEFAULT_COMPACTION_INTERVAL_MS);
+        ScheduledExecutorService compactionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mapped-log-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactionExecutor.scheduleWithFixedDelay(this::compactIfMostlyStale, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes wait while the log is compacted. Reads do not, since they never touch the file.
+     */
+    private void compactIfMostlyStale() {
+        synchronized (database) {
+            if (staleBytes < COMPACTION_MIN_STALE_BYTES || staleBytes < liveBytes)
+                return;
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Failed to compact " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Called with the lock of the database held.
+     */
+    void compact() throws IOException {
+        long start = System.nanoTime();
+        long staleBytesBefore = staleBytes;
+        Path compactPath = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(compactPath);
+        long compactSize = Math.max(initialSize, liveBytes * 2 + TERMINATOR_BYTES);
+        FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer compactBuffer = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(compactSize, Integer.MAX_VALUE));
+            Map<String, Frame> compactSeriesFrames = new HashMap<>();
+            Map<String, Frame> compactVersionFrames = new HashMap<>();
+            int offset = 0;
+            for (Map.Entry<String, Frame> seriesFrame : seriesFrames.entrySet()) {
+                compactSeriesFrames.put(seriesFrame.getKey(), copyFrame(seriesFrame.getValue(), compactBuffer, offset));
+                offset += seriesFrame.getValue().length;
+            }
+            for (Map.Entry<String, Frame> versionFrame : versionFrames.entrySet()) {
+                compactVersionFrames.put(versionFrame.getKey(), copyFrame(versionFrame.getValue(), compactBuffer, offset));
+                offset += versionFrame.getValue().length;
+            }
+            compactBuffer.putInt(offset, 0);
+            compactBuffer.force();
+            Files.move(compactPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(path.toAbsolutePath().getParent());
+            // The old mapping stays valid until it is garbage collected, even though its file is gone
+            channel.close();
+            channel = compactChannel;
+            buffer = compactBuffer;
+            position = offset;
+            seriesFrames.clear();
+            seriesFrames.putAll(compactSeriesFrames);
+            versionFrames.clear();
+            versionFrames.putAll(compactVersionFrames);
+            liveBytes = offset;
+            staleBytes = 0;
+        } catch (IOException | RuntimeException e) {
+            compactChannel.close();
+            Files.deleteIfExists(compactPath);
+            throw e;
+        }
+        LOG.info("Compacted " + path + " to " + liveBytes + " bytes, dropping " + staleBytesBefore + " stale bytes, in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Make the rename of the compacted log durable. Until the directory is synced, a crash may bring back the old log, or no log at all.
+     * The compacted log is already in place when this runs, so a failure is logged rather than thrown,
+     * which would leave the database appending to the replaced file.
+     */
+    private void forceDirectory(Path directory) {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            LOG.warn("Failed to sync the directory " + directory + " after compacting " + path + ". The compaction may be lost in a crash", e);
+        }
+    }
+
+    /**
+     * Copy a frame as it is, except that it no longer says that more changes follow. In the compacted log every document is a write of its own.
+     */
+    private Frame copyFrame(Frame frame, MappedByteBuffer target, int targetOffset) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(frame.offset);
+        source.limit(frame.offset + frame.length);
+        ByteBuffer destination = target.duplicate();
+        destination.position(targetOffset);
+        destination.put(source);
+        target.put(targetOffset + 8, (byte) 0);
+        return new Frame(targetOffset, frame.length, frame.seriesID);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static String seriesIDOf(Change change) {
+        if (change.document != null)
+            return change.document.seriesID;
+        return change.type == ChangeType.DELETE_SERIES ? change.id : null;
+    }
+
+    private static ObjectNode toJson(Change change) {
+        ObjectNode changeJson = change.document != null ? InMemoryDatabase.toJson(change.document) : MAPPER.createObjectNode();
+        changeJson.put("type", change.type.name());
+        if (change.document == null)
+            changeJson.put(Field.ID, change.id);
+        return changeJson;
+    }
+
+    private static Change toChange(JsonNode changeJson) {
+        ChangeType type = ChangeType.valueOf(changeJson.get("type").asText());
+        if (type == ChangeType.PUT_SERIES || type == ChangeType.PUT_VERSION)
+            return Change.put(type, InMemoryDatabase.fromJson(changeJson));
+        return Change.delete(type, changeJson.path(Field.ID).textValue());
+    }
+}
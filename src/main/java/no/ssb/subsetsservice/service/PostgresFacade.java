@@ -1,5 +1,7 @@
 package no.ssb.subsetsservice.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -8,70 +10,112 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import no.ssb.subsetsservice.controller.ErrorHandler;
 import no.ssb.subsetsservice.entity.Field;
 import no.ssb.subsetsservice.entity.SQL;
+import no.ssb.subsetsservice.service.QueryLog.QueryClass;
+import no.ssb.subsetsservice.util.JsonStreamRenderer;
+import no.ssb.subsetsservice.util.Utils;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import org.postgresql.util.PGobject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
-import java.io.File;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static no.ssb.subsetsservice.entity.SQL.*;
 import static org.springframework.http.HttpStatus.*;
 
-@Service
 public class PostgresFacade implements DatabaseInterface {
 
     private static final Logger LOG = LoggerFactory.getLogger(PostgresFacade.class);
 
     ConnectionPool connectionPool;
+    ConnectionPool readConnectionPool; // null when no read replica is configured
+    DocumentCache cache; // null when caching is off
 
-    private static final String LOCAL_SUBSETS_SCHEMA_DIR = "src/main/resources/definitions/";
-    private static final String DOCKER_SUBSETS_SCHEMA_DIR = "/usr/share/klass-subsets-api/";
+    // When this instance last wrote each series, and anything at all, for read-your-writes routing. Only kept when there is a replica
+    private final Map<String, Long> lastWriteNanosBySeries = new ConcurrentHashMap<>();
+    private volatile long lastWriteNanos = System.nanoTime() - READ_YOUR_WRITES_WINDOW_NANOS;
+    private volatile long lastWriteAllNanos = System.nanoTime() - READ_YOUR_WRITES_WINDOW_NANOS;
 
-    private static final String VERSION_SCHEMA_FILENAME = "version.json";
-    private static final String SERIES_SCHEMA_FILENAME = "series.json";
+    private SubsetSchemas schemas;
 
-    private String SUBSETS_SCHEMA_DIR = LOCAL_SUBSETS_SCHEMA_DIR;
-    private String VERSION_SCHEMA_PATH = LOCAL_SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
-    private String SERIES_SCHEMA_PATH = LOCAL_SUBSETS_SCHEMA_DIR + SERIES_SCHEMA_FILENAME;
+    private static final int STREAMING_FETCH_SIZE = 50;
+    private static final int IMPORT_BATCH_SIZE = getImportBatchSize();
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+    private static final String EXCLUSION_VIOLATION = "23P01"; // Raised by the constraint against overlapping validity of published versions
+    private static final String ALL_LANGUAGES = "all";
+    private static final ObjectMapper STREAMING_MAPPER = new ObjectMapper();
+    private static final int CACHE_MAX_ENTRIES = getCacheMaxEntries();
+    private static final int CHANGE_LISTENER_POLL_MS = 10000;
+    private static final long CHANGE_LISTENER_RETRY_MS = 5000;
+    private static final long READ_YOUR_WRITES_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(getReadYourWritesMillis());
+    // Versions keep a copy of their codes in version_json while instances from before code lists may still run. See SQL.CREATE_CODE_LISTS
+    private static final boolean INLINE_CODES = Boolean.parseBoolean(System.getenv().getOrDefault("POSTGRES_INLINE_CODES", "true").trim());
+    private static final int CODE_LIST_MOVE_BATCH_SIZE = getCodeListMoveBatchSize();
 
-    public PostgresFacade(){
+    private volatile boolean initialized = false;
+
+    private static int getCacheMaxEntries() {
+        return ConnectionPool.getIntEnv("POSTGRES_CACHE_MAX_ENTRIES", 1000);
+    }
+
+    private static long getReadYourWritesMillis() {
+        return ConnectionPool.getLongEnv("POSTGRES_READ_YOUR_WRITES_MS", 5000);
+    }
+
+    private static int getImportBatchSize() {
+        return ConnectionPool.getIntEnv("POSTGRES_IMPORT_BATCH_SIZE", 500);
+    }
+
+    private static int getCodeListMoveBatchSize() {
+        return Math.max(1, ConnectionPool.getIntEnv("POSTGRES_CODE_LIST_MOVE_BATCH_SIZE", 500));
+    }
+
+    /**
+     * Instances are handed out by {@link DatabaseFactory}, which keeps a single long-lived facade.
+     * The schema bootstrap in {@link #initializeDatabase()} therefore runs once per application, not once per request.
+     */
+    PostgresFacade(){
         initializeDatabase();
     }
 
     @Override
-    public ResponseEntity<JsonNode> initializeDatabase() {
-        LOG.debug("Finding schema");
-        String versionSchemaJsonPath = LOCAL_SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
-        //String seriesSchemaJsonPath = LOCAL_SUBSETS_SCHEMA_DIR+SERIES_SCHEMA_FILENAME;
-        File versionJsonFile = new File(versionSchemaJsonPath);
-        //File seriesJsonFile = new File(seriesSchemaJsonPath);
-        if (versionJsonFile.exists() && versionJsonFile.isFile()) {
-            LOG.debug("version schema file " + versionJsonFile.getPath() + " exists and is a file!");
-            LOG.debug("Setting schema directory to " + LOCAL_SUBSETS_SCHEMA_DIR);
-            SUBSETS_SCHEMA_DIR = LOCAL_SUBSETS_SCHEMA_DIR;
-        } else {
-            versionSchemaJsonPath = DOCKER_SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
-            versionJsonFile = new File(versionSchemaJsonPath);
-            if (versionJsonFile.exists() && versionJsonFile.isFile()) {
-                LOG.debug(versionJsonFile.getPath() + " exists and is a file!");
-                LOG.debug("Setting schema directory to " + DOCKER_SUBSETS_SCHEMA_DIR);
-                SUBSETS_SCHEMA_DIR = DOCKER_SUBSETS_SCHEMA_DIR;
-            } else {
-                String schemaErrorString = "Could not locate versions.json schema file in " + DOCKER_SUBSETS_SCHEMA_DIR + " which is the docker default, or " + LOCAL_SUBSETS_SCHEMA_DIR + " which is the local testing location.";
-                LOG.error(schemaErrorString);
-                throw new Error(schemaErrorString);
-            }
-        }
-        VERSION_SCHEMA_PATH = SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
-        SERIES_SCHEMA_PATH = SUBSETS_SCHEMA_DIR + SERIES_SCHEMA_FILENAME;
+    public synchronized ResponseEntity<JsonNode> initializeDatabase() {
+        if (initialized) {
+            LOG.trace("initializeDatabase: database is already initialized");
+            return new ResponseEntity<>(OK);
+        }
+        long bootstrapStart = System.nanoTime();
+        schemas = new SubsetSchemas();
+        long schemaLookupMillis = (System.nanoTime() - bootstrapStart) / 1_000_000;
 
         LOG.debug("initializeDatabase in PostgresFacade");
         connectionPool = ConnectionPool.getInstance();
+        readConnectionPool = ConnectionPool.getReplicaInstance();
+        LOG.debug(readConnectionPool == null ? "No read replica is configured, all reads go to the primary" : "GET requests read from the read replica");
+        // A replica may still serve the old document after the notification has evicted it, so there is no cache in front of one
+        if (cache == null && readConnectionPool == null && CACHE_MAX_ENTRIES > 0) {
+            cache = new DocumentCache(CACHE_MAX_ENTRIES);
+            startChangeListener();
+        }
+        long ddlStart = System.nanoTime();
         try (Connection con = connectionPool.getConnection()) {
             try (Statement st = con.createStatement()) {
                 try (ResultSet rs = st.executeQuery("SELECT VERSION()")) {
@@ -79,31 +123,8 @@ public class PostgresFacade implements DatabaseInterface {
                         LOG.debug("'SELECT VERSION()' result : " + rs.getString(1));
                     }
 
-                    LOG.debug("Attempting subsets table and index creation...");
-                    try (PreparedStatement preparedStatement = con.prepareStatement(SQL.CREATE_SERIES)) {
-                        LOG.debug("Crete series table");
-                        preparedStatement.executeUpdate();
-                    }
-
-                    try (PreparedStatement preparedStatement = con.prepareStatement(SQL.SET_OWNER_SERIES)) {
-                        LOG.debug("Set owner of series table");
-                        preparedStatement.executeUpdate();
-                    }
-
-                    try (PreparedStatement preparedStatement = con.prepareStatement(SQL.CREATE_VERSIONS)) {
-                        LOG.debug("create versions table");
-                        preparedStatement.executeUpdate();
-                    }
-
-                    try (PreparedStatement preparedStatement = con.prepareStatement(SQL.SET_OWNER_VERSIONS)) {
-                        LOG.debug("set owner of versions table");
-                        preparedStatement.executeUpdate();
-                    }
-
-                    try (PreparedStatement preparedStatement = con.prepareStatement(SQL.CREATE_INDEX)) {
-                        LOG.debug("create index");
-                        preparedStatement.executeUpdate();
-                    }
+                    int appliedMigrations = SchemaMigrations.migrate(con);
+                    LOG.debug("Applied " + appliedMigrations + " schema migrations, the schema is at version " + SchemaMigrations.LATEST_VERSION);
 
                     try (Statement st2 = con.createStatement()) {
                         String getTablesQuery = "SELECT * FROM information_schema.tables WHERE table_type='BASE TABLE' AND table_schema='public'";
@@ -120,6 +141,12 @@ public class PostgresFacade implements DatabaseInterface {
                     }
                 }
             }
+            initialized = true;
+            if (!INLINE_CODES)
+                startCodeListMover();
+            long ddlMillis = (System.nanoTime() - ddlStart) / 1_000_000;
+            long totalMillis = (System.nanoTime() - bootstrapStart) / 1_000_000;
+            LOG.info("Database bootstrap finished in " + totalMillis + " ms (schema file lookup: " + schemaLookupMillis + " ms, connection and migrations: " + ddlMillis + " ms)");
             return new ResponseEntity<>(OK);
         } catch (SQLException ex) {
             LOG.error(ex.getMessage(), ex);
@@ -127,30 +154,184 @@ public class PostgresFacade implements DatabaseInterface {
         }
     }
 
-    @Override
-    public ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts) {
-        LOG.debug("getVersionBySeriesID " + seriesID);
+    /**
+     * Reads made while handling a GET request go to the read replica, if there is one.
+     * If this instance wrote the series within the read-your-writes window, the read goes to the primary instead, since the replica may lag behind.
+     * Reads made while handling a write, like the read of the current document before a PUT, always go to the primary.
+     *
+     * @param seriesID the series that is read, or null if the read spans several series
+     */
+    private Connection getReadConnection(String seriesID) throws SQLException {
+        return getReadConnection(isRecentlyWritten(seriesID));
+    }
+
+    /**
+     * Version uids are "{seriesID}_{versionID}", and series ids may contain "_", so the series is looked for among the recently written ones.
+     */
+    private Connection getVersionReadConnection(String versionUid) throws SQLException {
+        boolean recentlyWritten = isWithinWindow(lastWriteAllNanos) || lastWriteNanosBySeries.keySet().stream()
+                .anyMatch(seriesID -> versionUid.startsWith(seriesID + "_") && isRecentlyWritten(seriesID));
+        return getReadConnection(recentlyWritten);
+    }
+
+    private Connection getReadConnection(boolean recentlyWritten) throws SQLException {
+        if (readConnectionPool == null || recentlyWritten || !isGetRequest())
+            return connectionPool.getConnection();
+        return readConnectionPool.getConnection();
+    }
+
+    private static boolean isGetRequest() {
+        RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        return requestAttributes instanceof ServletRequestAttributes
+                && HttpMethod.GET.matches(((ServletRequestAttributes) requestAttributes).getRequest().getMethod());
+    }
+
+    private boolean isRecentlyWritten(String seriesID) {
+        if (seriesID == null)
+            return isWithinWindow(lastWriteNanos);
+        Long seriesWriteNanos = lastWriteNanosBySeries.get(seriesID);
+        return isWithinWindow(lastWriteAllNanos) || (seriesWriteNanos != null && isWithinWindow(seriesWriteNanos));
+    }
+
+    private static boolean isWithinWindow(long writeNanos) {
+        return System.nanoTime() - writeNanos < READ_YOUR_WRITES_WINDOW_NANOS;
+    }
+
+    private void markWritten(String seriesID) {
+        if (cache != null)
+            cache.evictSeries(seriesID);
+        if (readConnectionPool == null)
+            return;
+        long now = System.nanoTime();
+        lastWriteNanos = now;
+        lastWriteNanosBySeries.values().removeIf(writeNanos -> !isWithinWindow(writeNanos));
+        lastWriteNanosBySeries.put(seriesID, now);
+    }
+
+    private void markAllWritten() {
+        if (cache != null)
+            cache.evictAll();
+        if (readConnectionPool == null)
+            return;
+        long now = System.nanoTime();
+        lastWriteNanos = now;
+        lastWriteAllNanos = now;
+    }
+
+    /**
+     * Tell all instances that a series has changed, when the current transaction commits.
+     * Statements that write a single series do this themselves, see SQL.CHANGES_CHANNEL.
+     * A failed notification is only logged, since the write itself has succeeded.
+     */
+    private static void notifyChange(Connection con, String seriesID) {
+        try (PreparedStatement pstmt = QueryLog.prepare(con, "NOTIFY_CHANGE", QueryClass.WRITE, NOTIFY_CHANGE)) {
+            pstmt.setString(1, seriesID);
+            pstmt.executeQuery().close();
+        } catch (SQLException ex) {
+            LOG.warn("Failed to notify other instances of a change to series " + seriesID + ": " + ex.getMessage());
+        }
+    }
+
+    private void startCodeListMover() {
+        Thread mover = new Thread(this::moveVersionCodesToCodeLists, "subsets-code-list-mover");
+        mover.setDaemon(true);
+        mover.start();
+    }
+
+    /**
+     * Moves the codes that versions keep in version_json into code lists, one batch per statement, so no transaction locks many versions or runs for long.
+     * Versions that are being written at the same time are skipped, and moved when the next instance starts.
+     * The code lists that no version references any more, like those left by older instances that deleted versions, are removed at the end.
+     */
+    private void moveVersionCodesToCodeLists() {
+        long start = System.nanoTime();
+        int batches = 0;
+        String afterVersionID = "";
         try (Connection con = connectionPool.getConnection()) {
-            PreparedStatement pstmt;
-            if (includeFuture) {
-                pstmt = con.prepareStatement(SELECT_SERIES_VERSIONS_VALID_AND_FUTURE);
-            } else {
-                pstmt = con.prepareStatement(SELECT_SERIES_VERSIONS_VALID);
+            while (afterVersionID != null && !Thread.currentThread().isInterrupted()) {
+                try (PreparedStatement pstmt = QueryLog.prepare(con, "MOVE_VERSION_CODES_TO_CODE_LISTS_BATCH", QueryClass.SCHEMA, MOVE_VERSION_CODES_TO_CODE_LISTS_BATCH)) {
+                    pstmt.setString(1, afterVersionID);
+                    pstmt.setInt(2, CODE_LIST_MOVE_BATCH_SIZE);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        afterVersionID = rs.next() ? rs.getString(1) : null;
+                    }
+                }
+                if (afterVersionID != null)
+                    batches++;
             }
-            try (pstmt) {
-                pstmt.setString(1, seriesID);
-                String commaDelimitedList;
-                if (includeDrafts) {
-                    commaDelimitedList = Field.DRAFT + "," + Field.OPEN;
-                } else {
-                    commaDelimitedList = Field.OPEN;
+            if (batches > 0) {
+                deleteUnreferencedCodeLists(con, null);
+                LOG.info("Moved the codes of versions into code lists in " + batches + " batches and " + ((System.nanoTime() - start) / 1_000_000) + " ms");
+            }
+        } catch (SQLException ex) {
+            LOG.warn("Failed to move the codes of versions into code lists, the rest are moved when an instance starts again: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Evicts the local cache when any instance writes a series. Runs on its own daemon thread, holding one pool connection while listening.
+     * The cache is only used while listening, since notifications sent in the meantime are lost.
+     */
+    private void startChangeListener() {
+        Thread listener = new Thread(this::listenForChanges, "subsets-change-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void listenForChanges() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Connection con = null;
+            try {
+                con = connectionPool.getConnection();
+                try (Statement st = con.createStatement()) {
+                    st.execute(LISTEN_CHANGES);
+                }
+                PGConnection pgConnection = con.unwrap(PGConnection.class);
+                cache.enable();
+                LOG.debug("Listening for changes on channel " + CHANGES_CHANNEL);
+                while (!Thread.currentThread().isInterrupted()) {
+                    PGNotification[] notifications = pgConnection.getNotifications(CHANGE_LISTENER_POLL_MS);
+                    if (notifications == null)
+                        continue;
+                    for (PGNotification notification : notifications) {
+                        LOG.trace("Change notification for series " + notification.getParameter());
+                        cache.evictSeries(notification.getParameter());
+                    }
+                }
+            } catch (SQLException ex) {
+                cache.disable();
+                LOG.warn("Change listener failed, the cache is off until it listens again in " + CHANGE_LISTENER_RETRY_MS + " ms: " + ex.getMessage());
+                try {
+                    Thread.sleep(CHANGE_LISTENER_RETRY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-                pstmt.setString(2, commaDelimitedList);
+            } finally {
+                // The connection is still subscribed to the channel, so it must not go back to the pool
+                if (con != null)
+                    connectionPool.evictConnection(con);
+            }
+        }
+        cache.disable();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts) {
+        LOG.debug("getVersionBySeriesID " + seriesID);
+        ResponseEntity<JsonNode> versionsRE = getVersionsBySeriesID(seriesID, includeFuture, includeDrafts, null, null);
+        if (versionsRE.getStatusCode().equals(OK) && versionsRE.getBody().isEmpty())
+            return ErrorHandler.newHttpError("There were no versions for series ID " + seriesID, NOT_FOUND, LOG);
+        return versionsRE;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to) {
+        LOG.debug("getVersionBySeriesID " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " from " + from + " to " + to);
+        try (Connection con = getReadConnection(seriesID)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_VERSIONS_FILTERED", QueryClass.READ, SELECT_SERIES_VERSIONS_FILTERED)) {
+                setSeriesVersionsFilterParameters(pstmt, seriesID, includeFuture, includeDrafts, from, to, null, null);
                 LOG.debug("pstmt: " + pstmt);
                 try (ResultSet rs = pstmt.executeQuery()) {
-                    if (!rs.isBeforeFirst()) {
-                        return ErrorHandler.newHttpError("There were no versions for series ID " + seriesID, NOT_FOUND, LOG);
-                    }
                     ObjectMapper om = new ObjectMapper();
                     ArrayNode versionsArrayNode = om.createArrayNode();
                     while (rs.next()) {
@@ -160,7 +341,7 @@ public class PostgresFacade implements DatabaseInterface {
                 }
             }
         } catch (SQLException ex) {
-            LOG.error("Failed to create series", ex);
+            LOG.error("Failed to get series versions", ex);
             return ErrorHandler.newHttpError("Failed to get series version", INTERNAL_SERVER_ERROR, LOG);
         } catch (JsonProcessingException e) {
             LOG.error("Failed to parse json", e);
@@ -168,11 +349,174 @@ public class PostgresFacade implements DatabaseInterface {
         }
     }
 
+    @Override
+    public ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID) {
+        return getVersionsPageBySeriesID(seriesID, includeFuture, includeDrafts, limit, afterVersionID, ALL_LANGUAGES);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsPageBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, Integer limit, String afterVersionID, String language) {
+        LOG.debug("getVersionsPageBySeriesID " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " limit " + limit + " after " + afterVersionID + " language " + language);
+        try (Connection con = getReadConnection(seriesID)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_VERSIONS_FILTERED", QueryClass.READ, selectSeriesVersionsFiltered(language))) {
+                setSeriesVersionsFilterParameters(pstmt, seriesID, includeFuture, includeDrafts, null, null, limit, afterVersionID);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    ObjectMapper om = new ObjectMapper();
+                    ArrayNode versionsArrayNode = om.createArrayNode();
+                    while (rs.next()) {
+                        versionsArrayNode.add(om.readTree(rs.getString(1)));
+                    }
+                    return new ResponseEntity<>(versionsArrayNode, OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get page of series versions", ex);
+            return ErrorHandler.newHttpError("Failed to get page of series versions", INTERNAL_SERVER_ERROR, LOG);
+        } catch (JsonProcessingException e) {
+            LOG.error("Failed to parse json", e);
+            return ErrorHandler.newHttpError("Failed to parse json", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    private static void setSeriesVersionsFilterParameters(PreparedStatement pstmt, String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to, Integer limit, String afterVersionID) throws SQLException {
+        int nextIndex = setSeriesVersionsWhereParameters(pstmt, 1, seriesID, includeFuture, includeDrafts, from, to);
+        pstmt.setString(nextIndex, afterVersionID);
+        pstmt.setString(nextIndex + 1, afterVersionID);
+        pstmt.setObject(nextIndex + 2, limit, Types.INTEGER); // LIMIT NULL means no limit
+    }
+
+    /**
+     * @return the index of the parameter after the ones that were set
+     */
+    private static int setSeriesVersionsWhereParameters(PreparedStatement pstmt, int firstIndex, String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to) throws SQLException {
+        pstmt.setString(firstIndex, seriesID);
+        pstmt.setString(firstIndex + 1, includeDrafts ? Field.DRAFT + "," + Field.OPEN : Field.OPEN);
+        String latestValidFrom = includeFuture ? null : Utils.getNowDate();
+        pstmt.setString(firstIndex + 2, latestValidFrom);
+        pstmt.setString(firstIndex + 3, latestValidFrom);
+        pstmt.setString(firstIndex + 4, to);
+        pstmt.setString(firstIndex + 5, to);
+        pstmt.setString(firstIndex + 6, from);
+        pstmt.setString(firstIndex + 7, from);
+        return firstIndex + 8;
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getCodesInRange(String seriesID, boolean includeFuture, boolean includeDrafts, String from, String to, String language) {
+        LOG.debug("getCodesInRange " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " from " + from + " to " + to + " language " + language);
+        try (Connection con = getReadConnection(seriesID)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_CODES_IN_RANGE", QueryClass.READ, SELECT_SERIES_CODES_IN_RANGE)) {
+                pstmt.setString(1, language);
+                setSeriesVersionsWhereParameters(pstmt, 2, seriesID, includeFuture, includeDrafts, from, to);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    ObjectMapper om = new ObjectMapper();
+                    ArrayNode codesArrayNode = om.createArrayNode();
+                    while (rs.next()) {
+                        ObjectNode code = codesArrayNode.addObject();
+                        code.put(Field.CLASSIFICATION_ID, rs.getString(1));
+                        code.put(Field.CODE, rs.getString(2));
+                        code.put(Field.NAME, rs.getString(3));
+                        code.put(Field.LEVEL, rs.getString(4));
+                        code.set(Field.CLASSIFICATION_VERSIONS, om.readTree(rs.getString(5)));
+                    }
+                    return new ResponseEntity<>(codesArrayNode, OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get codes of series versions in range", ex);
+            return ErrorHandler.newHttpError("Failed to get codes of series versions in range", INTERNAL_SERVER_ERROR, LOG);
+        } catch (JsonProcessingException e) {
+            LOG.error("Failed to parse json", e);
+            return ErrorHandler.newHttpError("Failed to parse json", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getCodesAt(String seriesID, String date, boolean includeFuture, boolean includeDrafts) {
+        LOG.debug("getCodesAt " + date + " in series " + seriesID);
+        try (Connection con = getReadConnection(seriesID)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_CODES_AT", QueryClass.READ, SELECT_SERIES_CODES_AT)) {
+                pstmt.setString(1, date);
+                pstmt.setString(2, includeDrafts ? Field.DRAFT + "," + Field.OPEN : Field.OPEN);
+                String latestValidFrom = includeFuture ? null : Utils.getNowDate();
+                pstmt.setString(3, latestValidFrom);
+                pstmt.setString(4, latestValidFrom);
+                pstmt.setString(5, seriesID);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next())
+                        return ErrorHandler.newHttpError("Series with id " + seriesID + " was not found", NOT_FOUND, LOG);
+                    ObjectMapper om = new ObjectMapper();
+                    String codes = rs.getString(1);
+                    if (codes == null) {
+                        LOG.debug("No version of series " + seriesID + " was valid at " + date);
+                        return new ResponseEntity<>(om.createArrayNode(), OK);
+                    }
+                    return new ResponseEntity<>(om.readTree(codes), OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get codes at date", ex);
+            return ErrorHandler.newHttpError("Failed to get codes at date", INTERNAL_SERVER_ERROR, LOG);
+        } catch (JsonProcessingException e) {
+            LOG.error("Failed to parse json", e);
+            return ErrorHandler.newHttpError("Failed to parse json", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionsByCode(String classificationID, String code, String date, boolean includeDrafts) {
+        LOG.debug("getVersionsByCode classification " + classificationID + " code " + code + " date " + date + " includeDrafts " + includeDrafts);
+        try (Connection con = getReadConnection(null)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_VERSIONS_BY_CODE", QueryClass.READ, SELECT_VERSIONS_BY_CODE)) {
+                pstmt.setString(1, classificationID);
+                pstmt.setString(2, code);
+                pstmt.setString(3, date);
+                pstmt.setString(4, date);
+                pstmt.setString(5, date);
+                pstmt.setString(6, includeDrafts ? Field.DRAFT + "," + Field.OPEN : Field.OPEN);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    ObjectMapper om = new ObjectMapper();
+                    ArrayNode versionsArrayNode = om.createArrayNode();
+                    while (rs.next()) {
+                        ObjectNode version = versionsArrayNode.addObject();
+                        version.put(Field.SUBSET_ID, rs.getString(1));
+                        version.put(Field.VERSION_ID, rs.getString(2));
+                        version.put(Field.ADMINISTRATIVE_STATUS, rs.getString(3));
+                        version.put(Field.VALID_FROM, rs.getString(4));
+                        version.put(Field.VALID_UNTIL, rs.getString(5));
+                        version.put(Field.LEVEL, rs.getString(6));
+                    }
+                    return new ResponseEntity<>(versionsArrayNode, OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get versions by code", ex);
+            return ErrorHandler.newHttpError("Failed to get versions by code", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
     @Override
     public ResponseEntity<JsonNode> getVersionByID(String versionUid) {
-        LOG.debug("getVersionByID uid " + versionUid);
-        try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(SELECT_VERSION_BY_ID)) {
+        return getVersionByID(versionUid, ALL_LANGUAGES);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getVersionByID(String versionUid, String language) {
+        LOG.debug("getVersionByID uid " + versionUid + " language " + language);
+        // Each language is cached separately, under the column it is read from
+        String cacheKey = versionJsonColumn(language).equals(versionJsonColumn(ALL_LANGUAGES)) ? versionUid : versionUid + ":" + language;
+        DocumentCache.CachedDocument cachedVersion = cache == null ? null : cache.getVersion(cacheKey);
+        if (cachedVersion != null) {
+            LOG.debug("getVersionByID uid " + versionUid + " language " + language + " found in the cache at revision " + cachedVersion.revision);
+            return withETag(cachedVersion.document.deepCopy(), cachedVersion.revision, OK);
+        }
+        long cacheGeneration = cache == null ? 0 : cache.generation();
+        try (Connection con = getVersionReadConnection(versionUid)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_VERSION_BY_ID", QueryClass.READ, selectVersionByID(language))) {
                 pstmt.setString(1, versionUid);
                 LOG.debug("pstmt: " + pstmt);
                 try (ResultSet rs = pstmt.executeQuery()) {
@@ -184,7 +528,9 @@ public class PostgresFacade implements DatabaseInterface {
                     if (!rs.isLast())
                         LOG.error("There was more than one row in a rs from a query find a series version with id " + versionUid);
                     series = om.readTree(rs.getString(1));
-                    return new ResponseEntity<>(series, OK);
+                    if (cache != null)
+                        cache.putVersion(cacheGeneration, rs.getString(3), cacheKey, series.deepCopy(), rs.getLong(2));
+                    return withETag(series, rs.getLong(2), OK);
                 }
             }
         } catch (SQLException ex) {
@@ -199,8 +545,14 @@ public class PostgresFacade implements DatabaseInterface {
     @Override
     public ResponseEntity<JsonNode> getSubsetSeries(String id) {
         LOG.debug("getSubsetSeries id " + id);
-        try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(SELECT_SERIES_BY_ID)) {
+        DocumentCache.CachedDocument cachedSeries = cache == null ? null : cache.getSeries(id);
+        if (cachedSeries != null) {
+            LOG.debug("getSubsetSeries id " + id + " found in the cache at revision " + cachedSeries.revision);
+            return withETag(cachedSeries.document.deepCopy(), cachedSeries.revision, OK);
+        }
+        long cacheGeneration = cache == null ? 0 : cache.generation();
+        try (Connection con = getReadConnection(id)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_BY_ID", QueryClass.READ, SELECT_SERIES_BY_ID)) {
                 pstmt.setString(1, id);
                 LOG.debug("pstmt: " + pstmt);
                 try (ResultSet rs = pstmt.executeQuery()) {
@@ -212,7 +564,9 @@ public class PostgresFacade implements DatabaseInterface {
                     if (!rs.isLast())
                         LOG.error("There was more than one row in a rs from a query find a series with id " + id);
                     series = om.readTree(rs.getString(1));
-                    return new ResponseEntity<>(series, OK);
+                    if (cache != null)
+                        cache.putSeries(cacheGeneration, id, series.deepCopy(), rs.getLong(2));
+                    return withETag(series, rs.getLong(2), OK);
                 }
             }
         } catch (SQLException ex) {
@@ -224,10 +578,52 @@ public class PostgresFacade implements DatabaseInterface {
         }
     }
 
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesWithVersions(String id, String language) {
+        LOG.debug("getSubsetSeriesWithVersions id " + id + " language " + language);
+        try (Connection con = getReadConnection(id)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_WITH_VERSIONS", QueryClass.READ, selectSeriesWithVersions(language))) {
+                pstmt.setString(1, id);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next())
+                        return ErrorHandler.newHttpError("Series with id " + id + " was not found", NOT_FOUND, LOG);
+                    ObjectMapper om = new ObjectMapper();
+                    ObjectNode series = (ObjectNode) om.readTree(rs.getString(1));
+                    series.set(Field.VERSIONS, om.readTree(rs.getString(2)));
+                    return new ResponseEntity<>(series, OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get series with versions", ex);
+            return ErrorHandler.newHttpError("Failed to get series with versions", INTERNAL_SERVER_ERROR, LOG);
+        } catch (JsonProcessingException e) {
+            LOG.error("Failed to parse json", e);
+            return ErrorHandler.newHttpError("Failed to parse json", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    /**
+     * The ETag header carries the revision of the row, so that a later conditional update can be made against it.
+     */
+    private static ResponseEntity<JsonNode> withETag(JsonNode body, long revision, HttpStatus status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(Utils.toETag(revision));
+        return new ResponseEntity<>(body, headers, status);
+    }
+
     @Override
     public ResponseEntity<JsonNode> getAllSubsetSeries() {
-        try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(SELECT_ALL_SERIES)) {
+        return getSubsetSeriesPage(true, true, true, null, null);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesPage(boolean includeDrafts, boolean includeFuture, boolean includeExpired, Integer limit, String afterSeriesID) {
+        LOG.debug("getSubsetSeriesPage includeDrafts " + includeDrafts + " includeFuture " + includeFuture + " includeExpired " + includeExpired + " limit " + limit + " after " + afterSeriesID);
+        try (Connection con = getReadConnection(null)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_PAGE", QueryClass.READ, SELECT_SERIES_PAGE)) {
+                setSeriesFilterParameters(pstmt, includeDrafts, includeFuture, includeExpired, limit, afterSeriesID);
+                LOG.debug("pstmt: " + pstmt);
                 try (ResultSet rs = pstmt.executeQuery()) {
                     ObjectMapper om = new ObjectMapper();
                     ArrayNode allSeriesArrayNode = om.createArrayNode();
@@ -247,8 +643,149 @@ public class PostgresFacade implements DatabaseInterface {
         }
     }
 
+    private static void setSeriesFilterParameters(PreparedStatement pstmt, boolean includeDrafts, boolean includeFuture, boolean includeExpired, Integer limit, String afterSeriesID) throws SQLException {
+        String nowDate = Utils.getNowDate();
+        String latestValidFrom = includeFuture ? null : nowDate;
+        String earliestValidUntil = includeExpired ? null : nowDate;
+        pstmt.setString(1, afterSeriesID);
+        pstmt.setString(2, afterSeriesID);
+        pstmt.setBoolean(3, includeDrafts);
+        pstmt.setString(4, latestValidFrom);
+        pstmt.setString(5, latestValidFrom);
+        pstmt.setString(6, earliestValidUntil);
+        pstmt.setString(7, earliestValidUntil);
+        pstmt.setObject(8, limit, Types.INTEGER); // LIMIT NULL means no limit
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamSubsetSeries(boolean includeDrafts, boolean includeFuture, boolean includeExpired, HttpServletResponse response) {
+        LOG.debug("streamSubsetSeries includeDrafts " + includeDrafts + " includeFuture " + includeFuture + " includeExpired " + includeExpired);
+        try (Connection con = getReadConnection(null)) {
+            con.setAutoCommit(false); // The driver only fetches rows in batches from a cursor inside a transaction
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_PAGE_WITH_ID", QueryClass.STREAM, SELECT_SERIES_PAGE_WITH_ID)) {
+                setSeriesFilterParameters(pstmt, includeDrafts, includeFuture, includeExpired, null, null);
+                pstmt.setFetchSize(STREAMING_FETCH_SIZE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response)) {
+                        generator.writeStartArray();
+                        while (rs.next()) {
+                            try (JsonParser parser = STREAMING_MAPPER.getFactory().createParser(rs.getCharacterStream(2))) {
+                                JsonStreamRenderer.writeSeries(parser, generator, rs.getString(1));
+                            }
+                        }
+                        generator.writeEndArray();
+                    }
+                }
+            }
+            con.commit();
+            return new ResponseEntity<>(OK);
+        } catch (SQLException ex) {
+            LOG.error("Failed to stream all series", ex);
+            return ErrorHandler.newHttpError("Failed to stream all series", INTERNAL_SERVER_ERROR, LOG);
+        } catch (IOException e) {
+            LOG.error("Failed to write series json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write series json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamVersionsBySeriesID(String seriesID, boolean includeFuture, boolean includeDrafts, String language, HttpServletResponse response) {
+        LOG.debug("streamVersionsBySeriesID " + seriesID + " includeFuture " + includeFuture + " includeDrafts " + includeDrafts + " language " + language);
+        try (Connection con = getReadConnection(seriesID)) {
+            con.setAutoCommit(false); // The driver only fetches rows in batches from a cursor inside a transaction
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_VERSIONS_FILTERED_WITH_IDS", QueryClass.STREAM, SELECT_SERIES_VERSIONS_FILTERED_WITH_IDS)) {
+                setSeriesVersionsFilterParameters(pstmt, seriesID, includeFuture, includeDrafts, null, null, null, null);
+                pstmt.setFetchSize(STREAMING_FETCH_SIZE);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next())
+                        return ErrorHandler.newHttpError("There were no versions for series ID " + seriesID, NOT_FOUND, LOG);
+                    try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response)) {
+                        generator.writeStartArray();
+                        do {
+                            try (JsonParser parser = STREAMING_MAPPER.getFactory().createParser(rs.getCharacterStream(3))) {
+                                JsonStreamRenderer.writeVersion(parser, generator, rs.getString(1), rs.getString(2), language);
+                            }
+                        } while (rs.next());
+                        generator.writeEndArray();
+                    }
+                }
+            }
+            con.commit();
+            return new ResponseEntity<>(OK);
+        } catch (SQLException ex) {
+            LOG.error("Failed to stream series versions", ex);
+            return ErrorHandler.newHttpError("Failed to stream series versions", INTERNAL_SERVER_ERROR, LOG);
+        } catch (IOException e) {
+            LOG.error("Failed to write version json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write version json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamVersionByID(String versionUid, String language, HttpServletResponse response) {
+        LOG.debug("streamVersionByID uid " + versionUid + " language " + language);
+        try (Connection con = getVersionReadConnection(versionUid)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_VERSION_BY_ID_WITH_IDS", QueryClass.STREAM, SELECT_VERSION_BY_ID_WITH_IDS)) {
+                pstmt.setString(1, versionUid);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next())
+                        return ErrorHandler.newHttpError("Version with id " + versionUid + " was not found", NOT_FOUND, LOG);
+                    try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response);
+                         JsonParser parser = STREAMING_MAPPER.getFactory().createParser(rs.getCharacterStream(3))) {
+                        JsonStreamRenderer.writeVersion(parser, generator, rs.getString(1), rs.getString(2), language);
+                    }
+                    return new ResponseEntity<>(OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to stream series version", ex);
+            return ErrorHandler.newHttpError("Failed to stream series version", INTERNAL_SERVER_ERROR, LOG);
+        } catch (IOException e) {
+            LOG.error("Failed to write version json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write version json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> streamSubsetSeriesWithVersions(String id, String language, HttpServletResponse response) {
+        LOG.debug("streamSubsetSeriesWithVersions id " + id + " language " + language);
+        try (Connection con = getReadConnection(id)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_WITH_VERSIONS", QueryClass.STREAM, selectSeriesWithVersions(language))) {
+                pstmt.setString(1, id);
+                LOG.debug("pstmt: " + pstmt);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next())
+                        return ErrorHandler.newHttpError("Series with id " + id + " was not found", NOT_FOUND, LOG);
+                    // The language projection is already done by the column the versions are read from
+                    try (JsonGenerator generator = JsonStreamRenderer.openResponseStream(response);
+                         JsonParser seriesParser = STREAMING_MAPPER.getFactory().createParser(rs.getCharacterStream(1));
+                         JsonParser versionsParser = STREAMING_MAPPER.getFactory().createParser(rs.getCharacterStream(2))) {
+                        JsonStreamRenderer.writeSeriesWithVersions(seriesParser, versionsParser, generator, id, ALL_LANGUAGES);
+                    }
+                    return new ResponseEntity<>(OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to stream series with versions", ex);
+            return ErrorHandler.newHttpError("Failed to stream series with versions", INTERNAL_SERVER_ERROR, LOG);
+        } catch (IOException e) {
+            LOG.error("Failed to write series json to the response", e);
+            return ErrorHandler.newHttpError("Failed to write series json to the response", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
     @Override
     public boolean healthReady() {
+        if (!connectionPool.isWarmedUp()) {
+            LOG.debug("healthReady: the connection pool is not warmed up yet");
+            return false;
+        }
+        if (readConnectionPool != null && !readConnectionPool.isWarmedUp()) {
+            LOG.debug("healthReady: the read replica connection pool is not warmed up yet");
+            return false;
+        }
         try (Connection con = connectionPool.getConnection()) {
             try (Statement st = con.createStatement()) {
                 try (ResultSet rs = st.executeQuery("SELECT VERSION()")) {
@@ -267,19 +804,31 @@ public class PostgresFacade implements DatabaseInterface {
 
     @Override
     public ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID) {
-        LOG.debug("editSeries with id " + seriesID);
+        return editSeries(newVersionOfSeries, seriesID, null);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> editSeries(JsonNode newVersionOfSeries, String seriesID, Long expectedRevision) {
+        LOG.debug("editSeries with id " + seriesID + " expecting revision " + expectedRevision);
+        markWritten(seriesID);
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(UPDATE_SERIES)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "UPDATE_SERIES", QueryClass.WRITE, UPDATE_SERIES)) {
                 pstmt.setString(2, seriesID);
                 PGobject jsonObject = new PGobject();
                 jsonObject.setType("json");
                 jsonObject.setValue(newVersionOfSeries.toString());
                 pstmt.setObject(1, jsonObject);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows > 0) {
-                    LOG.debug("edit series affected " + affectedRows + " rows");
-                    return new ResponseEntity<>(CREATED);
+                pstmt.setObject(3, expectedRevision, Types.BIGINT);
+                pstmt.setObject(4, expectedRevision, Types.BIGINT);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        long revision = rs.getLong(1);
+                        LOG.debug("edit series " + seriesID + " updated it to revision " + revision);
+                        return withETag(null, revision, CREATED);
+                    }
                 }
+                if (expectedRevision != null)
+                    return ErrorHandler.newHttpError("Series " + seriesID + " is no longer at revision " + expectedRevision, PRECONDITION_FAILED, LOG);
                 return ErrorHandler.newHttpError("No rows were affected", INTERNAL_SERVER_ERROR, LOG);
             }
         } catch (SQLException ex) {
@@ -288,11 +837,40 @@ public class PostgresFacade implements DatabaseInterface {
         }
     }
 
+    @Override
+    public ResponseEntity<JsonNode> patchSeries(String seriesID, ObjectNode changedFields, List<String> removedFields, Long expectedRevision) {
+        LOG.debug("patchSeries with id " + seriesID + " setting " + changedFields.size() + " fields and removing " + removedFields + ", expecting revision " + expectedRevision);
+        markWritten(seriesID);
+        try (Connection con = connectionPool.getConnection()) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "PATCH_SERIES", QueryClass.WRITE, PATCH_SERIES)) {
+                pstmt.setArray(1, con.createArrayOf("text", removedFields.toArray()));
+                pstmt.setObject(2, toJsonObject(changedFields));
+                pstmt.setString(3, seriesID);
+                pstmt.setObject(4, expectedRevision, Types.BIGINT);
+                pstmt.setObject(5, expectedRevision, Types.BIGINT);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        long revision = rs.getLong(1);
+                        LOG.debug("patch series " + seriesID + " updated it to revision " + revision);
+                        return withETag(null, revision, CREATED);
+                    }
+                }
+                if (expectedRevision != null)
+                    return ErrorHandler.newHttpError("Series " + seriesID + " is no longer at revision " + expectedRevision, PRECONDITION_FAILED, LOG);
+                return ErrorHandler.newHttpError("No rows were affected", INTERNAL_SERVER_ERROR, LOG);
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to patch series", ex);
+            return ErrorHandler.newHttpError("Failed to edit series", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
     @Override
     public ResponseEntity<JsonNode> createSubsetSeries(JsonNode subset, String id) {
         LOG.debug("createSubsetSeries with id " + id);
+        markWritten(id);
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement("insert into series values(?, ?::JSON)")) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "INSERT_SERIES", QueryClass.WRITE, INSERT_SERIES)) {
                 pstmt.setString(1, id);
                 PGobject jsonObject = new PGobject();
                 jsonObject.setType("json");
@@ -316,42 +894,184 @@ public class PostgresFacade implements DatabaseInterface {
     public ResponseEntity<JsonNode> saveVersionInSeries(String seriesID, String versionID, JsonNode versionNode) {
         String versionUID = seriesID + "_" + versionID;
         LOG.debug("Attempting to insert version with UID " + versionUID + " to POSTGRES and update series to point to version");
+        markWritten(seriesID);
 
+        long startNanos = System.nanoTime();
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement("insert into versions values(?, ?, ?::JSON)")) {
+            long connectedNanos = System.nanoTime();
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "INSERT_VERSION_AND_UPDATE_SERIES", QueryClass.WRITE, insertVersionAndUpdateSeries(INLINE_CODES))) {
                 pstmt.setString(1, versionUID);
                 pstmt.setString(2, seriesID);
                 PGobject jsonObject = new PGobject();
                 jsonObject.setType("json");
                 jsonObject.setValue(versionNode.toString());
                 pstmt.setObject(3, jsonObject);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows > 0) {
-                    LOG.debug("insert into versions affected " + affectedRows + " rows");
-                } else {
-                    return ErrorHandler.newHttpError("No rows were affected by insert into versions", INTERNAL_SERVER_ERROR, LOG);
-                }
-                LOG.debug("preparing statement to add version to series");
-                try (PreparedStatement pstmt2 = con.prepareStatement(ADD_VERSION_TO_SERIES)) {
-                    pstmt2.setString(1, versionUID);
-                    pstmt2.setString(2, seriesID);
-                    LOG.debug("pstmt2: " + pstmt2);
-                    int affectedRowsUpdateSeries = pstmt2.executeUpdate();
-                    if (affectedRowsUpdateSeries > 0) {
-                        LOG.debug("update series with version affected " + affectedRows + " rows");
-                    } else {
+                pstmt.setString(4, Utils.getNowISO());
+                long boundNanos = System.nanoTime();
+                // One statement runs in one transaction, so the version is never saved without the series pointing to it
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    long executedNanos = System.nanoTime();
+                    LOG.debug("save version " + versionUID + " latency: connection " + (connectedNanos - startNanos) / 1_000_000 + " ms, " +
+                            "serialize and bind " + (boundNanos - connectedNanos) / 1_000_000 + " ms, " +
+                            "insert and update series " + (executedNanos - boundNanos) / 1_000_000 + " ms");
+                    if (!rs.next())
                         return ErrorHandler.newHttpError("No rows were affected by update into series", INTERNAL_SERVER_ERROR, LOG);
-                    }
                 }
             }
             return new ResponseEntity<>(CREATED);
         } catch (SQLException ex) {
-            ex.printStackTrace();
+            if (EXCLUSION_VIOLATION.equals(ex.getSQLState()))
+                return ErrorHandler.overlappingValidity(LOG);
             LOG.error("Failed to create version or insert version into series", ex);
             return ErrorHandler.newHttpError("Failed to create version or insert version into series", INTERNAL_SERVER_ERROR, LOG);
         }
     }
 
+    @Override
+    public ResponseEntity<JsonNode> importSeriesAndVersions(List<JsonNode> seriesList, List<JsonNode> versionList, List<JsonNode> closedVersionList) {
+        LOG.debug("importSeriesAndVersions " + seriesList.size() + " series and " + versionList.size() + " versions in batches of " + IMPORT_BATCH_SIZE);
+        ArrayNode results = new ObjectMapper().createArrayNode();
+        try (Connection con = connectionPool.getConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement closeVersionPstmt = QueryLog.prepare(con, "UPDATE_VERSION_VALID_UNTIL", QueryClass.WRITE, UPDATE_VERSION_VALID_UNTIL)) {
+                // All series are written before the versions, so that versions can belong to series in the same import
+                importInBatches(con, "INSERT_SERIES", INSERT_SERIES, seriesList, null, (pstmt, series) -> {
+                    String seriesID = series.get(Field.ID).asText();
+                    pstmt.setString(1, seriesID);
+                    pstmt.setObject(2, toJsonObject(series));
+                    return seriesID;
+                }, results);
+                String lastModified = Utils.getNowISO();
+                // The previous latest version is closed first in the transaction of the new one, since they would overlap while both are open
+                ImportStep closePreviousVersion = index -> {
+                    JsonNode closedVersion = closedVersionList.get(index);
+                    if (closedVersion == null)
+                        return;
+                    String seriesID = closedVersion.get(Field.SUBSET_ID).asText();
+                    closeVersionPstmt.setString(1, closedVersion.get(Field.VALID_UNTIL).asText());
+                    closeVersionPstmt.setString(2, lastModified);
+                    closeVersionPstmt.setString(3, seriesID);
+                    closeVersionPstmt.setString(4, seriesID + "_" + closedVersion.get(Field.VERSION_ID).asText());
+                    closeVersionPstmt.executeQuery().close();
+                };
+                importInBatches(con, "INSERT_VERSION_AND_UPDATE_SERIES_BATCH", insertVersionAndUpdateSeriesBatch(INLINE_CODES), versionList, closePreviousVersion, (pstmt, version) -> {
+                    String seriesID = version.get(Field.SUBSET_ID).asText();
+                    String versionUID = seriesID + "_" + version.get(Field.VERSION_ID).asText();
+                    pstmt.setString(1, versionUID);
+                    pstmt.setString(2, seriesID);
+                    pstmt.setObject(3, toJsonObject(version));
+                    pstmt.setString(4, lastModified);
+                    return versionUID;
+                }, results);
+            } finally {
+                con.setAutoCommit(true);
+                // An import can take longer than the read-your-writes window, so it starts when the import is done
+                markAllWritten();
+            }
+            notifyChange(con, DocumentCache.ALL_SERIES);
+            return new ResponseEntity<>(results, OK);
+        } catch (SQLException ex) {
+            LOG.error("Failed to import series and versions", ex);
+            // Each batch is committed on its own, so the items written before the failure stay written
+            boolean anyCreated = false;
+            for (JsonNode result : results)
+                anyCreated |= result.get("status").asInt() == CREATED.value();
+            if (anyCreated) {
+                try (Connection con = connectionPool.getConnection()) {
+                    notifyChange(con, DocumentCache.ALL_SERIES);
+                } catch (SQLException notifyException) {
+                    LOG.warn("Failed to notify other instances of the imported series: " + notifyException.getMessage());
+                }
+            }
+            ResponseEntity<JsonNode> errorRE = ErrorHandler.newHttpError("Failed to import series and versions. " + results.size() + " items were handled before the failure", INTERNAL_SERVER_ERROR, LOG);
+            ((ObjectNode) errorRE.getBody()).set("items", results);
+            return errorRE;
+        }
+    }
+
+    private interface ImportBinder {
+        /**
+         * Set the statement parameters for one item, and return the id it is stored with.
+         */
+        String bind(PreparedStatement pstmt, JsonNode item) throws SQLException;
+    }
+
+    private interface ImportStep {
+        /**
+         * Run the statements that go with the item at the index, in the transaction the item is written in.
+         */
+        void run(int index) throws SQLException;
+    }
+
+    /**
+     * Write items in JDBC batches, committing once per batch.
+     * If a batch fails it is rolled back and its items are written one by one, so that only the failing items are rejected.
+     * One result object per item is added to results, in the order of the items.
+     *
+     * @param beforeItem run for each item before it is written, in the same transaction, or null
+     */
+    private static void importInBatches(Connection con, String queryName, String sql, List<JsonNode> items, ImportStep beforeItem, ImportBinder binder, ArrayNode results) throws SQLException {
+        try (PreparedStatement pstmt = QueryLog.prepare(con, queryName, QueryClass.WRITE, sql)) {
+            for (int batchStart = 0; batchStart < items.size(); batchStart += IMPORT_BATCH_SIZE) {
+                int batchEnd = Math.min(batchStart + IMPORT_BATCH_SIZE, items.size());
+                List<String> ids = new ArrayList<>(batchEnd - batchStart);
+                try {
+                    for (int index = batchStart; index < batchEnd; index++) {
+                        if (beforeItem != null)
+                            beforeItem.run(index);
+                        ids.add(binder.bind(pstmt, items.get(index)));
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                    con.commit();
+                    ids.forEach(id -> results.add(importResult(id, CREATED, null)));
+                } catch (SQLException batchException) {
+                    LOG.debug("Import batch of " + (batchEnd - batchStart) + " items failed, writing them one by one. " + batchException.getMessage());
+                    pstmt.clearBatch();
+                    con.rollback();
+                    for (int index = batchStart; index < batchEnd; index++) {
+                        String id = binder.bind(pstmt, items.get(index));
+                        try {
+                            if (beforeItem != null)
+                                beforeItem.run(index);
+                            pstmt.executeUpdate();
+                            con.commit();
+                            results.add(importResult(id, CREATED, null));
+                        } catch (SQLException itemException) {
+                            con.rollback();
+                            results.add(importResult(id, importErrorStatus(itemException), itemException.getMessage()));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static HttpStatus importErrorStatus(SQLException ex) {
+        String sqlState = ex.getSQLState();
+        if (UNIQUE_VIOLATION.equals(sqlState))
+            return CONFLICT;
+        if (FOREIGN_KEY_VIOLATION.equals(sqlState) || EXCLUSION_VIOLATION.equals(sqlState))
+            return BAD_REQUEST;
+        return INTERNAL_SERVER_ERROR;
+    }
+
+    private static ObjectNode importResult(String id, HttpStatus status, String message) {
+        ObjectNode result = new ObjectMapper().createObjectNode();
+        result.put(Field.ID, id);
+        result.put("status", status.value());
+        if (message != null)
+            result.put("message", message);
+        return result;
+    }
+
+    private static PGobject toJsonObject(JsonNode jsonNode) throws SQLException {
+        PGobject jsonObject = new PGobject();
+        jsonObject.setType("json");
+        jsonObject.setValue(jsonNode.toString());
+        return jsonObject;
+    }
+
     @Override
     public ResponseEntity<JsonNode> resolveVersionLink(String versionLink) {
         return ErrorHandler.newHttpError("Method Not Implemented", NOT_IMPLEMENTED, LOG);
@@ -360,96 +1080,115 @@ public class PostgresFacade implements DatabaseInterface {
     @Override
     public boolean existsSubsetSeriesWithID(String id) {
         LOG.debug("existsSubsetSeriesWithID " + id);
-        ResponseEntity<JsonNode> getSeriesRE = getSubsetSeries(id);
-        return getSeriesRE.getStatusCode() == HttpStatus.OK;
+        // Guards writes, so it asks the primary rather than the cache or a replica, which may not have seen a delete yet
+        try (Connection con = connectionPool.getConnection()) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_SERIES_EXISTS", QueryClass.READ, SELECT_SERIES_EXISTS)) {
+                pstmt.setString(1, id);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() && rs.getBoolean(1);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to check if series " + id + " exists", ex);
+            return false;
+        }
     }
 
     @Override
-    public ResponseEntity<JsonNode> getSubsetSeriesDefinition() {
-        LOG.debug("getSubsetSeriesDefinition()");
-        ResponseEntity<JsonNode> versionSchemaRE = getSubsetSeriesSchema();
-        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
-            return versionSchemaRE;
+    public ResponseEntity<JsonNode> getVersionsMetadataBySeriesID(String seriesID, boolean includeDrafts) {
+        LOG.debug("getVersionsMetadataBySeriesID " + seriesID + " includeDrafts " + includeDrafts);
+        // Only read by the overlap checks of writes, so from the primary like existsSubsetSeriesWithID
+        try (Connection con = connectionPool.getConnection()) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "SELECT_VERSIONS_METADATA", QueryClass.READ, SELECT_VERSIONS_METADATA)) {
+                pstmt.setString(1, seriesID);
+                pstmt.setString(2, includeDrafts ? Field.DRAFT + "," + Field.OPEN : Field.OPEN);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    ArrayNode versionsArrayNode = new ObjectMapper().createArrayNode();
+                    while (rs.next()) {
+                        ObjectNode version = versionsArrayNode.addObject();
+                        version.put(Field.VERSION_ID, rs.getString(1));
+                        version.put(Field.SUBSET_ID, seriesID);
+                        version.put(Field.ADMINISTRATIVE_STATUS, rs.getString(2));
+                        version.put(Field.VALID_FROM, rs.getString(3));
+                        if (rs.getString(4) != null)
+                            version.put(Field.VALID_UNTIL, rs.getString(4));
+                    }
+                    return new ResponseEntity<>(versionsArrayNode, OK);
+                }
+            }
+        } catch (SQLException ex) {
+            LOG.error("Failed to get metadata of the versions of series " + seriesID, ex);
+            return ErrorHandler.newHttpError("Failed to get metadata of the versions of series " + seriesID, INTERNAL_SERVER_ERROR, LOG);
         }
-        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetSeries");
-        return new ResponseEntity<>(definition, OK);
     }
 
     @Override
-    public ResponseEntity<JsonNode> getSubsetSeriesSchema() {
-        File schemaFile = new File(SERIES_SCHEMA_PATH);
-        if (!schemaFile.exists())
-            LOG.error("schemaFile does not exist!");
-        ObjectMapper om = new ObjectMapper();
-        try {
-            JsonNode seriesSchema = om.readTree(schemaFile);
-            return new ResponseEntity<>(seriesSchema, OK);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return ErrorHandler.newHttpError("IOException on reading subset series schema file", INTERNAL_SERVER_ERROR, LOG);
+    public ResponseEntity<JsonNode> setVersionValidUntil(String seriesID, String versionUid, String validUntil) {
+        LOG.debug("setVersionValidUntil " + versionUid + " to " + validUntil);
+        markWritten(seriesID);
+        try (Connection con = connectionPool.getConnection()) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "UPDATE_VERSION_VALID_UNTIL", QueryClass.WRITE, UPDATE_VERSION_VALID_UNTIL)) {
+                pstmt.setString(1, validUntil);
+                pstmt.setString(2, Utils.getNowISO());
+                pstmt.setString(3, seriesID);
+                pstmt.setString(4, versionUid);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next())
+                        return withETag(null, rs.getLong(1), OK);
+                }
+                return ErrorHandler.newHttpError("Version " + versionUid + " of series " + seriesID + " was not found", NOT_FOUND, LOG);
+            }
+        } catch (SQLException ex) {
+            if (EXCLUSION_VIOLATION.equals(ex.getSQLState()))
+                return ErrorHandler.overlappingValidity(LOG);
+            LOG.error("Failed to set validUntil of version " + versionUid, ex);
+            return ErrorHandler.newHttpError("Failed to set validUntil of version " + versionUid, INTERNAL_SERVER_ERROR, LOG);
         }
     }
 
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesDefinition() {
+        return schemas.getSubsetSeriesDefinition();
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> getSubsetSeriesSchema() {
+        return schemas.getSubsetSeriesSchema();
+    }
+
     @Override
     public ResponseEntity<JsonNode> getSubsetVersionsDefinition() {
-        LOG.debug("getSubsetVersionsDefinition");
-        ResponseEntity<JsonNode> versionSchemaRE = getSubsetVersionSchema();
-        LOG.debug("");
-        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
-            LOG.error("versionSchemaRE was not successful, status code was " + versionSchemaRE.getStatusCode());
-            return versionSchemaRE;
-        }
-        LOG.debug("getting definitions.ClassificationSubsetVersion");
-        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetVersion");
-        return new ResponseEntity<>(definition, OK);
+        return schemas.getSubsetVersionsDefinition();
     }
 
     @Override
     public ResponseEntity<JsonNode> getSubsetVersionSchema() {
-        LOG.debug("getSubsetVersionSchema");
-        File schemaFile = new File(VERSION_SCHEMA_PATH);
-        if (!schemaFile.exists())
-            LOG.error("schemaFile does not exist!");
-        ObjectMapper om = new ObjectMapper();
-        try {
-            LOG.debug("reading tree of schema file");
-            JsonNode seriesSchema = om.readTree(schemaFile);
-            return new ResponseEntity<>(seriesSchema, OK);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return ErrorHandler.newHttpError("IOException on reading subset version schema file", INTERNAL_SERVER_ERROR, LOG);
-        }
+        return schemas.getSubsetVersionSchema();
     }
 
     @Override
     public ResponseEntity<JsonNode> getSubsetCodeDefinition() {
-        LOG.debug("getSubsetCodeDefinition");
-        ResponseEntity<JsonNode> versionSchemaRE = getSubsetVersionSchema();
-        LOG.debug("");
-        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
-            LOG.error("versionSchemaRE was not successful, status code was " + versionSchemaRE.getStatusCode());
-            return versionSchemaRE;
-        }
-        LOG.debug("getting definitions.ClassificationSubsetVersion");
-        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetCode");
-        return new ResponseEntity<>(definition, OK);
+        return schemas.getSubsetCodeDefinition();
     }
 
     @Override
     public ResponseEntity<JsonNode> deleteAllSubsetSeries() {
+        markAllWritten();
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(DELETE_VERSIONS)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "DELETE_VERSIONS", QueryClass.WRITE, DELETE_VERSIONS)) {
                 LOG.debug("pstmt: " + pstmt);
                 pstmt.executeQuery();
             } catch (SQLException ex) {
                 LOG.warn("SQLEx: " + ex.getMessage());
             }
-            try (PreparedStatement pstmt2 = con.prepareStatement(DELETE_SERIES)) {
+            try (PreparedStatement pstmt2 = QueryLog.prepare(con, "DELETE_SERIES", QueryClass.WRITE, DELETE_SERIES)) {
                 LOG.debug("pstmt2: " + pstmt2);
                 pstmt2.executeQuery();
             } catch (SQLException ex) {
                 LOG.warn("SQLEx: " + ex.getMessage());
             }
+            deleteUnreferencedCodeLists(con, null);
+            notifyChange(con, DocumentCache.ALL_SERIES);
             return new ResponseEntity<>(OK);
 
         } catch (SQLException ex) {
@@ -460,18 +1199,19 @@ public class PostgresFacade implements DatabaseInterface {
 
     @Override
     public ResponseEntity<JsonNode> deleteSubsetSeries(String id) {
+        markWritten(id);
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(DELETE_VERSIONS_IN_SERIES)) {
+            Set<String> codeListHashes = new HashSet<>();
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "DELETE_VERSIONS_IN_SERIES", QueryClass.WRITE, DELETE_VERSIONS_IN_SERIES)) {
                 pstmt.setString(1, id);
                 LOG.debug("pstmt: " + pstmt);
                 try {
-                    ResultSet rs = pstmt.executeQuery();
-                    rs.close();
+                    codeListHashes = deletedCodeListHashes(pstmt);
                 } catch (SQLException ex) {
                     LOG.warn("SQLEx: " + ex.getMessage());
                 }
             }
-            try (PreparedStatement pstmt2 = con.prepareStatement(DELETE_SERIES_BY_ID)) {
+            try (PreparedStatement pstmt2 = QueryLog.prepare(con, "DELETE_SERIES_BY_ID", QueryClass.WRITE, DELETE_SERIES_BY_ID)) {
                 pstmt2.setString(1, id);
                 LOG.debug("pstmt2: " + pstmt2);
                 try {
@@ -481,6 +1221,9 @@ public class PostgresFacade implements DatabaseInterface {
                     LOG.warn("SQLEx: " + ex.getMessage());
                 }
             }
+            for (String hash : codeListHashes)
+                deleteUnreferencedCodeLists(con, hash);
+            notifyChange(con, id);
             return new ResponseEntity<>(OK);
         } catch (SQLException ex) {
             LOG.error("Failed to delete all series", ex);
@@ -490,40 +1233,92 @@ public class PostgresFacade implements DatabaseInterface {
 
     @Override
     public void deleteSubsetVersion(String subsetId, String versionUid) {
+        markWritten(subsetId);
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(DELETE_VERSIONS_BY_ID)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "DELETE_VERSIONS_BY_ID", QueryClass.WRITE, DELETE_VERSIONS_BY_ID)) {
                 pstmt.setString(1, subsetId);
                 pstmt.setString(2, versionUid);
                 LOG.debug("pstmt: " + pstmt);
-                pstmt.executeQuery();
+                for (String hash : deletedCodeListHashes(pstmt))
+                    deleteUnreferencedCodeLists(con, hash);
             }
+            notifyChange(con, subsetId);
         } catch (SQLException ex) {
             LOG.error("Failed to delete version of series " + subsetId + " with versionUid" + versionUid, ex);
         }
     }
 
+    /**
+     * Executes a delete of versions that returns their codes_hash, and returns the distinct hashes of the code lists they referenced.
+     */
+    private static Set<String> deletedCodeListHashes(PreparedStatement deleteStatement) throws SQLException {
+        Set<String> hashes = new HashSet<>();
+        try (ResultSet rs = deleteStatement.executeQuery()) {
+            while (rs.next()) {
+                if (rs.getString(1) != null)
+                    hashes.add(rs.getString(1));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Delete the code list with the hash if no version references it any more, or all unreferenced code lists if the hash is null.
+     * Only deleting all series, and the move of codes into code lists, use the sweep of all code lists.
+     * A failure is only logged, since it leaves nothing but unreferenced code lists, which a later delete removes.
+     * It happens if a version that references the code list is written at the same time.
+     */
+    private static void deleteUnreferencedCodeLists(Connection con, String hash) {
+        String queryName = hash == null ? "DELETE_UNREFERENCED_CODE_LISTS" : "DELETE_CODE_LIST_IF_UNREFERENCED";
+        try (PreparedStatement pstmt = QueryLog.prepare(con, queryName, QueryClass.WRITE, hash == null ? DELETE_UNREFERENCED_CODE_LISTS : DELETE_CODE_LIST_IF_UNREFERENCED)) {
+            if (hash != null)
+                pstmt.setString(1, hash);
+            int deleted = pstmt.executeUpdate();
+            LOG.debug("Deleted " + deleted + " unreferenced code lists");
+        } catch (SQLException ex) {
+            LOG.warn("Failed to delete unreferenced code lists: " + ex.getMessage());
+        }
+    }
+
     @Override
     public ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion) {
+        return editVersion(editablePutVersion, null);
+    }
+
+    @Override
+    public ResponseEntity<JsonNode> editVersion(ObjectNode editablePutVersion, Long expectedRevision) {
         String seriesID = editablePutVersion.get(Field.SUBSET_ID).asText();
         String versionNr = editablePutVersion.get(Field.VERSION_ID).asText();
         String versionUid = seriesID + "_" + versionNr;
-        LOG.debug("editVersion " + versionUid);
+        LOG.debug("editVersion " + versionUid + " expecting revision " + expectedRevision);
+        markWritten(seriesID);
         try (Connection con = connectionPool.getConnection()) {
-            try (PreparedStatement pstmt = con.prepareStatement(UPDATE_VERSION)) {
+            try (PreparedStatement pstmt = QueryLog.prepare(con, "UPDATE_VERSION", QueryClass.WRITE, updateVersion(INLINE_CODES))) {
                 pstmt.setString(2, seriesID);
                 pstmt.setString(3, versionUid);
                 PGobject jsonObject = new PGobject();
                 jsonObject.setType("json");
                 jsonObject.setValue(editablePutVersion.toString());
                 pstmt.setObject(1, jsonObject);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows > 0) {
-                    LOG.debug("edit version affected " + affectedRows + " rows");
-                    return new ResponseEntity<>(CREATED);
+                pstmt.setObject(4, expectedRevision, Types.BIGINT);
+                pstmt.setObject(5, expectedRevision, Types.BIGINT);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        long revision = rs.getLong(1);
+                        LOG.debug("edit version " + versionUid + " updated it to revision " + revision);
+                        String replacedCodeListHash = rs.getString(3);
+                        if (replacedCodeListHash != null)
+                            deleteUnreferencedCodeLists(con, replacedCodeListHash);
+                        return withETag(null, revision, CREATED);
+                    }
                 }
+                if (expectedRevision != null)
+                    return ErrorHandler.newHttpError("Version " + versionUid + " is no longer at revision " + expectedRevision, PRECONDITION_FAILED, LOG);
                 return ErrorHandler.newHttpError("No rows were affected", INTERNAL_SERVER_ERROR, LOG);
             }
         } catch (SQLException ex) {
+            if (EXCLUSION_VIOLATION.equals(ex.getSQLState()))
+                return ErrorHandler.overlappingValidity(LOG);
             LOG.error("Failed to edit version", ex);
             return ErrorHandler.newHttpError("Failed to edit version", INTERNAL_SERVER_ERROR, LOG);
         }
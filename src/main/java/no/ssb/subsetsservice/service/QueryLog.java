@@ -0,0 +1,218 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import no.ssb.subsetsservice.util.Utils;
+import org.postgresql.util.PGobject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the statements of {@link PostgresFacade}, applies the timeout of their query class, and keeps the recent slow ones.
+ * Every execution is recorded by the Micrometer timer "subsets.db.query", tagged with the query name and the outcome.
+ * Executions that take at least POSTGRES_SLOW_QUERY_MS are kept, newest first, with the sql, a description of each parameter that leaves out its value,
+ * the duration and, if POSTGRES_SLOW_QUERY_EXPLAIN is true, the plan of the query. They are served by the slowqueries actuator endpoint.
+ */
+public class QueryLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryLog.class);
+
+    private static final String TIMER_NAME = "subsets.db.query";
+    private static final long SLOW_QUERY_NANOS = TimeUnit.MILLISECONDS.toNanos(ConnectionPool.getLongEnv("POSTGRES_SLOW_QUERY_MS", 500));
+    private static final int SLOW_QUERY_CAPACITY = ConnectionPool.getIntEnv("POSTGRES_SLOW_QUERY_CAPACITY", 100);
+    // Running EXPLAIN adds a round trip to the slow request, so it is off by default
+    private static final boolean EXPLAIN_SLOW_QUERIES = Boolean.parseBoolean(System.getenv().getOrDefault("POSTGRES_SLOW_QUERY_EXPLAIN", "false").trim());
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Deque<ObjectNode> slowQueries = new ArrayDeque<>();
+
+    /**
+     * The query timeout of a class can be set in seconds with its env variable. 0 means no timeout.
+     */
+    public enum QueryClass {
+        READ("POSTGRES_READ_TIMEOUT_SECONDS", 10),
+        STREAM("POSTGRES_STREAM_TIMEOUT_SECONDS", 60),
+        WRITE("POSTGRES_WRITE_TIMEOUT_SECONDS", 30),
+        SCHEMA(null, 0); // Schema changes and backfills may take long when they first run
+
+        private final int timeoutSeconds;
+
+        QueryClass(String timeoutEnv, int defaultTimeoutSeconds) {
+            timeoutSeconds = timeoutEnv == null ? defaultTimeoutSeconds : ConnectionPool.getIntEnv(timeoutEnv, defaultTimeoutSeconds);
+        }
+    }
+
+    private QueryLog() {
+    }
+
+    /**
+     * Prepare a statement that is timed and logged under the query name, with the timeout of the query class.
+     * The timeout is enforced by the driver, which cancels the statement on the server when it expires.
+     */
+    static PreparedStatement prepare(Connection con, String queryName, QueryClass queryClass, String sql) throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement(sql);
+        pstmt.setQueryTimeout(queryClass.timeoutSeconds);
+        return (PreparedStatement) Proxy.newProxyInstance(QueryLog.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                new TimedStatement(con, queryName, queryClass, sql, pstmt));
+    }
+
+    /**
+     * The recent slow queries, newest first.
+     */
+    public static ArrayNode getSlowQueries() {
+        ArrayNode slowQueriesArrayNode = new ObjectMapper().createArrayNode();
+        synchronized (slowQueries) {
+            slowQueries.forEach(slowQuery -> slowQueriesArrayNode.add(slowQuery.deepCopy()));
+        }
+        return slowQueriesArrayNode;
+    }
+
+    private static void addSlowQuery(ObjectNode slowQuery) {
+        synchronized (slowQueries) {
+            if (slowQueries.size() >= SLOW_QUERY_CAPACITY)
+                slowQueries.removeLast();
+            slowQueries.addFirst(slowQuery);
+        }
+    }
+
+    private static class TimedStatement implements InvocationHandler {
+
+        private final Connection con;
+        private final String queryName;
+        private final QueryClass queryClass;
+        private final String sql;
+        private final PreparedStatement delegate;
+        // The last setter call of each parameter index, to describe the parameters and to set them again for EXPLAIN
+        private final Map<Integer, Object[]> parameterSetters = new TreeMap<>();
+
+        private TimedStatement(Connection con, String queryName, QueryClass queryClass, String sql, PreparedStatement delegate) {
+            this.con = con;
+            this.queryName = queryName;
+            this.queryClass = queryClass;
+            this.sql = sql;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if (isParameterSetter(method, args))
+                parameterSetters.put((Integer) args[0], new Object[]{method, args});
+            else if (methodName.equals("clearParameters"))
+                parameterSetters.clear();
+            if (!methodName.startsWith("execute"))
+                return invokeDelegate(method, args);
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                Object result = invokeDelegate(method, args);
+                success = true;
+                return result;
+            } finally {
+                record(System.nanoTime() - start, success);
+            }
+        }
+
+        /**
+         * The set methods of PreparedStatement itself, like setString and setNull, set parameters.
+         * Those inherited from Statement, like setFetchSize and setQueryTimeout, set options of the statement.
+         */
+        private static boolean isParameterSetter(Method method, Object[] args) {
+            return method.getDeclaringClass() == PreparedStatement.class && method.getName().startsWith("set")
+                    && args != null && args.length >= 2 && args[0] instanceof Integer;
+        }
+
+        private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void record(long nanos, boolean success) {
+            String outcome = success ? "success" : "error";
+            timers.computeIfAbsent(queryName + " " + outcome, key -> Timer.builder(TIMER_NAME)
+                    .description("Time to execute a statement in Postgres")
+                    .tag("query", queryName)
+                    .tag("outcome", outcome)
+                    .register(Metrics.globalRegistry))
+                    .record(nanos, TimeUnit.NANOSECONDS);
+            if (nanos < SLOW_QUERY_NANOS)
+                return;
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            LOG.info("Slow query " + queryName + " took " + millis + " ms");
+            ObjectNode slowQuery = new ObjectMapper().createObjectNode();
+            slowQuery.put("time", Utils.getNowISO());
+            slowQuery.put("query", queryName);
+            slowQuery.put("queryClass", queryClass.name());
+            slowQuery.put("durationMillis", millis);
+            slowQuery.put("outcome", outcome);
+            slowQuery.put("sql", sql);
+            ArrayNode parameters = slowQuery.putArray("parameters");
+            parameterSetters.values().forEach(setter -> parameters.add(describe((Method) setter[0], (Object[]) setter[1])));
+            if (EXPLAIN_SLOW_QUERIES && success && queryClass != QueryClass.SCHEMA)
+                slowQuery.put("plan", explain());
+            addSlowQuery(slowQuery);
+        }
+
+        /**
+         * The type and size of the value a setter gave a parameter, but not the value itself.
+         */
+        private static String describe(Method setter, Object[] args) {
+            // The second argument of setNull is the sql type, not a value
+            if (setter.getName().equals("setNull"))
+                return "null";
+            Object value = args[1];
+            if (value == null)
+                return "null";
+            if (value instanceof PGobject)
+                return ((PGobject) value).getType() + " (" + (((PGobject) value).getValue() == null ? 0 : ((PGobject) value).getValue().length()) + " chars)";
+            if (value instanceof String)
+                return "text (" + ((String) value).length() + " chars)";
+            return value.getClass().getSimpleName();
+        }
+
+        /**
+         * The plan of the query with the same parameters. Only done outside of transactions, where a failure would abort the transaction.
+         */
+        private String explain() {
+            try {
+                if (!con.getAutoCommit())
+                    return "not explained, since the query ran in a transaction";
+                try (PreparedStatement explainStatement = con.prepareStatement("EXPLAIN " + sql)) {
+                    explainStatement.setQueryTimeout(queryClass.timeoutSeconds);
+                    for (Object[] setter : parameterSetters.values())
+                        ((Method) setter[0]).invoke(explainStatement, (Object[]) setter[1]);
+                    StringBuilder plan = new StringBuilder();
+                    try (ResultSet rs = explainStatement.executeQuery()) {
+                        while (rs.next())
+                            plan.append(rs.getString(1)).append('\n');
+                    }
+                    return plan.toString();
+                }
+            } catch (SQLException | ReflectiveOperationException e) {
+                LOG.debug("Failed to explain slow query " + queryName, e);
+                return "failed to explain: " + e.getMessage();
+            }
+        }
+    }
+}
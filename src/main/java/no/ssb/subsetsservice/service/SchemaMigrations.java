@@ -0,0 +1,224 @@
+package no.ssb.subsetsservice.service;
+
+import no.ssb.subsetsservice.entity.SQL;
+import no.ssb.subsetsservice.service.QueryLog.QueryClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Brings the Postgres schema up to the latest version, by applying the migrations newer than the one recorded in schema_version.
+ * When the schema is current, this costs two catalog lookups and takes no locks, so instances can start while the service takes traffic.
+ * Otherwise the migrations are applied under an advisory lock, so that instances started together do not apply them at the same time.
+ * The other instances poll for the lock with pg_try_advisory_lock, and stop when they find the schema current. They do not wait in pg_advisory_lock,
+ * since the waiting statement is an open transaction, and the CREATE INDEX CONCURRENTLY of the instance that migrates would wait for it to end.
+ * <p>
+ * The steps of a migration run one by one outside of a transaction, since indexes are built CONCURRENTLY, which can not be done in one.
+ * The version is recorded after the last step. A migration that fails halfway is applied again from its first step,
+ * so every step has to be idempotent. New migrations are added to the end of MIGRATIONS, and applied migrations are never changed.
+ */
+class SchemaMigrations {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaMigrations.class);
+    private static final long LOCK_POLL_MILLIS = Math.max(1, ConnectionPool.getLongEnv("POSTGRES_MIGRATION_LOCK_POLL_MS", 1000));
+
+    static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "series, versions and version_codes tables with generated columns and indexes", List.of(
+                    new Step("CREATE_SERIES", SQL.CREATE_SERIES),
+                    new Step("SET_OWNER_SERIES", SQL.SET_OWNER_SERIES),
+                    new Step("CREATE_VERSIONS", SQL.CREATE_VERSIONS),
+                    new Step("SET_OWNER_VERSIONS", SQL.SET_OWNER_VERSIONS),
+                    Step.index("CREATE_INDEX", "\"seriesIndex\"", SQL.CREATE_INDEX),
+                    new Step("CREATE_ISO_DATE_FUNCTION", SQL.CREATE_ISO_DATE_FUNCTION),
+                    new Step("ADD_VERSIONS_GENERATED_COLUMNS", SQL.ADD_VERSIONS_GENERATED_COLUMNS),
+                    new Step("ADD_SERIES_GENERATED_COLUMNS", SQL.ADD_SERIES_GENERATED_COLUMNS),
+                    new Step("ADD_SERIES_REVISION_COLUMN", SQL.ADD_SERIES_REVISION_COLUMN),
+                    new Step("ADD_VERSIONS_REVISION_COLUMN", SQL.ADD_VERSIONS_REVISION_COLUMN),
+                    new Step("CREATE_SINGLE_LANGUAGE_FIELD_FUNCTION", SQL.CREATE_SINGLE_LANGUAGE_FIELD_FUNCTION),
+                    new Step("CREATE_SINGLE_LANGUAGE_FUNCTION", SQL.CREATE_SINGLE_LANGUAGE_FUNCTION),
+                    new Step("ADD_VERSIONS_LANGUAGE_COLUMNS", SQL.ADD_VERSIONS_LANGUAGE_COLUMNS),
+                    Step.index("CREATE_SERIES_STATUS_VALIDITY_INDEX", "\"seriesStatusValidityIndex\"", SQL.CREATE_SERIES_STATUS_VALIDITY_INDEX),
+                    Step.index("CREATE_VERSIONS_STATUS_VALID_FROM_INDEX", "\"versionsSeriesStatusValidFromIndex\"", SQL.CREATE_VERSIONS_STATUS_VALID_FROM_INDEX),
+                    Step.index("CREATE_VERSIONS_PAGE_INDEX", "\"versionsSeriesValidFromVersionIndex\"", SQL.CREATE_VERSIONS_PAGE_INDEX),
+                    new Step("CREATE_VALIDITY_FUNCTION", SQL.CREATE_VALIDITY_FUNCTION),
+                    new Step("ADD_VERSIONS_VALIDITY_COLUMN", SQL.ADD_VERSIONS_VALIDITY_COLUMN),
+                    new Step("CREATE_BTREE_GIST_EXTENSION", SQL.CREATE_BTREE_GIST_EXTENSION),
+                    Step.index("CREATE_VERSIONS_VALIDITY_INDEX", "\"versionsSeriesValidityIndex\"", SQL.CREATE_VERSIONS_VALIDITY_INDEX),
+                    new Step("CREATE_VERSION_CODES", SQL.CREATE_VERSION_CODES),
+                    new Step("SET_OWNER_VERSION_CODES", SQL.SET_OWNER_VERSION_CODES),
+                    Step.index("CREATE_VERSION_CODES_VERSION_INDEX", "\"versionCodesVersionIndex\"", SQL.CREATE_VERSION_CODES_VERSION_INDEX),
+                    Step.index("CREATE_VERSION_CODES_CODE_INDEX", "\"versionCodesCodeIndex\"", SQL.CREATE_VERSION_CODES_CODE_INDEX),
+                    new Step("BACKFILL_VERSION_CODES", SQL.BACKFILL_VERSION_CODES)
+            )),
+            // Fails if published versions that overlap are stored already. The error names them, and they have to be corrected before the service can start
+            new Migration(2, "exclusion constraint against overlapping validity of published versions", List.of(
+                    new Step("ADD_VERSIONS_OPEN_VALIDITY_EXCLUSION", SQL.ADD_VERSIONS_OPEN_VALIDITY_EXCLUSION)
+            )),
+            // Only adds the tables and columns, so instances from before code lists can run alongside. The codes of stored versions are moved
+            // in batches by PostgresFacade once POSTGRES_INLINE_CODES is false
+            new Migration(3, "code lists stored once per distinct content and referenced by versions", List.of(
+                    new Step("CREATE_CODE_LIST_HASH_FUNCTION", SQL.CREATE_CODE_LIST_HASH_FUNCTION),
+                    new Step("CREATE_CODE_LISTS", SQL.CREATE_CODE_LISTS),
+                    new Step("SET_OWNER_CODE_LISTS", SQL.SET_OWNER_CODE_LISTS),
+                    new Step("ADD_CODE_LISTS_LANGUAGE_COLUMNS", SQL.ADD_CODE_LISTS_LANGUAGE_COLUMNS),
+                    new Step("ADD_VERSIONS_CODES_HASH_COLUMN", SQL.ADD_VERSIONS_CODES_HASH_COLUMN),
+                    Step.index("CREATE_VERSIONS_CODES_HASH_INDEX", "\"versionsCodesHashIndex\"", SQL.CREATE_VERSIONS_CODES_HASH_INDEX)
+            ))
+    );
+
+    static final int LATEST_VERSION = MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+
+    static class Migration {
+        final int version;
+        final String description;
+        final List<Step> steps;
+
+        Migration(int version, String description, List<Step> steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = steps;
+        }
+    }
+
+    static class Step {
+        final String name;
+        final String sql;
+        final String index; // The qualified name of the index built CONCURRENTLY by the step, or null
+
+        Step(String name, String sql) {
+            this(name, sql, null);
+        }
+
+        private Step(String name, String sql, String index) {
+            this.name = name;
+            this.sql = sql;
+            this.index = index;
+        }
+
+        static Step index(String name, String quotedIndexName, String sql) {
+            return new Step(name, sql, "public." + quotedIndexName);
+        }
+    }
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * Applies the migrations the schema is missing. The connection has to be in auto-commit mode.
+     *
+     * @return the number of migrations that were applied
+     */
+    static int migrate(Connection con) throws SQLException {
+        int currentVersion = getSchemaVersion(con);
+        if (currentVersion >= LATEST_VERSION) {
+            LOG.debug("Schema is at version " + currentVersion + ", which is the latest. No migration is needed");
+            return 0;
+        }
+        LOG.info("Schema is at version " + currentVersion + ", the latest is " + LATEST_VERSION + ". Waiting for the migration lock");
+        while (!tryLock(con)) {
+            try {
+                Thread.sleep(LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the schema migration lock", e);
+            }
+            currentVersion = getSchemaVersion(con);
+            if (currentVersion >= LATEST_VERSION) {
+                LOG.info("Schema was migrated to version " + currentVersion + " by another instance");
+                return 0;
+            }
+        }
+        try {
+            // Another instance may have migrated between the last check and getting the lock
+            currentVersion = getSchemaVersion(con);
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= currentVersion)
+                    continue;
+                apply(con, migration);
+                applied++;
+            }
+            LOG.info(applied == 0 ? "Schema was migrated by another instance" : "Applied " + applied + " schema migrations");
+            return applied;
+        } finally {
+            try (PreparedStatement unlockStatement = QueryLog.prepare(con, "UNLOCK_SCHEMA_MIGRATION", QueryClass.SCHEMA, SQL.UNLOCK_SCHEMA_MIGRATION)) {
+                unlockStatement.setLong(1, SQL.SCHEMA_MIGRATION_LOCK_KEY);
+                unlockStatement.execute();
+            }
+        }
+    }
+
+    /**
+     * One statement in auto-commit mode, which returns at once, so no transaction is left open while the lock is held by another instance.
+     */
+    private static boolean tryLock(Connection con) throws SQLException {
+        try (PreparedStatement lockStatement = QueryLog.prepare(con, "TRY_LOCK_SCHEMA_MIGRATION", QueryClass.SCHEMA, SQL.TRY_LOCK_SCHEMA_MIGRATION)) {
+            lockStatement.setLong(1, SQL.SCHEMA_MIGRATION_LOCK_KEY);
+            try (ResultSet rs = lockStatement.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
+
+    private static int getSchemaVersion(Connection con) throws SQLException {
+        try (PreparedStatement existsStatement = QueryLog.prepare(con, "SELECT_SCHEMA_VERSION_EXISTS", QueryClass.SCHEMA, SQL.SELECT_SCHEMA_VERSION_EXISTS);
+             ResultSet rs = existsStatement.executeQuery()) {
+            if (!rs.next() || !rs.getBoolean(1))
+                return 0;
+        }
+        try (PreparedStatement versionStatement = QueryLog.prepare(con, "SELECT_SCHEMA_VERSION", QueryClass.SCHEMA, SQL.SELECT_SCHEMA_VERSION);
+             ResultSet rs = versionStatement.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void apply(Connection con, Migration migration) throws SQLException {
+        LOG.info("Applying schema migration " + migration.version + ": " + migration.description);
+        long start = System.nanoTime();
+        executeUpdate(con, "CREATE_SCHEMA_VERSION", SQL.CREATE_SCHEMA_VERSION);
+        executeUpdate(con, "SET_OWNER_SCHEMA_VERSION", SQL.SET_OWNER_SCHEMA_VERSION);
+        for (Step step : migration.steps) {
+            long stepStart = System.nanoTime();
+            if (step.index != null)
+                dropIfInvalid(con, step.index);
+            int rows = executeUpdate(con, step.name, step.sql);
+            LOG.debug("Migration " + migration.version + " step " + step.name + " took " + ((System.nanoTime() - stepStart) / 1_000_000) + " ms and affected " + rows + " rows");
+        }
+        long durationMillis = (System.nanoTime() - start) / 1_000_000;
+        try (PreparedStatement insertStatement = QueryLog.prepare(con, "INSERT_SCHEMA_VERSION", QueryClass.SCHEMA, SQL.INSERT_SCHEMA_VERSION)) {
+            insertStatement.setInt(1, migration.version);
+            insertStatement.setString(2, migration.description);
+            insertStatement.setLong(3, durationMillis);
+            insertStatement.executeUpdate();
+        }
+        LOG.info("Applied schema migration " + migration.version + " in " + durationMillis + " ms");
+    }
+
+    /**
+     * A CONCURRENTLY build that fails leaves an invalid index behind, which IF NOT EXISTS would then skip. It is dropped so the step builds it again.
+     */
+    private static void dropIfInvalid(Connection con, String index) throws SQLException {
+        boolean invalid;
+        try (PreparedStatement invalidStatement = QueryLog.prepare(con, "SELECT_INDEX_INVALID", QueryClass.SCHEMA, SQL.SELECT_INDEX_INVALID)) {
+            invalidStatement.setString(1, index);
+            try (ResultSet rs = invalidStatement.executeQuery()) {
+                invalid = rs.next() && rs.getBoolean(1);
+            }
+        }
+        if (invalid) {
+            LOG.warn("Dropping the invalid index " + index + " left by a failed build, to build it again");
+            executeUpdate(con, "DROP_INVALID_INDEX", "DROP INDEX CONCURRENTLY IF EXISTS " + index + ";");
+        }
+    }
+
+    private static int executeUpdate(Connection con, String queryName, String sql) throws SQLException {
+        try (PreparedStatement preparedStatement = QueryLog.prepare(con, queryName, QueryClass.SCHEMA, sql)) {
+            return preparedStatement.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.ssb.subsetsservice.controller.ErrorHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
+import static org.springframework.http.HttpStatus.OK;
+
+/**
+ * The json schemas of series and versions, read from the schema files. Shared by all the DatabaseInterface implementations.
+ */
+class SubsetSchemas {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubsetSchemas.class);
+
+    private static final String LOCAL_SUBSETS_SCHEMA_DIR = "src/main/resources/definitions/";
+    private static final String DOCKER_SUBSETS_SCHEMA_DIR = "/usr/share/klass-subsets-api/";
+
+    private static final String VERSION_SCHEMA_FILENAME = "version.json";
+    private static final String SERIES_SCHEMA_FILENAME = "series.json";
+
+    private final String VERSION_SCHEMA_PATH;
+    private final String SERIES_SCHEMA_PATH;
+
+    /**
+     * Finds the schema directory, which is the local one when running from the source tree and the docker one otherwise.
+     * Throws an Error if neither has the schema files.
+     */
+    SubsetSchemas() {
+        LOG.debug("Finding schema");
+        String SUBSETS_SCHEMA_DIR;
+        String versionSchemaJsonPath = LOCAL_SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
+        File versionJsonFile = new File(versionSchemaJsonPath);
+        if (versionJsonFile.exists() && versionJsonFile.isFile()) {
+            LOG.debug("version schema file " + versionJsonFile.getPath() + " exists and is a file!");
+            LOG.debug("Setting schema directory to " + LOCAL_SUBSETS_SCHEMA_DIR);
+            SUBSETS_SCHEMA_DIR = LOCAL_SUBSETS_SCHEMA_DIR;
+        } else {
+            versionSchemaJsonPath = DOCKER_SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
+            versionJsonFile = new File(versionSchemaJsonPath);
+            if (versionJsonFile.exists() && versionJsonFile.isFile()) {
+                LOG.debug(versionJsonFile.getPath() + " exists and is a file!");
+                LOG.debug("Setting schema directory to " + DOCKER_SUBSETS_SCHEMA_DIR);
+                SUBSETS_SCHEMA_DIR = DOCKER_SUBSETS_SCHEMA_DIR;
+            } else {
+                String schemaErrorString = "Could not locate versions.json schema file in " + DOCKER_SUBSETS_SCHEMA_DIR + " which is the docker default, or " + LOCAL_SUBSETS_SCHEMA_DIR + " which is the local testing location.";
+                LOG.error(schemaErrorString);
+                throw new Error(schemaErrorString);
+            }
+        }
+        VERSION_SCHEMA_PATH = SUBSETS_SCHEMA_DIR + VERSION_SCHEMA_FILENAME;
+        SERIES_SCHEMA_PATH = SUBSETS_SCHEMA_DIR + SERIES_SCHEMA_FILENAME;
+    }
+
+    ResponseEntity<JsonNode> getSubsetSeriesDefinition() {
+        LOG.debug("getSubsetSeriesDefinition()");
+        ResponseEntity<JsonNode> versionSchemaRE = getSubsetSeriesSchema();
+        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
+            return versionSchemaRE;
+        }
+        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetSeries");
+        return new ResponseEntity<>(definition, OK);
+    }
+
+    ResponseEntity<JsonNode> getSubsetSeriesSchema() {
+        File schemaFile = new File(SERIES_SCHEMA_PATH);
+        if (!schemaFile.exists())
+            LOG.error("schemaFile does not exist!");
+        ObjectMapper om = new ObjectMapper();
+        try {
+            JsonNode seriesSchema = om.readTree(schemaFile);
+            return new ResponseEntity<>(seriesSchema, OK);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorHandler.newHttpError("IOException on reading subset series schema file", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    ResponseEntity<JsonNode> getSubsetVersionsDefinition() {
+        LOG.debug("getSubsetVersionsDefinition");
+        ResponseEntity<JsonNode> versionSchemaRE = getSubsetVersionSchema();
+        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
+            LOG.error("versionSchemaRE was not successful, status code was " + versionSchemaRE.getStatusCode());
+            return versionSchemaRE;
+        }
+        LOG.debug("getting definitions.ClassificationSubsetVersion");
+        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetVersion");
+        return new ResponseEntity<>(definition, OK);
+    }
+
+    ResponseEntity<JsonNode> getSubsetVersionSchema() {
+        LOG.debug("getSubsetVersionSchema");
+        File schemaFile = new File(VERSION_SCHEMA_PATH);
+        if (!schemaFile.exists())
+            LOG.error("schemaFile does not exist!");
+        ObjectMapper om = new ObjectMapper();
+        try {
+            LOG.debug("reading tree of schema file");
+            JsonNode seriesSchema = om.readTree(schemaFile);
+            return new ResponseEntity<>(seriesSchema, OK);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ErrorHandler.newHttpError("IOException on reading subset version schema file", INTERNAL_SERVER_ERROR, LOG);
+        }
+    }
+
+    ResponseEntity<JsonNode> getSubsetCodeDefinition() {
+        LOG.debug("getSubsetCodeDefinition");
+        ResponseEntity<JsonNode> versionSchemaRE = getSubsetVersionSchema();
+        if (!versionSchemaRE.getStatusCode().is2xxSuccessful()) {
+            LOG.error("versionSchemaRE was not successful, status code was " + versionSchemaRE.getStatusCode());
+            return versionSchemaRE;
+        }
+        LOG.debug("getting definitions.ClassificationSubsetCode");
+        JsonNode definition = versionSchemaRE.getBody().get("definitions").get("ClassificationSubsetCode");
+        return new ResponseEntity<>(definition, OK);
+    }
+}
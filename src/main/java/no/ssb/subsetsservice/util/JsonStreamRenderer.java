@@ -0,0 +1,201 @@
+package no.ssb.subsetsservice.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.ssb.subsetsservice.entity.Field;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Copies stored series and version documents token by token from a JsonParser to a JsonGenerator,
+ * adding links and applying the language filter on the way.
+ * This gives the same output as Utils.addLinksToSubsetVersion and SubsetsControllerV2.setSingleLanguage,
+ * without building a JsonNode tree of the whole document.
+ * Only the small multilingual name and notes arrays of a single code are read into memory.
+ */
+public class JsonStreamRenderer {
+
+    public static final String ALL_LANGUAGES = "all";
+
+    private static final ObjectMapper STREAMING_MAPPER = new ObjectMapper();
+
+    /**
+     * Commits the response to status 200 with a json body, and returns a generator writing straight to the servlet output stream.
+     * Unfinished json is not closed automatically, so that a failure midway gives a visibly broken response rather than a truncated valid one.
+     */
+    public static JsonGenerator openResponseStream(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        JsonGenerator generator = STREAMING_MAPPER.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        return generator;
+    }
+
+    /**
+     * Copy a series document, replacing the version references with version links and adding a self link.
+     */
+    public static void writeSeries(JsonParser parser, JsonGenerator generator, String seriesUID) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Series " + seriesUID + " was not a json object");
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (fieldName.equals(Field._LINKS)) {
+                parser.skipChildren();
+            } else if (fieldName.equals(Field.VERSIONS) && parser.currentToken() == JsonToken.START_ARRAY) {
+                generator.writeFieldName(fieldName);
+                writeSeriesVersionLinks(parser, generator, seriesUID);
+            } else {
+                generator.writeFieldName(fieldName);
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeFieldName(Field._LINKS);
+        generator.writeStartObject();
+        writeHref(generator, Field.SELF, Utils.getSeriesLink(seriesUID));
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Copy a series document with the array of its full versions in place of the version references, adding links to the series and to each version.
+     * The id of each version is read from its versionId field on the way, so the versions array can be copied as it comes from the database.
+     */
+    public static void writeSeriesWithVersions(JsonParser seriesParser, JsonParser versionsParser, JsonGenerator generator, String seriesUID, String language) throws IOException {
+        if (seriesParser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Series " + seriesUID + " was not a json object");
+        if (versionsParser.nextToken() != JsonToken.START_ARRAY)
+            throw new IOException("Versions of series " + seriesUID + " were not a json array");
+        generator.writeStartObject();
+        while (seriesParser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = seriesParser.getCurrentName();
+            seriesParser.nextToken();
+            if (fieldName.equals(Field._LINKS) || fieldName.equals(Field.VERSIONS)) {
+                seriesParser.skipChildren();
+            } else {
+                generator.writeFieldName(fieldName);
+                generator.copyCurrentStructure(seriesParser);
+            }
+        }
+        generator.writeFieldName(Field.VERSIONS);
+        generator.writeStartArray();
+        while (versionsParser.nextToken() == JsonToken.START_OBJECT) {
+            writeVersionObject(versionsParser, generator, seriesUID, null, language);
+        }
+        generator.writeEndArray();
+        generator.writeFieldName(Field._LINKS);
+        generator.writeStartObject();
+        writeHref(generator, Field.SELF, Utils.getSeriesLink(seriesUID));
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static void writeSeriesVersionLinks(JsonParser parser, JsonGenerator generator, String seriesUID) throws IOException {
+        generator.writeStartArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            String versionPath = parser.getValueAsString(); // "/ClassificationSubsetVersion/{version_id}" or just "{version_id}"
+            String[] splitBySlash = versionPath.split("/");
+            String versionUID = splitBySlash.length > 2 ? splitBySlash[2] : versionPath;
+            generator.writeString(Utils.getVersionLink(seriesUID, versionUID));
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Copy a version document, adding self and series links.
+     * If language is not "all", multilingual code names and notes are replaced by the text in that language when it exists.
+     */
+    public static void writeVersion(JsonParser parser, JsonGenerator generator, String seriesUID, String versionID, String language) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new IOException("Version " + versionID + " of series " + seriesUID + " was not a json object");
+        writeVersionObject(parser, generator, seriesUID, versionID, language);
+    }
+
+    /**
+     * Copy the version object the parser is at the start of.
+     *
+     * @param versionID the id for the links, or null to take it from the versionId field of the version
+     */
+    private static void writeVersionObject(JsonParser parser, JsonGenerator generator, String seriesUID, String versionID, String language) throws IOException {
+        boolean singleLanguage = language != null && !language.equals(ALL_LANGUAGES);
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (versionID == null && fieldName.equals(Field.VERSION_ID) && parser.currentToken() == JsonToken.VALUE_STRING)
+                versionID = parser.getText();
+            if (fieldName.equals(Field._LINKS)) {
+                parser.skipChildren();
+            } else if (singleLanguage && fieldName.equals(Field.CODES) && parser.currentToken() == JsonToken.START_ARRAY) {
+                generator.writeFieldName(fieldName);
+                writeCodes(parser, generator, language);
+            } else {
+                generator.writeFieldName(fieldName);
+                generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeFieldName(Field._LINKS);
+        generator.writeStartObject();
+        writeHref(generator, Field.SELF, Utils.getVersionLink(seriesUID, versionID));
+        writeHref(generator, "series", Utils.getSeriesLink(seriesUID));
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static void writeCodes(JsonParser parser, JsonGenerator generator, String language) throws IOException {
+        generator.writeStartArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                // Like Utils.setSingleLanguage, elements that are not code objects are left as they are
+                generator.copyCurrentStructure(parser);
+                continue;
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                generator.writeFieldName(fieldName);
+                if ((fieldName.equals(Field.NAME) || fieldName.equals(Field.NOTES)) && parser.currentToken() == JsonToken.START_ARRAY) {
+                    JsonNode multilingualTexts = parser.readValueAsTree();
+                    JsonNode text = findLanguageText(multilingualTexts, language);
+                    if (text != null)
+                        generator.writeString(text.asText());
+                    else
+                        generator.writeTree(multilingualTexts);
+                } else {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * The same rule as Utils.setSingleLanguage: the first text in the language that is not null.
+     */
+    private static JsonNode findLanguageText(JsonNode multilingualTexts, String language) {
+        for (JsonNode multilingualText : multilingualTexts) {
+            if (language.equals(multilingualText.path(Field.LANGUAGE_CODE).asText()) && multilingualText.hasNonNull(Field.LANGUAGE_TEXT))
+                return multilingualText.get(Field.LANGUAGE_TEXT);
+        }
+        return null;
+    }
+
+    private static void writeHref(JsonGenerator generator, String linkName, String href) throws IOException {
+        generator.writeFieldName(linkName);
+        generator.writeStartObject();
+        generator.writeStringField("href", href);
+        generator.writeEndObject();
+    }
+}
@@ -72,6 +72,38 @@ public class Utils {
         return String.format(SERIES_LINK_FORMAT, seriesUID);
     }
 
+    /**
+     * The strong ETag of a stored series or version is the revision of its row.
+     */
+    public static String toETag(long revision) {
+        return "\"" + revision + "\"";
+    }
+
+    /**
+     * @return the revision in an ETag made by toETag, or null if the ETag is missing, weak or not a revision
+     */
+    public static Long revisionOf(String eTag) {
+        if (eTag == null || !eTag.matches("^\"\\d{1,18}\"$"))
+            return null;
+        return Long.valueOf(eTag.substring(1, eTag.length() - 1));
+    }
+
+    /**
+     * Strong comparison of an If-Match header, which is "*" or a comma separated list of ETags, with the current ETag.
+     * Weak ETags never match.
+     */
+    public static boolean ifMatch(String ifMatchHeader, String currentETag) {
+        if (ifMatchHeader == null || currentETag == null)
+            return false;
+        if (ifMatchHeader.trim().equals("*"))
+            return true;
+        for (String eTag : ifMatchHeader.split(",")) {
+            if (eTag.trim().equals(currentETag))
+                return true;
+        }
+        return false;
+    }
+
     public static String getNowISO(){
         TimeZone tz = TimeZone.getTimeZone("UTC");
         DateFormat df = new SimpleDateFormat(ISO_DATETIME_PATTERN);
@@ -135,12 +167,19 @@ public class Utils {
     }
 
     public static ObjectNode addCodeVersionsToAllCodesInVersion(JsonNode subsetVersion, Logger LOG) {
+        int codesSize = subsetVersion.has(Field.CODES) ? subsetVersion.get(Field.CODES).size() : 0;
+        return addCodeVersionsToAllCodesInVersion(subsetVersion, new HashMap<>(codesSize*2), LOG);
+    }
+
+    /**
+     * @param klassClassificationsMap classifications already retrieved from KLASS by classification id. New ones are added to it.
+     */
+    public static ObjectNode addCodeVersionsToAllCodesInVersion(JsonNode subsetVersion, Map<String, ResponseEntity<JsonNode>> klassClassificationsMap, Logger LOG) {
         ObjectNode editableVersion = subsetVersion.deepCopy();
         LOG.debug("Finding out what classification versions the codes in the subsetVersion are used in");
         if (editableVersion.has(Field.CODES)){
 
             ArrayNode codesArrayNode = (ArrayNode)editableVersion.get(Field.CODES);
-            Map<String, ResponseEntity<JsonNode>> klassClassificationsMap = new HashMap<>(codesArrayNode.size()*2);
             for (int i = 0; i < codesArrayNode.size(); i++) {
                 LOG.debug("Resolving classification versions of code "+(i+1)+"/"+codesArrayNode.size());
                 JsonNode code = Utils.addCodeVersions(codesArrayNode.get(i), klassClassificationsMap, LOG);
@@ -233,7 +272,7 @@ public class Utils {
                         if (codes.isArray() && !codes.isEmpty()) {
                             LOG.debug("The field 'codes' of the instance is a non-empty array of size " + codes.size());
                             ArrayNode codesArray = codes.deepCopy();
-                            ResponseEntity<JsonNode> codeDefRE = DatabaseFactory.getDatabase(DatabaseFactory.DEFAULT_DATABASE).getSubsetCodeDefinition();
+                            ResponseEntity<JsonNode> codeDefRE = DatabaseFactory.getDatabase().getSubsetCodeDefinition();
                             if (!codeDefRE.getStatusCode().is2xxSuccessful())
                                 return codeDefRE;
                             JsonNode codeDefinition = codeDefRE.getBody();
@@ -277,4 +316,43 @@ public class Utils {
         editableVersion.set(Field._LINKS, Utils.getSubsetVersionLinkNode(editableVersion));
         return editableVersion;
     }
+
+    /**
+     * A copy of the version where the name and the notes of each code are the text in the language instead of the array of multilingual texts.
+     * Names and notes without a text in the language are left as they are.
+     * The Postgres backend stores this projection for each of the LANGUAGE_CODES when a version is written, see SQL.CREATE_SINGLE_LANGUAGE_FUNCTION.
+     */
+    public static ObjectNode setSingleLanguage(ObjectNode versionNode, String languageCode) {
+        ObjectNode versionNodeCopy = versionNode.deepCopy();
+        if (versionNodeCopy.get(Field.CODES) instanceof ArrayNode)
+            setSingleLanguageOfCodes((ArrayNode) versionNodeCopy.get(Field.CODES), languageCode);
+        return versionNodeCopy;
+    }
+
+    public static ArrayNode setSingleLanguage(ArrayNode codesArrayNode, String languageCode) {
+        ArrayNode codes = codesArrayNode.deepCopy();
+        setSingleLanguageOfCodes(codes, languageCode);
+        return codes;
+    }
+
+    private static void setSingleLanguageOfCodes(ArrayNode codes, String languageCode) {
+        for (JsonNode code : codes) {
+            if (code.isObject()) {
+                setSingleLanguageOfField((ObjectNode) code, Field.NAME, languageCode);
+                setSingleLanguageOfField((ObjectNode) code, Field.NOTES, languageCode);
+            }
+        }
+    }
+
+    private static void setSingleLanguageOfField(ObjectNode code, String field, String languageCode) {
+        JsonNode multilingualTexts = code.get(field);
+        if (multilingualTexts == null || !multilingualTexts.isArray())
+            return;
+        for (JsonNode multilingualText : multilingualTexts) {
+            if (languageCode.equals(multilingualText.path(Field.LANGUAGE_CODE).asText()) && multilingualText.hasNonNull(Field.LANGUAGE_TEXT)) {
+                code.put(field, multilingualText.get(Field.LANGUAGE_TEXT).asText());
+                return;
+            }
+        }
+    }
 }
@@ -3,7 +3,10 @@ package no.ssb.subsetsservice.controller;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import no.ssb.subsetsservice.entity.Field;
+import no.ssb.subsetsservice.service.DatabaseFactory;
+import no.ssb.subsetsservice.util.Utils;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -11,11 +14,16 @@ import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -1503,4 +1511,326 @@ public class SubsetsControllerV2Test {
                 version202Open);
         assertEquals(HttpStatus.BAD_REQUEST, putVersion202OpenRE.getStatusCode());
     }
+
+    /**
+     * A copy of version_1_0_1 with the given id, status and validity.
+     */
+    private ObjectNode versionOf(String seriesId, String versionId, String administrativeStatus, String validFrom, String validUntil) {
+        ObjectNode version = readJsonFile(version_1_0_1).deepCopy();
+        version.put(Field.VERSION_ID, versionId);
+        version.put(Field.SUBSET_ID, seriesId);
+        version.put(Field.ADMINISTRATIVE_STATUS, administrativeStatus);
+        version.put(Field.VALID_FROM, validFrom);
+        if (validUntil == null)
+            version.remove(Field.VALID_UNTIL);
+        else
+            version.put(Field.VALID_UNTIL, validUntil);
+        return version;
+    }
+
+    /**
+     * Stores the version straight in the backend, without the KLASS lookups that POST of a version does.
+     */
+    private void saveVersionInBackend(String seriesId, JsonNode version) {
+        ResponseEntity<JsonNode> saveRE = DatabaseFactory.getDatabase().saveVersionInSeries(seriesId, version.get(Field.VERSION_ID).asText(), version);
+        assertEquals(HttpStatus.CREATED, saveRE.getStatusCode());
+    }
+
+    private String postSeries(File seriesFile) {
+        JsonNode series = readJsonFile(seriesFile);
+        ResponseEntity<JsonNode> postSeriesRE = SubsetsControllerV2.getInstance().postSubsetSeries(false, series);
+        assertEquals(HttpStatus.CREATED, postSeriesRE.getStatusCode());
+        return series.get(Field.ID).asText();
+    }
+
+    private static JsonNode streamedBody(ResponseEntity<JsonNode> streamRE, MockHttpServletResponse response) throws IOException {
+        assertNull(streamRE, "a streamed response has no ResponseEntity when it succeeds");
+        assertEquals(HttpStatus.OK.value(), response.getStatus());
+        return new ObjectMapper().readTree(response.getContentAsByteArray());
+    }
+
+    @Test
+    void streamedResponsesAreTheSameAsTheUnstreamed() throws IOException {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+        ObjectNode version = versionOf(seriesId, "1", Field.DRAFT, "2020-10-19", "2021-10-19");
+        // Stored codes have their names in every language
+        ArrayNode name = ((ObjectNode) version.get(Field.CODES).get(0)).putArray(Field.NAME);
+        name.addObject().put(Field.LANGUAGE_CODE, "nb").put(Field.LANGUAGE_TEXT, "Kvits\u00f8y");
+        name.addObject().put(Field.LANGUAGE_CODE, "nn").put(Field.LANGUAGE_TEXT, "Kvits\u00f8y nynorsk");
+        saveVersionInBackend(seriesId, version);
+
+        for (String language : new String[]{"all", "nn", "nb"}) {
+            MockHttpServletResponse versionResponse = new MockHttpServletResponse();
+            assertEquals(instance.getVersion(seriesId, "1", language).getBody(),
+                    streamedBody(instance.streamVersion(seriesId, "1", language, versionResponse), versionResponse), "language " + language);
+
+            MockHttpServletResponse versionsResponse = new MockHttpServletResponse();
+            assertEquals(instance.getVersions(seriesId, true, true, language).getBody(),
+                    streamedBody(instance.streamVersions(seriesId, true, true, language, versionsResponse), versionsResponse), "language " + language);
+        }
+
+        MockHttpServletResponse seriesResponse = new MockHttpServletResponse();
+        JsonNode allSeries = instance.getSubsetSeries(true, true, true).getBody();
+        assertEquals(allSeries, streamedBody(instance.streamSubsetSeries(true, true, true, seriesResponse), seriesResponse));
+    }
+
+    @Test
+    void streamedVersionThatDoesNotExistIsNotFound() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ResponseEntity<JsonNode> streamRE = instance.streamVersion(seriesId, "1", "all", response);
+        assertNotNull(streamRE);
+        assertEquals(HttpStatus.NOT_FOUND, streamRE.getStatusCode());
+        assertFalse(response.isCommitted());
+    }
+
+    @Test
+    void getSubsetSeriesPagesWithLinkHeader() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        JsonNode series = readJsonFile(series_1_0);
+        for (String seriesId : new String[]{"page_series_1", "page_series_2", "page_series_3"}) {
+            ObjectNode pageSeries = series.deepCopy();
+            pageSeries.put(Field.ID, seriesId);
+            assertEquals(HttpStatus.CREATED, instance.postSubsetSeries(false, pageSeries).getStatusCode());
+        }
+
+        ResponseEntity<JsonNode> firstPageRE = instance.getSubsetSeries(true, true, true, 2, null);
+        assertEquals(HttpStatus.OK, firstPageRE.getStatusCode());
+        assertEquals(2, firstPageRE.getBody().size());
+        assertEquals("page_series_1", firstPageRE.getBody().get(0).get(Field.ID).asText());
+        assertEquals("page_series_2", firstPageRE.getBody().get(1).get(Field.ID).asText());
+        String link = firstPageRE.getHeaders().getFirst(HttpHeaders.LINK);
+        assertNotNull(link);
+        assertTrue(link.startsWith("</v2/subsets?"), link);
+        assertTrue(link.contains("limit=2"), link);
+        assertTrue(link.contains("after=page_series_2"), link);
+        assertTrue(link.endsWith(">; rel=\"next\""), link);
+
+        ResponseEntity<JsonNode> lastPageRE = instance.getSubsetSeries(true, true, true, 2, "page_series_2");
+        assertEquals(HttpStatus.OK, lastPageRE.getStatusCode());
+        assertEquals(1, lastPageRE.getBody().size());
+        assertEquals("page_series_3", lastPageRE.getBody().get(0).get(Field.ID).asText());
+        assertNull(lastPageRE.getHeaders().getFirst(HttpHeaders.LINK));
+
+        assertEquals(HttpStatus.BAD_REQUEST, instance.getSubsetSeries(true, true, true, 0, null).getStatusCode());
+    }
+
+    @Test
+    void getVersionsPagesWithLinkHeader() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+        // Saved out of validFrom order, the pages are in validFrom order
+        saveVersionInBackend(seriesId, versionOf(seriesId, "b", Field.DRAFT, "2021-01-01", "2021-12-31"));
+        saveVersionInBackend(seriesId, versionOf(seriesId, "a", Field.DRAFT, "2022-01-01", "2022-12-31"));
+        saveVersionInBackend(seriesId, versionOf(seriesId, "c", Field.DRAFT, "2020-01-01", "2020-12-31"));
+
+        ResponseEntity<JsonNode> firstPageRE = instance.getVersions(seriesId, true, true, "all", 2, null);
+        assertEquals(HttpStatus.OK, firstPageRE.getStatusCode());
+        assertEquals(2, firstPageRE.getBody().size());
+        assertEquals("c", firstPageRE.getBody().get(0).get(Field.VERSION_ID).asText());
+        assertEquals("b", firstPageRE.getBody().get(1).get(Field.VERSION_ID).asText());
+        String link = firstPageRE.getHeaders().getFirst(HttpHeaders.LINK);
+        assertNotNull(link);
+        assertTrue(link.contains("/v2/subsets/" + seriesId + "/versions?"), link);
+        assertTrue(link.contains("limit=2"), link);
+        assertTrue(link.contains("after=b"), link);
+
+        // The versionId of the link is what a client sends back as 'after'
+        ResponseEntity<JsonNode> lastPageRE = instance.getVersions(seriesId, true, true, "all", 2, "b");
+        assertEquals(HttpStatus.OK, lastPageRE.getStatusCode());
+        assertEquals(1, lastPageRE.getBody().size());
+        assertEquals("a", lastPageRE.getBody().get(0).get(Field.VERSION_ID).asText());
+        assertNull(lastPageRE.getHeaders().getFirst(HttpHeaders.LINK));
+    }
+
+    @Test
+    void importSeriesReportsEachItem() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        JsonNode series1 = readJsonFile(series_1_0);
+        JsonNode series2 = readJsonFile(series_2_0);
+        ArrayNode items = new ObjectMapper().createArrayNode();
+        items.add(series1);
+        items.add(series2);
+        items.add(series1);
+        items.add(readJsonFile(series_1_0_invalid_id));
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(items.toString().getBytes(StandardCharsets.UTF_8));
+
+        ResponseEntity<JsonNode> importRE = instance.importSubsets(false, request);
+        assertEquals(HttpStatus.MULTI_STATUS, importRE.getStatusCode());
+        JsonNode body = importRE.getBody();
+        assertEquals(4, body.get("total").asInt());
+        assertEquals(2, body.get("created").asInt());
+        assertEquals(2, body.get("failed").asInt());
+        JsonNode results = body.get("items");
+        assertEquals(HttpStatus.CREATED.value(), results.get(0).get("status").asInt());
+        assertEquals(HttpStatus.CREATED.value(), results.get(1).get("status").asInt());
+        // The same series twice in one import
+        assertEquals(HttpStatus.CONFLICT.value(), results.get(2).get("status").asInt());
+        assertEquals(HttpStatus.BAD_REQUEST.value(), results.get(3).get("status").asInt());
+
+        assertEquals(HttpStatus.OK, instance.getSubsetSeriesByID(series2.get(Field.ID).asText(), false, "all").getStatusCode());
+    }
+
+    @Test
+    void getSubsetVersionsByCode() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId1 = postSeries(series_1_0);
+        String seriesId2 = postSeries(series_2_0);
+        saveVersionInBackend(seriesId1, versionOf(seriesId1, "1", Field.OPEN, "2020-10-19", "2021-10-19"));
+        saveVersionInBackend(seriesId1, versionOf(seriesId1, "2", Field.DRAFT, "2021-10-19", null));
+        saveVersionInBackend(seriesId2, versionOf(seriesId2, "1", Field.OPEN, "2019-01-01", "2020-01-01"));
+
+        ResponseEntity<JsonNode> publishedRE = instance.getSubsetVersionsByCode("131", "1144", null, false);
+        assertEquals(HttpStatus.OK, publishedRE.getStatusCode());
+        assertEquals(2, publishedRE.getBody().size());
+        for (JsonNode version : publishedRE.getBody()) {
+            assertEquals(Field.OPEN, version.get(Field.ADMINISTRATIVE_STATUS).asText());
+            assertEquals("1", version.get(Field.LEVEL).asText());
+            assertTrue(version.get(Field._LINKS).has(Field.SELF));
+        }
+
+        ResponseEntity<JsonNode> atDateRE = instance.getSubsetVersionsByCode("131", "1144", "2021-01-01", false);
+        assertEquals(HttpStatus.OK, atDateRE.getStatusCode());
+        assertEquals(1, atDateRE.getBody().size());
+        assertEquals(seriesId1, atDateRE.getBody().get(0).get(Field.SUBSET_ID).asText());
+        assertEquals("1", atDateRE.getBody().get(0).get(Field.VERSION_ID).asText());
+        // validUntil is exclusive
+        assertEquals(0, instance.getSubsetVersionsByCode("131", "1144", "2021-10-19", false).getBody().size());
+
+        ResponseEntity<JsonNode> withDraftsRE = instance.getSubsetVersionsByCode("131", "1144", "2021-10-19", true);
+        assertEquals(1, withDraftsRE.getBody().size());
+        assertEquals("2", withDraftsRE.getBody().get(0).get(Field.VERSION_ID).asText());
+        assertEquals(3, instance.getSubsetVersionsByCode("131", "1144", null, true).getBody().size());
+
+        ResponseEntity<JsonNode> otherCodeRE = instance.getSubsetVersionsByCode("131", "9999", null, true);
+        assertEquals(HttpStatus.OK, otherCodeRE.getStatusCode());
+        assertTrue(otherCodeRE.getBody().isEmpty());
+
+        assertEquals(HttpStatus.BAD_REQUEST, instance.getSubsetVersionsByCode("131", "1144", "2021-1-1", false).getStatusCode());
+    }
+
+    @Test
+    void putSubsetSeriesWithIfMatch() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+
+        ResponseEntity<JsonNode> getSeriesRE = instance.getSubsetSeriesByID(seriesId, false, "all");
+        assertEquals(HttpStatus.OK, getSeriesRE.getStatusCode());
+        String eTag = getSeriesRE.getHeaders().getETag();
+        assertNotNull(eTag);
+
+        ResponseEntity<JsonNode> putSeriesRE = instance.putSubsetSeries(seriesId, false, eTag, readJsonFile(series_1_1));
+        assertEquals(HttpStatus.OK, putSeriesRE.getStatusCode());
+        String newETag = putSeriesRE.getHeaders().getETag();
+        assertNotNull(newETag);
+        assertNotEquals(eTag, newETag);
+        assertEquals(newETag, instance.getSubsetSeriesByID(seriesId, false, "all").getHeaders().getETag());
+
+        // The series was changed since eTag was read
+        ResponseEntity<JsonNode> stalePutRE = instance.putSubsetSeries(seriesId, false, eTag, readJsonFile(series_1_0));
+        assertEquals(HttpStatus.PRECONDITION_FAILED, stalePutRE.getStatusCode());
+        assertEquals(newETag, instance.getSubsetSeriesByID(seriesId, false, "all").getHeaders().getETag());
+
+        assertEquals(HttpStatus.OK, instance.putSubsetSeries(seriesId, false, "*", readJsonFile(series_1_0)).getStatusCode());
+        assertEquals(HttpStatus.OK, instance.putSubsetSeries(seriesId, false, readJsonFile(series_1_1)).getStatusCode());
+    }
+
+    @Test
+    void staleRevisionOfSeriesIsNotWritten() {
+        // Without If-Match, the controller answers 409 when the backend refuses a write of a revision that is no longer stored
+        String seriesId = postSeries(series_1_0);
+        String eTag = SubsetsControllerV2.getInstance().getSubsetSeriesByID(seriesId, false, "all").getHeaders().getETag();
+        Long revision = Utils.revisionOf(eTag);
+        assertNotNull(revision);
+        JsonNode editedSeries = readJsonFile(series_1_1);
+        assertTrue(DatabaseFactory.getDatabase().editSeries(editedSeries, seriesId, revision).getStatusCode().is2xxSuccessful());
+        assertEquals(HttpStatus.PRECONDITION_FAILED, DatabaseFactory.getDatabase().editSeries(editedSeries, seriesId, revision).getStatusCode());
+    }
+
+    @Test
+    void putSubsetVersionWithStaleIfMatch() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+        saveVersionInBackend(seriesId, versionOf(seriesId, "1", Field.OPEN, "2020-10-19", null));
+
+        ResponseEntity<JsonNode> getVersionRE = instance.getVersion(seriesId, "1", "all");
+        assertEquals(HttpStatus.OK, getVersionRE.getStatusCode());
+        String eTag = getVersionRE.getHeaders().getETag();
+        assertNotNull(eTag);
+
+        // Closing the version changes its revision
+        assertTrue(DatabaseFactory.getDatabase().editVersion(versionOf(seriesId, "1", Field.OPEN, "2020-10-19", "2021-10-19"), null).getStatusCode().is2xxSuccessful());
+        String newETag = instance.getVersion(seriesId, "1", "all").getHeaders().getETag();
+        assertNotNull(newETag);
+        assertNotEquals(eTag, newETag);
+
+        ResponseEntity<JsonNode> stalePutRE = instance.putSubsetVersion(seriesId, "1", false, "all", eTag, readJsonFile(version_1_0_1_open));
+        assertEquals(HttpStatus.PRECONDITION_FAILED, stalePutRE.getStatusCode());
+        assertEquals("2021-10-19", instance.getVersion(seriesId, "1", "all").getBody().get(Field.VALID_UNTIL).asText());
+    }
+
+    @Test
+    void includeFullVersionsKeepsTheOrderOfTheSeriesAndEveryVersion() throws IOException {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        String seriesId = postSeries(series_1_0);
+        // Saved out of validFrom order, and one of them with a status that the versions endpoint leaves out
+        saveVersionInBackend(seriesId, versionOf(seriesId, "2", Field.DRAFT, "2021-10-19", null));
+        saveVersionInBackend(seriesId, versionOf(seriesId, "1", Field.OPEN, "2020-10-19", "2021-10-19"));
+        saveVersionInBackend(seriesId, versionOf(seriesId, "3", "DEPRECATED", "2019-10-19", "2020-10-19"));
+        String[] versionIds = {"2", "1", "3"};
+
+        for (String language : new String[]{"all", "nb"}) {
+            ResponseEntity<JsonNode> seriesRE = instance.getSubsetSeriesByID(seriesId, true, language);
+            assertEquals(HttpStatus.OK, seriesRE.getStatusCode());
+            JsonNode versions = seriesRE.getBody().get(Field.VERSIONS);
+            assertEquals(versionIds.length, versions.size(), "language " + language);
+            for (int i = 0; i < versionIds.length; i++)
+                assertEquals(instance.getVersion(seriesId, versionIds[i], language).getBody(), versions.get(i), "language " + language);
+
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            assertEquals(seriesRE.getBody(), streamedBody(instance.streamSubsetSeriesWithVersions(seriesId, language, response), response), "language " + language);
+        }
+    }
+
+    @Test
+    void importClosesPreviousLatestVersionLikePost() {
+        SubsetsControllerV2 instance = SubsetsControllerV2.getInstance();
+        JsonNode series = readJsonFile(series_1_0);
+        String seriesId = series.get(Field.ID).asText();
+        ArrayNode items = new ObjectMapper().createArrayNode();
+        items.add(series);
+        String[][] versions = {{"a", "2020-10-19", null}, {"b", "2021-10-19", null}, {"c", "2021-01-01", "2021-06-01"}};
+        for (String[] v : versions) {
+            ObjectNode version = readJsonFile(version_1_0_1_open).deepCopy();
+            version.put(Field.SUBSET_ID, seriesId);
+            version.put(Field.VERSION_ID, v[0]);
+            version.put(Field.VALID_FROM, v[1]);
+            if (v[2] == null)
+                version.remove(Field.VALID_UNTIL);
+            else
+                version.put(Field.VALID_UNTIL, v[2]);
+            items.add(version);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(items.toString().getBytes(StandardCharsets.UTF_8));
+
+        ResponseEntity<JsonNode> importRE = instance.importSubsets(false, request);
+        assertEquals(HttpStatus.MULTI_STATUS, importRE.getStatusCode());
+        JsonNode results = importRE.getBody().get("items");
+        assertEquals(HttpStatus.CREATED.value(), results.get(0).get("status").asInt());
+        // The open-ended version "a" is closed by the later version "b", as postSubsetVersion would do
+        assertEquals(HttpStatus.CREATED.value(), results.get(1).get("status").asInt());
+        assertEquals(HttpStatus.CREATED.value(), results.get(2).get("status").asInt());
+        assertEquals(HttpStatus.BAD_REQUEST.value(), results.get(3).get("status").asInt());
+        assertEquals(ErrorHandler.OVERLAPPING_VALIDITY, results.get(3).get("message").asText());
+
+        ResponseEntity<JsonNode> versionARE = instance.getVersion(seriesId, "a", "all");
+        assertEquals(HttpStatus.OK, versionARE.getStatusCode());
+        assertEquals("2021-10-19", versionARE.getBody().get(Field.VALID_UNTIL).asText());
+    }
 }
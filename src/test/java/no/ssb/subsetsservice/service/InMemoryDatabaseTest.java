@@ -0,0 +1,221 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ssb.subsetsservice.controller.ErrorHandler;
+import no.ssb.subsetsservice.entity.Field;
+import no.ssb.subsetsservice.util.Utils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryDatabaseTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String SERIES_ID = "test_series";
+
+    private InMemoryDatabase database;
+
+    @BeforeEach
+    void createDatabase() {
+        database = new InMemoryDatabase(null, null);
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series(SERIES_ID), SERIES_ID).getStatusCode());
+    }
+
+    private static ObjectNode series(String seriesID) {
+        ObjectNode series = MAPPER.createObjectNode();
+        series.put(Field.ID, seriesID);
+        series.putArray(Field.VERSIONS);
+        return series;
+    }
+
+    private static ObjectNode version(String versionID, String status, String validFrom, String validUntil, String... codes) {
+        ObjectNode version = MAPPER.createObjectNode();
+        version.put(Field.VERSION_ID, versionID);
+        version.put(Field.SUBSET_ID, SERIES_ID);
+        version.put(Field.ADMINISTRATIVE_STATUS, status);
+        version.put(Field.VALID_FROM, validFrom);
+        if (validUntil != null)
+            version.put(Field.VALID_UNTIL, validUntil);
+        ArrayNode codesArrayNode = version.putArray(Field.CODES);
+        for (String code : codes) {
+            ObjectNode codeNode = codesArrayNode.addObject();
+            codeNode.put(Field.CLASSIFICATION_ID, "131");
+            codeNode.put(Field.CODE, code);
+            codeNode.put(Field.LEVEL, "1");
+            ArrayNode name = codeNode.putArray(Field.NAME);
+            name.addObject().put(Field.LANGUAGE_CODE, "nb").put(Field.LANGUAGE_TEXT, "Kode " + code);
+            name.addObject().put(Field.LANGUAGE_CODE, "en").put(Field.LANGUAGE_TEXT, "Code " + code);
+            codeNode.putArray(Field.CLASSIFICATION_VERSIONS).add("version_" + validFrom);
+        }
+        return version;
+    }
+
+    private ResponseEntity<JsonNode> save(ObjectNode version) {
+        return database.saveVersionInSeries(SERIES_ID, version.get(Field.VERSION_ID).asText(), version);
+    }
+
+    private static String uid(String versionID) {
+        return SERIES_ID + "_" + versionID;
+    }
+
+    @Test
+    void versionPagesContinueAfterTheGivenVersion() {
+        assertEquals(HttpStatus.CREATED, save(version("b", Field.DRAFT, "2021-01-01", null, "1")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("c", Field.DRAFT, "2020-01-01", null, "1")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("a", Field.DRAFT, "2021-01-01", null, "1")).getStatusCode());
+
+        // By validFrom, then version uid
+        JsonNode firstPage = database.getVersionsPageBySeriesID(SERIES_ID, true, true, 2, null).getBody();
+        assertEquals(2, firstPage.size());
+        assertEquals("c", firstPage.get(0).get(Field.VERSION_ID).asText());
+        assertEquals("a", firstPage.get(1).get(Field.VERSION_ID).asText());
+
+        JsonNode secondPage = database.getVersionsPageBySeriesID(SERIES_ID, true, true, 2, uid("a")).getBody();
+        assertEquals(1, secondPage.size());
+        assertEquals("b", secondPage.get(0).get(Field.VERSION_ID).asText());
+
+        assertTrue(database.getVersionsPageBySeriesID(SERIES_ID, true, true, 2, uid("b")).getBody().isEmpty());
+        assertTrue(database.getVersionsPageBySeriesID(SERIES_ID, true, true, 2, uid("missing")).getBody().isEmpty());
+        assertTrue(database.getVersionsPageBySeriesID(SERIES_ID, true, false, 2, null).getBody().isEmpty());
+    }
+
+    @Test
+    void codesAtADateAreThoseOfTheVersionValidThen() {
+        assertEquals(HttpStatus.CREATED, save(version("1", Field.OPEN, "2020-01-01", "2021-01-01", "1", "2")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("2", Field.OPEN, "2021-01-01", null, "3")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("3", Field.DRAFT, "2022-01-01", null, "4")).getStatusCode());
+
+        JsonNode codesIn2020 = database.getCodesAt(SERIES_ID, "2020-06-01", true, false).getBody();
+        assertEquals(2, codesIn2020.size());
+        assertEquals("1", codesIn2020.get(0).get(Field.CODE).asText());
+
+        // validUntil is exclusive
+        JsonNode codesAtChange = database.getCodesAt(SERIES_ID, "2021-01-01", true, false).getBody();
+        assertEquals(1, codesAtChange.size());
+        assertEquals("3", codesAtChange.get(0).get(Field.CODE).asText());
+
+        assertEquals("3", database.getCodesAt(SERIES_ID, "2022-06-01", true, false).getBody().get(0).get(Field.CODE).asText());
+        assertEquals("4", database.getCodesAt(SERIES_ID, "2022-06-01", true, true).getBody().get(0).get(Field.CODE).asText());
+        assertTrue(database.getCodesAt(SERIES_ID, "2019-06-01", true, true).getBody().isEmpty());
+        assertEquals(HttpStatus.NOT_FOUND, database.getCodesAt("missing_series", "2020-06-01", true, true).getStatusCode());
+    }
+
+    @Test
+    void codesInRangeAreTheUnionOfTheVersionsInTheRange() {
+        assertEquals(HttpStatus.CREATED, save(version("1", Field.OPEN, "2020-01-01", "2021-01-01", "1", "2")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("2", Field.OPEN, "2021-01-01", "2022-01-01", "2", "3")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("3", Field.OPEN, "2022-01-01", null, "4")).getStatusCode());
+
+        JsonNode codes = database.getCodesInRange(SERIES_ID, true, false, "2020-06-01", "2021-06-01", "en").getBody();
+        assertEquals(3, codes.size());
+        assertEquals("1", codes.get(0).get(Field.CODE).asText());
+        assertEquals("Code 1", codes.get(0).get(Field.NAME).asText());
+        JsonNode code2 = codes.get(1);
+        assertEquals("2", code2.get(Field.CODE).asText());
+        // The code is in both versions, so it has the classification versions of both
+        assertEquals(2, code2.get(Field.CLASSIFICATION_VERSIONS).size());
+        assertEquals("3", codes.get(2).get(Field.CODE).asText());
+
+        // The range is half open, like the validity of the versions
+        JsonNode codesOfSecondVersion = database.getCodesInRange(SERIES_ID, true, false, "2021-01-01", "2022-01-01", "nb").getBody();
+        assertEquals(2, codesOfSecondVersion.size());
+        assertEquals("Kode 2", codesOfSecondVersion.get(0).get(Field.NAME).asText());
+    }
+
+    @Test
+    void publishedVersionsMayNotOverlap() {
+        assertEquals(HttpStatus.CREATED, save(version("1", Field.OPEN, "2020-01-01", "2021-01-01", "1")).getStatusCode());
+
+        ResponseEntity<JsonNode> overlappingRE = save(version("2", Field.OPEN, "2020-06-01", null, "1"));
+        assertEquals(HttpStatus.BAD_REQUEST, overlappingRE.getStatusCode());
+        assertEquals(ErrorHandler.OVERLAPPING_VALIDITY, overlappingRE.getBody().get("message").asText());
+        assertEquals(HttpStatus.NOT_FOUND, database.getVersionByID(uid("2")).getStatusCode());
+
+        // Drafts do not take part, and a version may start where another ends
+        assertEquals(HttpStatus.CREATED, save(version("3", Field.DRAFT, "2020-06-01", null, "1")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("4", Field.OPEN, "2021-01-01", null, "1")).getStatusCode());
+
+        // Publishing the draft would overlap both
+        ResponseEntity<JsonNode> publishRE = database.editVersion(version("3", Field.OPEN, "2020-06-01", null, "1"), null);
+        assertEquals(HttpStatus.BAD_REQUEST, publishRE.getStatusCode());
+        assertEquals(Field.DRAFT, database.getVersionByID(uid("3")).getBody().get(Field.ADMINISTRATIVE_STATUS).asText());
+    }
+
+    @Test
+    void writesOfAStaleRevisionAreRefused() {
+        assertEquals(HttpStatus.CREATED, save(version("1", Field.DRAFT, "2020-01-01", null, "1")).getStatusCode());
+        ResponseEntity<JsonNode> versionRE = database.getVersionByID(uid("1"));
+        String eTag = versionRE.getHeaders().getETag();
+        Long revision = Utils.revisionOf(eTag);
+        assertNotNull(revision);
+
+        ResponseEntity<JsonNode> editRE = database.editVersion(version("1", Field.DRAFT, "2020-02-01", null, "1"), revision);
+        assertEquals(HttpStatus.CREATED, editRE.getStatusCode());
+        assertNotEquals(eTag, editRE.getHeaders().getETag());
+        assertEquals(editRE.getHeaders().getETag(), database.getVersionByID(uid("1")).getHeaders().getETag());
+
+        ResponseEntity<JsonNode> staleEditRE = database.editVersion(version("1", Field.DRAFT, "2020-03-01", null, "1"), revision);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, staleEditRE.getStatusCode());
+        assertEquals("2020-02-01", database.getVersionByID(uid("1")).getBody().get(Field.VALID_FROM).asText());
+
+        Long seriesRevision = Utils.revisionOf(database.getSubsetSeries(SERIES_ID).getHeaders().getETag());
+        assertEquals(HttpStatus.PRECONDITION_FAILED, database.editSeries(series(SERIES_ID), SERIES_ID, seriesRevision - 1).getStatusCode());
+        assertEquals(HttpStatus.CREATED, database.editSeries(series(SERIES_ID), SERIES_ID, seriesRevision).getStatusCode());
+        assertEquals(HttpStatus.PRECONDITION_FAILED, database.editSeries(series(SERIES_ID), SERIES_ID, seriesRevision).getStatusCode());
+    }
+
+    @Test
+    void importClosesThePreviousVersionOnlyWhenItsSuccessorIsWritten() {
+        assertEquals(HttpStatus.CREATED, save(version("1", Field.OPEN, "2020-01-01", null, "1")).getStatusCode());
+        assertEquals(HttpStatus.CREATED, save(version("2", Field.DRAFT, "2021-01-01", null, "1")).getStatusCode());
+        ObjectNode closedVersion = MAPPER.createObjectNode().put(Field.SUBSET_ID, SERIES_ID).put(Field.VERSION_ID, "1").put(Field.VALID_UNTIL, "2021-01-01");
+
+        // Version 2 is stored already, so it is not written and version 1 stays open
+        ResponseEntity<JsonNode> rejectedRE = database.importSeriesAndVersions(List.of(), List.of(version("2", Field.OPEN, "2021-01-01", null, "1")), List.of(closedVersion));
+        assertEquals(HttpStatus.CONFLICT.value(), rejectedRE.getBody().get(0).get("status").asInt());
+        assertFalse(database.getVersionByID(uid("1")).getBody().has(Field.VALID_UNTIL));
+
+        ResponseEntity<JsonNode> importRE = database.importSeriesAndVersions(List.of(), List.of(version("3", Field.OPEN, "2021-01-01", null, "1")), List.of(closedVersion));
+        assertEquals(HttpStatus.CREATED.value(), importRE.getBody().get(0).get("status").asInt());
+        assertEquals("2021-01-01", database.getVersionByID(uid("1")).getBody().get(Field.VALID_UNTIL).asText());
+    }
+
+    @Test
+    void snapshotIsLoadedByTheNextDatabase(@TempDir Path directory) {
+        Path snapshotPath = directory.resolve("snapshot.json");
+        InMemoryDatabase snapshotDatabase = new InMemoryDatabase(null, snapshotPath);
+        assertEquals(HttpStatus.CREATED, snapshotDatabase.createSubsetSeries(series(SERIES_ID), SERIES_ID).getStatusCode());
+        ObjectNode version = version("1", Field.OPEN, "2020-01-01", null, "1", "2");
+        assertEquals(HttpStatus.CREATED, snapshotDatabase.saveVersionInSeries(SERIES_ID, "1", version).getStatusCode());
+        ResponseEntity<JsonNode> seriesRE = snapshotDatabase.getSubsetSeries(SERIES_ID);
+        ResponseEntity<JsonNode> versionRE = snapshotDatabase.getVersionByID(uid("1"));
+
+        snapshotDatabase.saveSnapshotIfChanged();
+        assertTrue(Files.exists(snapshotPath));
+        assertFalse(Files.exists(directory.resolve("snapshot.json.tmp")));
+
+        InMemoryDatabase loadedDatabase = new InMemoryDatabase(null, snapshotPath);
+        ResponseEntity<JsonNode> loadedSeriesRE = loadedDatabase.getSubsetSeries(SERIES_ID);
+        assertEquals(seriesRE.getBody(), loadedSeriesRE.getBody());
+        assertEquals(seriesRE.getHeaders().getETag(), loadedSeriesRE.getHeaders().getETag());
+        ResponseEntity<JsonNode> loadedVersionRE = loadedDatabase.getVersionByID(uid("1"));
+        assertEquals(versionRE.getBody(), loadedVersionRE.getBody());
+        assertEquals(versionRE.getHeaders().getETag(), loadedVersionRE.getHeaders().getETag());
+        // The indexes are rebuilt from the snapshot too
+        assertEquals(2, loadedDatabase.getCodesAt(SERIES_ID, "2020-06-01", true, false).getBody().size());
+        assertEquals(1, loadedDatabase.getVersionsByCode("131", "2", null, false).getBody().size());
+        // A version overlapping the loaded one is still refused
+        assertEquals(HttpStatus.BAD_REQUEST, loadedDatabase.saveVersionInSeries(SERIES_ID, "2", version("2", Field.OPEN, "2021-01-01", null, "1")).getStatusCode());
+    }
+}
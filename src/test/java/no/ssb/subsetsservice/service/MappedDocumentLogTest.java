@@ -0,0 +1,190 @@
+package no.ssb.subsetsservice.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ssb.subsetsservice.entity.Field;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedDocumentLogTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String SERIES_ID = "test_series";
+    private static final int INITIAL_SIZE = 4096;
+    private static final int HEADER_BYTES = 9;
+
+    @TempDir
+    Path directory;
+
+    private Path logPath() {
+        return directory.resolve("documents.log");
+    }
+
+    private InMemoryDatabase open(MappedDocumentLog log) {
+        return new InMemoryDatabase(log);
+    }
+
+    private InMemoryDatabase open() {
+        return open(new MappedDocumentLog(logPath(), INITIAL_SIZE));
+    }
+
+    private static ObjectNode series(String description) {
+        ObjectNode series = MAPPER.createObjectNode();
+        series.put(Field.ID, SERIES_ID);
+        series.put("description", description);
+        series.putArray(Field.VERSIONS);
+        return series;
+    }
+
+    private static ObjectNode version(String versionID, String validFrom) {
+        ObjectNode version = MAPPER.createObjectNode();
+        version.put(Field.VERSION_ID, versionID);
+        version.put(Field.SUBSET_ID, SERIES_ID);
+        version.put(Field.ADMINISTRATIVE_STATUS, Field.DRAFT);
+        version.put(Field.VALID_FROM, validFrom);
+        version.putArray(Field.CODES).addObject().put(Field.CLASSIFICATION_ID, "131").put(Field.CODE, versionID);
+        return version;
+    }
+
+    private static void saveVersion(InMemoryDatabase database, String versionID) {
+        assertEquals(HttpStatus.CREATED, database.saveVersionInSeries(SERIES_ID, versionID, version(versionID, "2020-01-01")).getStatusCode());
+    }
+
+    private static String uid(String versionID) {
+        return SERIES_ID + "_" + versionID;
+    }
+
+    /**
+     * The offsets of the frames in the log, read the same way as the replay does, but without checking them.
+     */
+    private List<Integer> frameOffsets() throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(logPath()));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= bytes.capacity() && bytes.getInt(offset) > 0) {
+            offsets.add(offset);
+            offset += HEADER_BYTES + bytes.getInt(offset);
+        }
+        return offsets;
+    }
+
+    private void overwrite(int offset, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), offset);
+        }
+    }
+
+    @Test
+    void writesAreReplayed() {
+        InMemoryDatabase database = open();
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series("first"), SERIES_ID).getStatusCode());
+        saveVersion(database, "1");
+        saveVersion(database, "2");
+        database.deleteSubsetVersion(SERIES_ID, uid("1"));
+
+        InMemoryDatabase replayed = open();
+        assertEquals(database.getSubsetSeries(SERIES_ID).getBody(), replayed.getSubsetSeries(SERIES_ID).getBody());
+        assertEquals(HttpStatus.NOT_FOUND, replayed.getVersionByID(uid("1")).getStatusCode());
+        assertEquals(database.getVersionByID(uid("2")).getBody(), replayed.getVersionByID(uid("2")).getBody());
+        assertEquals(database.getVersionByID(uid("2")).getHeaders().getETag(), replayed.getVersionByID(uid("2")).getHeaders().getETag());
+    }
+
+    @Test
+    void tornMultiFrameWriteIsNotReplayed() throws IOException {
+        InMemoryDatabase database = open();
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series("first"), SERIES_ID).getStatusCode());
+        saveVersion(database, "1");
+        // Saving a version is one write of two frames, the version and then the series. Lose the last one.
+        List<Integer> offsets = frameOffsets();
+        assertEquals(3, offsets.size());
+        overwrite(offsets.get(2), new byte[HEADER_BYTES]);
+
+        InMemoryDatabase replayed = open();
+        assertEquals(HttpStatus.NOT_FOUND, replayed.getVersionByID(uid("1")).getStatusCode());
+        assertTrue(replayed.getSubsetSeries(SERIES_ID).getBody().get(Field.VERSIONS).isEmpty());
+
+        // The next write replaces the torn one
+        saveVersion(replayed, "2");
+        InMemoryDatabase replayedAgain = open();
+        assertEquals(HttpStatus.NOT_FOUND, replayedAgain.getVersionByID(uid("1")).getStatusCode());
+        assertEquals(HttpStatus.OK, replayedAgain.getVersionByID(uid("2")).getStatusCode());
+        assertEquals(1, replayedAgain.getSubsetSeries(SERIES_ID).getBody().get(Field.VERSIONS).size());
+    }
+
+    @Test
+    void replayStopsAtAFrameWithAWrongChecksum() throws IOException {
+        InMemoryDatabase database = open();
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series("first"), SERIES_ID).getStatusCode());
+        assertEquals(HttpStatus.CREATED, database.editSeries(series("second"), SERIES_ID, null).getStatusCode());
+        List<Integer> offsets = frameOffsets();
+        assertEquals(2, offsets.size());
+        // Change the first byte of the payload of the edit, leaving its length and checksum as they were
+        int payloadOffset = offsets.get(1) + HEADER_BYTES;
+        byte payloadStart = Files.readAllBytes(logPath())[payloadOffset];
+        overwrite(payloadOffset, new byte[]{(byte) (payloadStart ^ 0x20)});
+
+        InMemoryDatabase replayed = open();
+        JsonNode series = replayed.getSubsetSeries(SERIES_ID).getBody();
+        assertEquals("first", series.get("description").asText());
+        assertEquals("\"1\"", replayed.getSubsetSeries(SERIES_ID).getHeaders().getETag());
+    }
+
+    @Test
+    void logGrowsPastTheInitialMapping() throws IOException {
+        InMemoryDatabase database = open();
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series("first"), SERIES_ID).getStatusCode());
+        int versionCount = 40;
+        for (int i = 0; i < versionCount; i++)
+            saveVersion(database, "version" + i);
+        assertTrue(Files.size(logPath()) > INITIAL_SIZE, "the log should have grown, but it is " + Files.size(logPath()) + " bytes");
+
+        InMemoryDatabase replayed = open();
+        for (int i = 0; i < versionCount; i++)
+            assertEquals(HttpStatus.OK, replayed.getVersionByID(uid("version" + i)).getStatusCode());
+        assertEquals(versionCount, replayed.getSubsetSeries(SERIES_ID).getBody().get(Field.VERSIONS).size());
+    }
+
+    @Test
+    void compactedLogIsReplayed() throws IOException {
+        MappedDocumentLog log = new MappedDocumentLog(logPath(), INITIAL_SIZE);
+        InMemoryDatabase database = open(log);
+        assertEquals(HttpStatus.CREATED, database.createSubsetSeries(series("first"), SERIES_ID).getStatusCode());
+        saveVersion(database, "1");
+        saveVersion(database, "2");
+        for (int i = 0; i < 10; i++)
+            assertEquals(HttpStatus.CREATED, database.editSeries(series("edit " + i), SERIES_ID, null).getStatusCode());
+        database.deleteSubsetVersion(SERIES_ID, uid("1"));
+        int framesBefore = frameOffsets().size();
+
+        synchronized (database) {
+            log.compact();
+        }
+        // The current series and version 2
+        assertEquals(2, frameOffsets().size());
+        assertTrue(framesBefore > 2);
+        assertFalse(Files.exists(directory.resolve("documents.log.compact")));
+
+        // Writes after the compaction are appended to the compacted log
+        saveVersion(database, "3");
+
+        InMemoryDatabase replayed = open();
+        assertEquals(database.getSubsetSeries(SERIES_ID).getBody(), replayed.getSubsetSeries(SERIES_ID).getBody());
+        assertEquals(database.getSubsetSeries(SERIES_ID).getHeaders().getETag(), replayed.getSubsetSeries(SERIES_ID).getHeaders().getETag());
+        assertEquals(HttpStatus.NOT_FOUND, replayed.getVersionByID(uid("1")).getStatusCode());
+        assertEquals(database.getVersionByID(uid("2")).getBody(), replayed.getVersionByID(uid("2")).getBody());
+        assertEquals(database.getVersionByID(uid("3")).getBody(), replayed.getVersionByID(uid("3")).getBody());
+    }
+}
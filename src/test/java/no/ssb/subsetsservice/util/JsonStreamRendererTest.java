@@ -0,0 +1,81 @@
+package no.ssb.subsetsservice.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import no.ssb.subsetsservice.entity.Field;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonStreamRendererTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ObjectNode version() {
+        ObjectNode version = MAPPER.createObjectNode();
+        version.put(Field.VERSION_ID, "1");
+        version.put(Field.SUBSET_ID, "test_series");
+        ArrayNode codes = version.putArray(Field.CODES);
+        ObjectNode code = codes.addObject();
+        code.put(Field.CODE, "1144");
+        ArrayNode name = code.putArray(Field.NAME);
+        name.addObject().put(Field.LANGUAGE_CODE, "nb").put(Field.LANGUAGE_TEXT, "Kvits\u00f8y");
+        name.addObject().put(Field.LANGUAGE_CODE, "nn").putNull(Field.LANGUAGE_TEXT);
+        name.addObject().put(Field.LANGUAGE_CODE, "nn").put(Field.LANGUAGE_TEXT, "Kvits\u00f8y nynorsk");
+        ArrayNode notes = code.putArray(Field.NOTES);
+        notes.addObject().put(Field.LANGUAGE_CODE, "en");
+        codes.add("not a code object");
+        codes.addArray().add(1).add(2);
+        codes.addObject().put(Field.CODE, "1145").put(Field.NAME, "Already a single name");
+        return version;
+    }
+
+    private JsonNode streamVersion(JsonNode version, String language) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonParser parser = MAPPER.getFactory().createParser(MAPPER.writeValueAsBytes(version));
+             JsonGenerator generator = MAPPER.getFactory().createGenerator(out)) {
+            JsonStreamRenderer.writeVersion(parser, generator, "test_series", "1", language);
+        }
+        return MAPPER.readTree(out.toByteArray());
+    }
+
+    @Test
+    void streamedVersionInAllLanguagesEqualsVersionWithLinks() throws IOException {
+        ObjectNode version = version();
+        assertEquals(Utils.addLinksToSubsetVersion(version), streamVersion(version, JsonStreamRenderer.ALL_LANGUAGES));
+    }
+
+    @Test
+    void streamedVersionInOneLanguageHasTheTextsInThatLanguage() throws IOException {
+        ObjectNode expected = Utils.addLinksToSubsetVersion(version());
+        ((ObjectNode) expected.get(Field.CODES).get(0)).put(Field.NAME, "Kvits\u00f8y");
+        assertEquals(expected, streamVersion(version(), "nb"));
+        ((ObjectNode) expected.get(Field.CODES).get(0)).put(Field.NAME, "Kvits\u00f8y nynorsk");
+        assertEquals(expected, streamVersion(version(), "nn"));
+        // Neither the name nor the note has a text in English, so both are left as they are
+        assertEquals(Utils.addLinksToSubsetVersion(version()), streamVersion(version(), "en"));
+    }
+
+    @Test
+    void nullLanguageTextIsSkipped() throws IOException {
+        JsonNode code = streamVersion(version(), "nn").get(Field.CODES).get(0);
+        assertEquals("Kvits\u00f8y nynorsk", code.get(Field.NAME).asText());
+        assertTrue(code.get(Field.NOTES).isArray());
+    }
+
+    @Test
+    void codesThatAreNotObjectsAreCopied() throws IOException {
+        JsonNode codes = streamVersion(version(), "nb").get(Field.CODES);
+        assertEquals(4, codes.size());
+        assertEquals("not a code object", codes.get(1).asText());
+        assertEquals(2, codes.get(2).size());
+        assertEquals("Already a single name", codes.get(3).get(Field.NAME).asText());
+    }
+}
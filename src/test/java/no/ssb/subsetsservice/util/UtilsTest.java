@@ -149,6 +149,28 @@ class UtilsTest {
         assertTrue(Utils.isInteger(s8));
     }
 
+    @Test
+    void revisionOfETag() {
+        assertEquals(7L, Utils.revisionOf(Utils.toETag(7)));
+        assertNull(Utils.revisionOf(null));
+        assertNull(Utils.revisionOf("7"));
+        assertNull(Utils.revisionOf("W/\"7\""));
+        assertNull(Utils.revisionOf("\"7.0\""));
+        assertNull(Utils.revisionOf("\"\""));
+    }
+
+    @Test
+    void ifMatch() {
+        String eTag = Utils.toETag(3);
+        assertTrue(Utils.ifMatch("*", eTag));
+        assertTrue(Utils.ifMatch("\"3\"", eTag));
+        assertTrue(Utils.ifMatch("\"2\", \"3\"", eTag));
+        assertFalse(Utils.ifMatch("\"2\"", eTag));
+        assertFalse(Utils.ifMatch("W/\"3\"", eTag));
+        assertFalse(Utils.ifMatch(null, eTag));
+        assertFalse(Utils.ifMatch("*", null));
+    }
+
     @Test
     void getSelfLinkObject() {
     }
@@ -176,4 +198,18 @@ class UtilsTest {
     @Test
     void versionComparator() {
     }
+
+    @Test
+    void setSingleLanguage() {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode version = mapper.createObjectNode();
+        ObjectNode code = version.putArray(Field.CODES).addObject();
+        code.putArray(Field.NAME).add(Utils.createMultilingualText("nb", "Navn")).add(Utils.createMultilingualText("en", "Name"));
+        code.putArray(Field.NOTES).add(Utils.createMultilingualText("nb", "Merknad"));
+
+        ObjectNode english = Utils.setSingleLanguage(version, "en");
+        assertEquals("Name", english.get(Field.CODES).get(0).get(Field.NAME).asText());
+        assertTrue(english.get(Field.CODES).get(0).get(Field.NOTES).isArray());
+        assertTrue(version.get(Field.CODES).get(0).get(Field.NAME).isArray());
+    }
 }